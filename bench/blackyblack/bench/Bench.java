@@ -0,0 +1,300 @@
+package blackyblack.bench;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/*
+ * Microbenchmarks of crypto, codec and scan hot paths, average time per operation.
+ * Works like a single-threaded JMH run without forks: warmup iterations, then measured
+ * iterations of fixed time, score is the mean with a 99.9% confidence interval.
+ * Results go to the console and to a file in JMH result format, so JMH tooling and
+ * regression scripts read them as they are.
+ *   java -cp "bench-out:out:lib/*:conf" blackyblack.bench.Bench [regex] [-wi 3] [-i 5] [-w 1] [-r 1] [-rf json|csv|text] [-rff file]
+ * regex - benchmarks to run, e.g. Crypto or CodecBenchmark.hex, all if empty.
+ * -wi/-i - warmup and measured iterations, -w/-r - seconds per iteration.
+ * -rf/-rff - result format and file, jmh-result.json by default.
+ * Benchmarks share one JVM, for numbers without JIT profile pollution run one class per JVM.
+ */
+public class Bench
+{
+  public interface Op
+  {
+    Object run() throws Exception;
+  }
+
+  //results are stored here so JIT cannot drop an operation as unused
+  static volatile Object sink;
+
+  private final Map<String, Op> ops = new LinkedHashMap<String, Op>();
+
+  void add(String name, Op op)
+  {
+    ops.put(name, op);
+  }
+
+  private static final class Result
+  {
+    final String name;
+    final double[] scores;
+    final double mean;
+    final double error;
+
+    Result(String name, double[] scores)
+    {
+      this.name = name;
+      this.scores = scores;
+      double sum = 0;
+      for (double s : scores)
+      {
+        sum += s;
+      }
+      mean = sum / scores.length;
+      double variance = 0;
+      for (double s : scores)
+      {
+        variance += (s - mean) * (s - mean);
+      }
+      error = scores.length < 2 ? Double.NaN
+          : student(scores.length - 1) * Math.sqrt(variance / (scores.length - 1)) / Math.sqrt(scores.length);
+    }
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    String filter = null;
+    int warmupIterations = 3;
+    int iterations = 5;
+    int warmupTime = 1;
+    int time = 1;
+    String format = "json";
+    String file = null;
+    for (int i = 0; i < args.length; i++)
+    {
+      String arg = args[i];
+      if (!arg.startsWith("-"))
+      {
+        filter = arg;
+        continue;
+      }
+      if (i + 1 >= args.length)
+        throw new IllegalArgumentException("no value for " + arg);
+      String value = args[++i];
+      switch (arg)
+      {
+        case "-wi": warmupIterations = Integer.parseInt(value); break;
+        case "-i": iterations = Math.max(1, Integer.parseInt(value)); break;
+        case "-w": warmupTime = Integer.parseInt(value); break;
+        case "-r": time = Math.max(1, Integer.parseInt(value)); break;
+        case "-rf": format = value; break;
+        case "-rff": file = value; break;
+        default: throw new IllegalArgumentException("unknown option " + arg);
+      }
+    }
+    if (file == null)
+    {
+      file = "jmh-result." + ("text".equals(format) ? "txt" : format);
+    }
+
+    Bench bench = new Bench();
+    CryptoBenchmark.register(bench);
+    CodecBenchmark.register(bench);
+    ScanBenchmark.register(bench);
+
+    Pattern pattern = filter == null ? null : Pattern.compile(filter);
+    List<Result> results = new ArrayList<Result>();
+    for (Map.Entry<String, Op> e : bench.ops.entrySet())
+    {
+      if (pattern != null && !pattern.matcher(e.getKey()).find())
+        continue;
+      System.out.println("# Benchmark: " + e.getKey());
+      results.add(bench.measure(e.getKey(), e.getValue(), warmupIterations, warmupTime, iterations, time));
+    }
+
+    System.out.println();
+    System.out.print(text(results));
+    try (Writer writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8))
+    {
+      switch (format)
+      {
+        case "json": json(results, warmupIterations, warmupTime, iterations, time).writeJSONString(writer); break;
+        case "csv": csv(results, writer); break;
+        default: writer.write(text(results));
+      }
+    }
+    System.out.println("Results written to " + file);
+    System.exit(0);
+  }
+
+  private Result measure(String name, Op op, int warmupIterations, int warmupTime, int iterations, int time) throws Exception
+  {
+    //operations run in batches of about a millisecond, so reading the clock does not count for short ones
+    long batch = 1;
+    for (int i = 0; i < warmupIterations; i++)
+    {
+      batch = calibrate(op, batch);
+      double score = iteration(op, batch, warmupTime);
+      System.out.println(String.format("# Warmup Iteration %2d: %.3f us/op", i + 1, score));
+    }
+    double[] scores = new double[iterations];
+    for (int i = 0; i < iterations; i++)
+    {
+      scores[i] = iteration(op, batch, time);
+      System.out.println(String.format("Iteration %2d: %.3f us/op", i + 1, scores[i]));
+    }
+    return new Result(name, scores);
+  }
+
+  private static long calibrate(Op op, long batch) throws Exception
+  {
+    while (batch < (1L << 30))
+    {
+      long start = System.nanoTime();
+      run(op, batch);
+      if (System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(1))
+        break;
+      batch *= 2;
+    }
+    return batch;
+  }
+
+  /*
+   * Microseconds per operation over one iteration.
+   */
+  private static double iteration(Op op, long batch, int seconds) throws Exception
+  {
+    long count = 0;
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(seconds);
+    long now;
+    do
+    {
+      run(op, batch);
+      count += batch;
+      now = System.nanoTime();
+    }
+    while (now < end);
+    return (now - start) / 1000.0 / count;
+  }
+
+  private static void run(Op op, long count) throws Exception
+  {
+    for (long i = 0; i < count; i++)
+    {
+      sink = op.run();
+    }
+  }
+
+  /*
+   * Two-sided 99.9% quantile of Student's t distribution.
+   */
+  static double student(int df)
+  {
+    final double[] table = { 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+        4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+        3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646 };
+    if (df <= table.length)
+      return table[df - 1];
+    //Cornish-Fisher expansion around the normal quantile
+    double z = 3.2905;
+    return z + (z * z * z + z) / (4.0 * df) + (5 * Math.pow(z, 5) + 16 * z * z * z + 3 * z) / (96.0 * df * df);
+  }
+
+  private static String text(List<Result> results)
+  {
+    StringBuilder out = new StringBuilder();
+    int width = "Benchmark".length();
+    for (Result r : results)
+    {
+      width = Math.max(width, r.name.length());
+    }
+    out.append(String.format("%-" + width + "s  Mode  Cnt  %10s   %10s  Units%n", "Benchmark", "Score", "Error"));
+    for (Result r : results)
+    {
+      out.append(String.format("%-" + width + "s  avgt  %3d  %10.3f +- %10.3f  us/op%n", r.name, r.scores.length, r.mean, r.error));
+    }
+    return out.toString();
+  }
+
+  private static void csv(List<Result> results, Writer out) throws IOException
+  {
+    out.write("\"Benchmark\",\"Mode\",\"Threads\",\"Samples\",\"Score\",\"Score Error (99.9%)\",\"Unit\"\n");
+    for (Result r : results)
+    {
+      out.write("\"" + r.name + "\",\"avgt\",1," + r.scores.length + "," + r.mean + "," + r.error + ",\"us/op\"\n");
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static JSONArray json(List<Result> results, int warmupIterations, int warmupTime, int iterations, int time)
+  {
+    JSONArray array = new JSONArray();
+    for (Result r : results)
+    {
+      JSONObject item = new JSONObject();
+      item.put("jmhVersion", "quack-bench");
+      item.put("benchmark", "blackyblack.bench." + r.name);
+      item.put("mode", "avgt");
+      item.put("threads", 1);
+      item.put("forks", 0);
+      item.put("jvm", System.getProperty("java.home"));
+      item.put("jdkVersion", System.getProperty("java.version"));
+      item.put("vmName", System.getProperty("java.vm.name"));
+      item.put("warmupIterations", warmupIterations);
+      item.put("warmupTime", warmupTime + " s");
+      item.put("measurementIterations", iterations);
+      item.put("measurementTime", time + " s");
+
+      JSONArray raw = new JSONArray();
+      for (double s : r.scores)
+      {
+        raw.add(s);
+      }
+      JSONArray rawData = new JSONArray();
+      rawData.add(raw);
+
+      double[] sorted = r.scores.clone();
+      Arrays.sort(sorted);
+      JSONObject percentiles = new JSONObject();
+      for (double p : new double[] { 0.0, 50.0, 90.0, 95.0, 99.0, 99.9, 99.99, 99.999, 99.9999, 100.0 })
+      {
+        percentiles.put(String.valueOf(p), percentile(sorted, p));
+      }
+
+      JSONArray confidence = new JSONArray();
+      confidence.add(r.mean - r.error);
+      confidence.add(r.mean + r.error);
+
+      JSONObject metric = new JSONObject();
+      metric.put("score", r.mean);
+      //NaN is not valid JSON
+      metric.put("scoreError", Double.isNaN(r.error) ? "NaN" : r.error);
+      metric.put("scoreConfidence", Double.isNaN(r.error) ? new JSONArray() : confidence);
+      metric.put("scorePercentiles", percentiles);
+      metric.put("scoreUnit", "us/op");
+      metric.put("rawData", rawData);
+      item.put("primaryMetric", metric);
+      item.put("secondaryMetrics", new JSONObject());
+      array.add(item);
+    }
+    return array;
+  }
+
+  private static double percentile(double[] sorted, double p)
+  {
+    int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+  }
+}
@@ -0,0 +1,63 @@
+package blackyblack.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import nrs.Appendix;
+import nrs.Constants;
+import nrs.Transaction;
+import nrs.crypto.Crypto;
+import nrs.util.Convert;
+
+/*
+ * Encoding done for every transaction and account a scan or swap touches:
+ * RS account names (ReedSolomon), hex of bytes and full hashes, transaction bytes.
+ */
+class CodecBenchmark
+{
+  static void register(Bench bench)
+  {
+    final long accountId = Convert.publicKeyToAccountId(Crypto.getPublicKey("quack benchmark secret phrase"));
+    final String rs = Crypto.rsEncode(accountId);
+    final Transaction tx = transaction("quack benchmark secret phrase", Convert.parseAccountId("NXT-DAXR-PR6C-EA3X-8YGM4"),
+        Constants.ONE_NXT * 5 / 2, "{\"quack\":1,\"trigger\":1}");
+    final byte[] bytes = tx.getBytes();
+    final String hex = Convert.toHexString(bytes);
+
+    bench.add("CodecBenchmark.rsEncode", () -> Crypto.rsEncode(accountId));
+    bench.add("CodecBenchmark.rsDecode", () -> Crypto.rsDecode(rs));
+    bench.add("CodecBenchmark.toHexString", () -> Convert.toHexString(bytes));
+    bench.add("CodecBenchmark.parseHexString", () -> Convert.parseHexString(hex));
+    bench.add("CodecBenchmark.getBytes", () -> tx.getBytes());
+  }
+
+  /*
+   * Signed version 1 payment with a text message, built the way NxtApi builds trigger transactions.
+   */
+  static Transaction transaction(String secret, long recipientId, long amount, String message)
+  {
+    byte[] publicKey = Crypto.getPublicKey(secret);
+    Transaction tx = new Transaction();
+    tx.type = 0;
+    tx.subtype = 0;
+    tx.version = 1;
+    tx.timestamp = Convert.getEpochTime();
+    tx.deadline = 1440;
+    tx.senderPublicKey = publicKey;
+    tx.senderId = Convert.publicKeyToAccountId(publicKey);
+    tx.recipientId = recipientId;
+    tx.amountNQT = amount;
+    tx.feeNQT = Constants.ONE_NXT;
+    tx.ecBlockHeight = 1000;
+    tx.ecBlockId = 0x1234567890abcdefL;
+    tx.message = new Appendix.Message(message);
+
+    List<Appendix.AbstractAppendix> list = new ArrayList<>();
+    list.add(tx.message);
+    tx.appendages = Collections.unmodifiableList(list);
+    tx.appendagesSize = tx.message.getSize();
+    tx.signature = Crypto.sign(tx.getBytes(), secret);
+    return tx;
+  }
+}
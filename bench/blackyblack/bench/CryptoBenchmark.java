@@ -0,0 +1,50 @@
+package blackyblack.bench;
+
+import java.nio.charset.StandardCharsets;
+
+import nrs.crypto.Crypto;
+import nrs.crypto.EncryptedData;
+
+/*
+ * Key derivation, signatures and message encryption as done for every leg and trigger.
+ * Inputs are fixed so runs compare, the message is the size of a signed quack leg.
+ */
+class CryptoBenchmark
+{
+  private static final String secret = "quack benchmark secret phrase";
+  private static final String otherSecret = "quack benchmark other secret phrase";
+
+  static void register(Bench bench)
+  {
+    final byte[] message = new byte[400];
+    for (int i = 0; i < message.length; i++)
+    {
+      message[i] = (byte) (i * 31 + 7);
+    }
+    final byte[] publicKey = Crypto.getPublicKey(secret);
+    final byte[] signature = Crypto.sign(message, secret);
+    final byte[] privateKey = Crypto.getPrivateKey(secret);
+    final byte[] otherPublicKey = Crypto.getPublicKey(otherSecret);
+    final byte[] otherPrivateKey = Crypto.getPrivateKey(otherSecret);
+
+    //private message of a quack leg, json text compresses as real ones do
+    StringBuilder text = new StringBuilder();
+    while (text.length() < 1000)
+    {
+      text.append("{\"note\":\"payment for asset swap ").append(text.length()).append("\"}");
+    }
+    final byte[] plaintext = text.toString().getBytes(StandardCharsets.UTF_8);
+    final EncryptedData encrypted = EncryptedData.encrypt(plaintext, privateKey, otherPublicKey);
+
+    bench.add("CryptoBenchmark.getPublicKey", () -> Crypto.getPublicKey(secret));
+    bench.add("CryptoBenchmark.sign", () -> Crypto.sign(message, secret));
+    bench.add("CryptoBenchmark.verify", () -> Crypto.verify(signature, message, publicKey, true));
+    bench.add("CryptoBenchmark.curve", () -> {
+      byte[] shared = new byte[32];
+      Crypto.curve(shared, privateKey, otherPublicKey);
+      return shared;
+    });
+    bench.add("CryptoBenchmark.encrypt", () -> EncryptedData.encrypt(plaintext, privateKey, otherPublicKey));
+    bench.add("CryptoBenchmark.decrypt", () -> encrypted.decrypt(otherPrivateKey, publicKey));
+  }
+}
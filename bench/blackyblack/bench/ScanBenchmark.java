@@ -0,0 +1,284 @@
+package blackyblack.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import blackyblack.AppConstants;
+import blackyblack.BlockchainStatusCache;
+import blackyblack.INxtApi;
+import blackyblack.TransactionFilter;
+import blackyblack.TransactionPager;
+import blackyblack.quack.QuackApp;
+import nrs.Constants;
+import nrs.NxtException.NxtApiException;
+import nrs.crypto.Crypto;
+import nrs.util.Convert;
+
+/*
+ * QuackApp.scanSwaps over account history replayed from NRS answers in memory:
+ * streaming parse and quack filter of every page, swap index merge and swap rebuild.
+ * NRS round trips are not part of it. The index is warm after the first call, every call
+ * still reads the whole history the way a scan with an old mark does.
+ * Pages are getBlockchainTransactions answers, recorded ones are read from a directory
+ * in file name order with -Dbench.payloads=dir -Dbench.account=NXT-...
+ * Otherwise bench.swaps swaps (200) are generated, each with a trigger, a leg of each side
+ * and two unrelated transactions. The swap index is saved to swapIndexDir as on a node.
+ * Blockchain status is seeded before every call at height bench.height (1000000, the top
+ * of generated history), so no call goes to NRS.
+ */
+class ScanBenchmark
+{
+  private static final String secret = "quack benchmark secret phrase";
+  private static final String otherSecret = "quack benchmark other secret phrase";
+  private static final int pageSize = 100;
+  private static final int height = Integer.getInteger("bench.height", 1000000);
+
+  @SuppressWarnings("unchecked")
+  static void register(Bench bench) throws IOException
+  {
+    final String account;
+    final List<String> pages;
+    String dir = System.getProperty("bench.payloads");
+    if (dir != null)
+    {
+      account = System.getProperty("bench.account");
+      if (account == null)
+        throw new IllegalArgumentException("bench.account is required with bench.payloads");
+      pages = read(Paths.get(dir));
+    }
+    else
+    {
+      account = Convert.rsAccount(Convert.publicKeyToAccountId(Crypto.getPublicKey(secret)));
+      pages = generate(Integer.getInteger("bench.swaps", 200));
+    }
+
+    //swap rebuild reads the height, poller does not run here and cache entries expire between iterations
+    final JSONObject status = new JSONObject();
+    status.put("numberOfBlocks", (long) height + 1);
+    status.put("lastBlock", Convert.toUnsignedLong(height * 7919L));
+
+    final QuackApp app = QuackApp.instance;
+    app.api = replay(app.api, pages);
+    bench.add("ScanBenchmark.scanSwaps", () -> {
+      BlockchainStatusCache.instance.update(status);
+      return app.scanSwaps(account, 0);
+    });
+  }
+
+  private static List<String> read(Path dir) throws IOException
+  {
+    List<Path> files = new ArrayList<Path>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+    {
+      for (Path file : stream)
+      {
+        files.add(file);
+      }
+    }
+    Collections.sort(files);
+    List<String> pages = new ArrayList<String>();
+    for (Path file : files)
+    {
+      pages.add(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+    return pages;
+  }
+
+  /*
+   * History pages answered from memory, other calls go to the real api and are not expected in a scan.
+   */
+  private static INxtApi replay(final INxtApi api, final List<String> pages)
+  {
+    return (INxtApi) Proxy.newProxyInstance(INxtApi.class.getClassLoader(), new Class<?>[] { INxtApi.class },
+        new InvocationHandler()
+        {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+          {
+            if ("getTransactions".equals(method.getName()) && args.length == 4)
+            {
+              for (String page : pages)
+              {
+                ((TransactionPager.Listener) args[3]).transactions(parse(page, (TransactionFilter.Acceptor) args[2]));
+              }
+              return null;
+            }
+            try
+            {
+              return method.invoke(api, args);
+            }
+            catch (InvocationTargetException e)
+            {
+              throw e.getCause();
+            }
+          }
+        });
+  }
+
+  private static List<JSONObject> parse(String page, TransactionFilter.Acceptor acceptor) throws NxtApiException
+  {
+    TransactionFilter filter = new TransactionFilter(acceptor);
+    try
+    {
+      new JSONParser().parse(new StringReader(page), filter);
+    }
+    catch (ParseException | IOException e)
+    {
+      throw new NxtApiException(e.toString());
+    }
+    if (filter.getError() != null)
+    {
+      throw new NxtApiException(filter.getError());
+    }
+    return filter.getTransactions();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<String> generate(int swaps)
+  {
+    byte[] publicKey = Crypto.getPublicKey(secret);
+    byte[] otherPublicKey = Crypto.getPublicKey(otherSecret);
+    long triggerAccount = Convert.parseAccountId(AppConstants.triggerAccount);
+    int now = Convert.getEpochTime();
+
+    //newest first, as NRS returns history
+    JSONArray txs = new JSONArray();
+    for (int i = 0; i < swaps; i++)
+    {
+      int timestamp = now - i * 600;
+      int block = height - i * 10;
+      String trigger = Convert.toHexString(CodecBenchmark.transaction(secret, triggerAccount,
+          AppConstants.triggerFee + i, "{\"quack\":1,\"trigger\":1}").getBytes());
+      String fullHash = Convert.toHexString(Crypto.sha256().digest(Convert.parseHexString(trigger)));
+
+      JSONObject info = new JSONObject();
+      info.put("quack", 1L);
+      info.put("sender", Convert.rsAccount(Convert.publicKeyToAccountId(publicKey)));
+      info.put("recipient", Convert.rsAccount(Convert.publicKeyToAccountId(otherPublicKey)));
+      info.put("triggerBytes", trigger);
+      JSONArray assets = new JSONArray();
+      assets.add(asset("1", "NXT", (i + 1) * Constants.ONE_NXT));
+      info.put("assets", assets);
+      JSONArray expected = new JSONArray();
+      expected.add(asset(String.valueOf(1000000 + i), "A", 100 + i));
+      info.put("expected_assets", expected);
+
+      txs.add(noise(otherPublicKey, publicKey, timestamp, block, i));
+      txs.add(leg(otherPublicKey, publicKey, timestamp - 60, block - 1, i, fullHash, "{\"quack\":1}", "2", "1"));
+      txs.add(leg(publicKey, otherPublicKey, timestamp - 120, block - 2, i, fullHash, info.toJSONString(), "0", "0"));
+      txs.add(tx(publicKey, triggerAccount, timestamp - 180, block - 3, "sendMoney" + i, "{\"quack\":1,\"trigger\":1}", fullHash));
+      txs.add(noise(publicKey, otherPublicKey, timestamp - 240, block - 4, i));
+    }
+
+    List<String> pages = new ArrayList<String>();
+    for (int i = 0; i < txs.size(); i += pageSize)
+    {
+      JSONArray transactions = new JSONArray();
+      transactions.addAll(txs.subList(i, Math.min(txs.size(), i + pageSize)));
+      JSONObject page = new JSONObject();
+      page.put("transactions", transactions);
+      page.put("requestProcessingTime", 5L);
+      pages.add(page.toJSONString());
+    }
+    return pages;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static JSONObject asset(String id, String type, long quantity)
+  {
+    JSONObject o = new JSONObject();
+    o.put("id", id);
+    o.put("QNT", quantity);
+    o.put("type", type);
+    return o;
+  }
+
+  private static JSONObject noise(byte[] sender, byte[] recipient, int timestamp, int block, int i)
+  {
+    return tx(sender, Convert.publicKeyToAccountId(recipient), timestamp, block, "noise" + i, "thanks for order " + i, null);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static JSONObject leg(byte[] sender, byte[] recipient, int timestamp, int block, int i, String fullHash,
+      String message, String type, String subtype)
+  {
+    JSONObject tx = tx(sender, Convert.publicKeyToAccountId(recipient), timestamp, block, "leg" + type + i, message, null);
+    JSONObject attachment = (JSONObject) tx.get("attachment");
+    if ("2".equals(type))
+    {
+      tx.put("type", 2L);
+      tx.put("subtype", 1L);
+      tx.put("amountNQT", "0");
+      attachment.put("version.AssetTransfer", 1L);
+      attachment.put("asset", String.valueOf(1000000 + i));
+      attachment.put("quantityQNT", String.valueOf(100 + i));
+    }
+    JSONArray linked = new JSONArray();
+    linked.add(fullHash);
+    attachment.put("version.Phasing", 1L);
+    attachment.put("phasingFinishHeight", (long) block + 1440);
+    attachment.put("phasingVotingModel", 4L);
+    attachment.put("phasingQuorum", 1L);
+    attachment.put("phasingMinBalance", 0L);
+    attachment.put("phasingMinBalanceModel", 0L);
+    attachment.put("phasingHolding", "0");
+    attachment.put("phasingLinkedFullHashes", linked);
+    tx.put("phased", true);
+    return tx;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static JSONObject tx(byte[] sender, long recipient, int timestamp, int block, String seed, String message,
+      String fullHash)
+  {
+    byte[] hash = Crypto.sha256().digest(seed.getBytes(StandardCharsets.UTF_8));
+    long senderId = Convert.publicKeyToAccountId(sender);
+    JSONObject tx = new JSONObject();
+    tx.put("type", 0L);
+    tx.put("subtype", 0L);
+    tx.put("version", 1L);
+    tx.put("transaction", Convert.toUnsignedLong(Convert.fullHashToId(hash)));
+    tx.put("fullHash", fullHash != null ? fullHash : Convert.toHexString(hash));
+    tx.put("timestamp", (long) timestamp - 5);
+    tx.put("blockTimestamp", (long) timestamp);
+    tx.put("deadline", 1440L);
+    tx.put("height", (long) block);
+    tx.put("block", Convert.toUnsignedLong(block * 7919L));
+    tx.put("confirmations", 1000000L - block);
+    tx.put("transactionIndex", 0L);
+    tx.put("ecBlockHeight", (long) block - 720);
+    tx.put("ecBlockId", Convert.toUnsignedLong(block * 104729L));
+    tx.put("senderPublicKey", Convert.toHexString(sender));
+    tx.put("sender", Convert.toUnsignedLong(senderId));
+    tx.put("senderRS", Convert.rsAccount(senderId));
+    tx.put("recipient", Convert.toUnsignedLong(recipient));
+    tx.put("recipientRS", Convert.rsAccount(recipient));
+    tx.put("amountNQT", String.valueOf(Constants.ONE_NXT));
+    tx.put("feeNQT", String.valueOf(Constants.ONE_NXT));
+    tx.put("signature", Convert.toHexString(new byte[64]));
+    tx.put("phased", false);
+    JSONObject attachment = new JSONObject();
+    attachment.put("version.Message", 1L);
+    attachment.put("message", message);
+    attachment.put("messageIsText", true);
+    tx.put("attachment", attachment);
+    return tx;
+  }
+}
@@ -0,0 +1,263 @@
+package blackyblack.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.ObjectName;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import blackyblack.DaemonThreadFactory;
+import blackyblack.ThreadMode;
+
+/*
+ * API requests blocked on a slow NRS, platform threads against virtual threads.
+ * A local upstream answers every call after delay ms, each API request makes one blocking
+ * call to it the way scan waits for NRS history. Platform mode holds a server thread per
+ * request in flight, virtual mode runs requests in virtual threads off a small server pool
+ * like APITestServlet with blackyblack.threadMode=virtual.
+ * Memory per request is growth of live heap, where virtual thread stacks are, plus committed
+ * platform thread stacks from native memory tracking. Run each mode in its own JVM:
+ *   java -XX:NativeMemoryTracking=summary -cp "bench-out:out:lib/*:conf" blackyblack.bench.ThreadModeBenchmark platform 1000 2000 30
+ *   java -XX:NativeMemoryTracking=summary -cp "bench-out:out:lib/*:conf" blackyblack.bench.ThreadModeBenchmark virtual 1000 2000 30
+ * Arguments: mode, requests in flight, upstream delay ms, seconds of load.
+ * Keep in flight / delay below what the CPU serves, otherwise both modes measure the CPU.
+ */
+public class ThreadModeBenchmark
+{
+  public static void main(String[] args) throws Exception
+  {
+    boolean virtual = args.length > 0 && "virtual".equals(args[0]);
+    int inFlight = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    long delay = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+    int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+
+    Server upstream = upstream(delay, inFlight);
+    Server api = api(virtual, inFlight, "http://127.0.0.1:" + port(upstream) + "/");
+
+    long baseMemory = memory();
+    int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+    HttpClient client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .executor(Executors.newFixedThreadPool(2, new DaemonThreadFactory("bench-client")))
+        .build();
+    HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port(api) + "/"))
+        .POST(HttpRequest.BodyPublishers.noBody())
+        .build();
+
+    //first quarter warms up JIT and fills pools, it is not counted
+    long start = System.nanoTime();
+    long warm = start + TimeUnit.SECONDS.toNanos(seconds) / 4;
+    long end = start + TimeUnit.SECONDS.toNanos(seconds);
+    AtomicLong completed = new AtomicLong();
+    AtomicLong failed = new AtomicLong();
+    CountDownLatch done = new CountDownLatch(inFlight);
+    for (int i = 0; i < inFlight; i++)
+    {
+      send(client, request, end, completed, failed, done);
+    }
+
+    while (System.nanoTime() < warm)
+    {
+      Thread.sleep(10);
+    }
+    long completedAtWarm = completed.get();
+    long loadedMemory = memory();
+    int loadedThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+    while (System.nanoTime() < end)
+    {
+      Thread.sleep(100);
+    }
+    double measured = (System.nanoTime() - warm) / 1e9;
+    long counted = completed.get() - completedAtWarm;
+    done.await(delay * 10 + 10000, TimeUnit.MILLISECONDS);
+
+    System.out.println(String.format("mode=%s inFlight=%d delay=%dms", virtual ? "virtual" : "platform", inFlight, delay));
+    System.out.println(String.format("throughput %.0f req/s (%.0f ideal), %d failed",
+        counted / measured, inFlight * 1000.0 / delay, failed.get()));
+    System.out.println(String.format("memory %.1f KB per request in flight (%d MB -> %d MB%s)",
+        (loadedMemory - baseMemory) / 1024.0 / inFlight, baseMemory >> 20, loadedMemory >> 20,
+        threadStacks() < 0 ? ", heap only, no native memory tracking" : ""));
+    System.out.println(String.format("platform threads %d -> %d", baseThreads, loadedThreads));
+
+    api.stop();
+    upstream.stop();
+    System.exit(0);
+  }
+
+  private static void send(final HttpClient client, final HttpRequest request, final long end,
+      final AtomicLong completed, final AtomicLong failed, final CountDownLatch done)
+  {
+    client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, e) -> {
+      if (e == null && response.statusCode() == 200)
+      {
+        completed.incrementAndGet();
+      }
+      else
+      {
+        failed.incrementAndGet();
+      }
+      if (System.nanoTime() < end)
+      {
+        send(client, request, end, completed, failed, done);
+      }
+      else
+      {
+        done.countDown();
+      }
+    });
+  }
+
+  /*
+   * Slow NRS stand-in, answers after delay without holding a thread.
+   */
+  private static Server upstream(final long delay, int backlog) throws Exception
+  {
+    final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("bench-upstream"));
+    Server server = server(new QueuedThreadPool(16, 8), backlog);
+    server.setHandler(new AbstractHandler()
+    {
+      @Override
+      public void handle(String target, Request baseRequest, HttpServletRequest req, final HttpServletResponse resp)
+      {
+        baseRequest.setHandled(true);
+        final AsyncContext context = req.startAsync();
+        timer.schedule(() -> {
+          write(resp, "{}");
+          context.complete();
+        }, delay, TimeUnit.MILLISECONDS);
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  private static Server api(boolean virtual, int inFlight, final String upstream) throws Exception
+  {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(inFlight);
+    connectionManager.setDefaultMaxPerRoute(inFlight);
+    final CloseableHttpClient client = HttpClients.custom().setConnectionManager(connectionManager).build();
+
+    final ExecutorService executor = virtual ? Executors.newThreadPerTaskExecutor(ThreadMode.factory("api", true)) : null;
+    //a blocked request holds its platform thread, so platform mode needs one per request in flight
+    Server server = server(new QueuedThreadPool(virtual ? 16 : inFlight + 16, 8), inFlight);
+    server.setHandler(new AbstractHandler()
+    {
+      @Override
+      public void handle(String target, Request baseRequest, HttpServletRequest req, final HttpServletResponse resp)
+      {
+        baseRequest.setHandled(true);
+        if (executor == null)
+        {
+          call(client, upstream, resp);
+          return;
+        }
+        final AsyncContext context = req.startAsync();
+        context.setTimeout(0);
+        executor.execute(() -> {
+          call(client, upstream, resp);
+          context.complete();
+        });
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  private static Server server(QueuedThreadPool pool, int backlog)
+  {
+    Server server = new Server(pool);
+    ServerConnector connector = new ServerConnector(server);
+    connector.setHost("127.0.0.1");
+    connector.setAcceptQueueSize(backlog);
+    server.addConnector(connector);
+    return server;
+  }
+
+  private static int port(Server server)
+  {
+    return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+  }
+
+  private static void call(CloseableHttpClient client, String upstream, HttpServletResponse resp)
+  {
+    try (CloseableHttpResponse response = client.execute(new HttpPost(upstream)))
+    {
+      write(resp, EntityUtils.toString(response.getEntity(), "UTF-8"));
+    }
+    catch (IOException e)
+    {
+      resp.setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+    }
+  }
+
+  private static void write(HttpServletResponse resp, String content)
+  {
+    try
+    {
+      resp.setContentType("text/plain; charset=UTF-8");
+      resp.getWriter().write(content);
+    }
+    catch (IOException e)
+    {
+    }
+  }
+
+  /*
+   * Live heap after GC plus committed thread stacks.
+   */
+  private static long memory() throws InterruptedException
+  {
+    System.gc();
+    Thread.sleep(200);
+    long memory = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    long stacks = threadStacks();
+    return stacks < 0 ? memory : memory + stacks;
+  }
+
+  /*
+   * Committed memory of the Thread category of native memory tracking, -1 when it is off.
+   */
+  private static long threadStacks()
+  {
+    try
+    {
+      String summary = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+          new ObjectName("com.sun.management:type=DiagnosticCommand"), "vmNativeMemory",
+          new Object[] { new String[] { "summary" } }, new String[] { String[].class.getName() });
+      Matcher m = Pattern.compile("- +Thread \\(reserved=\\d+KB, committed=(\\d+)KB\\)").matcher(summary);
+      return m.find() ? Long.parseLong(m.group(1)) * 1024 : -1;
+    }
+    catch (Exception e)
+    {
+      return -1;
+    }
+  }
+}
@@ -15,9 +15,18 @@ import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.servlets.CrossOriginFilter;
+import org.eclipse.jetty.servlets.AsyncGzipFilter;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import blackyblack.http.APITestServlet;
+import blackyblack.http.BatchHandler;
+import blackyblack.http.EventsServlet;
+import blackyblack.http.MetricsServlet;
+import blackyblack.quack.BlockPoller;
+import blackyblack.quack.SwapJournal;
+import blackyblack.quack.SwapWatcher;
 import nrs.util.Logger;
 
 public class Application
@@ -174,6 +183,7 @@ public class Application
   }
 
   public static INxtApi api = new NxtApi();
+  public static INxtApiAsync asyncApi = new NxtApiAsync();
   public static Boolean terminated = false;
 
   public static void main(String[] args)
@@ -186,7 +196,9 @@ public class Application
     Logger.logMessage("Quack " + version);
 
     terminated = false;
-    Server apiServer = new Server();
+    //requests waiting for NRS do not hold a server thread, a small pool serves many of them
+    int threads = getIntProperty("blackyblack.apiServerThreads");
+    Server apiServer = threads > 0 ? new Server(new QueuedThreadPool(threads, Math.min(8, threads))) : new Server();
     ServerConnector connector = new ServerConnector(apiServer);
     connector.setPort(port);
     connector.setHost(host);
@@ -196,7 +208,11 @@ public class Application
 
     HandlerList apiHandlers = new HandlerList();
     ServletContextHandler apiHandler = new ServletContextHandler();
-    apiHandler.addServlet(APITestServlet.class, "/api");
+    ServletHolder servletHolder = apiHandler.addServlet(APITestServlet.class, "/api");
+    servletHolder.setAsyncSupported(true);
+    ServletHolder eventsHolder = apiHandler.addServlet(EventsServlet.class, "/events");
+    eventsHolder.setAsyncSupported(true);
+    apiHandler.addServlet(MetricsServlet.class, "/metrics");
 
     // allow CORS
     if (getBooleanProperty("blackyblack.apiServerCORS"))
@@ -206,9 +222,22 @@ public class Application
       filterHolder.setAsyncSupported(true);
     }
 
+    //scan answers carry whole NRS transactions and compress well
+    if (getBooleanProperty("blackyblack.apiServerCompression"))
+    {
+      FilterHolder gzipFilterHolder = apiHandler.addFilter(AsyncGzipFilter.class, "/api", null);
+      gzipFilterHolder.setInitParameter("methods", "GET,POST");
+      gzipFilterHolder.setInitParameter("minGzipSize", String.valueOf(getIntProperty("blackyblack.apiServerCompressionMinSize")));
+      gzipFilterHolder.setAsyncSupported(true);
+    }
+
     apiHandlers.addHandler(apiHandler);
     apiServer.setHandler(apiHandlers);
     apiServer.setStopAtShutdown(true);
+
+    //swaps in flight are known before first request
+    SwapJournal.instance.open();
+
     try
     {
       apiServer.start();
@@ -221,6 +250,11 @@ public class Application
 
     Logger.logMessage("Started API server at " + host + ":" + port);
 
+    NrsPool.instance.start();
+    BlockchainStatusCache.instance.start();
+    BlockPoller.instance.start();
+    SwapWatcher.instance.start();
+
     while (true)
     {
       if (terminated)
@@ -288,6 +322,16 @@ public class Application
       Logger.logMessage("Could not stop API server", e);
     }
 
+    SwapWatcher.instance.stop();
+    BlockPoller.instance.stop();
+    BlockchainStatusCache.instance.stop();
+    NrsPool.instance.stop();
+    TransactionPager.instance.shutdown();
+    BatchHandler.instance.shutdown();
+    EventsServlet.shutdown();
+    NrsClient.instance.shutdown();
+    SwapJournal.instance.close();
+
     Logger.logMessage("Quack stopped");
   }
 
@@ -0,0 +1,203 @@
+package blackyblack;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.simple.JSONObject;
+
+import nrs.NxtException.NxtApiException;
+import nrs.util.Convert;
+import nrs.util.Logger;
+
+/*
+ * Keeps last getBlockchainStatus answer in memory.
+ * Status is refreshed in background and on demand when older than TTL.
+ * Block events can push fresh status with update().
+ */
+public class BlockchainStatusCache
+{
+  public static final BlockchainStatusCache instance = new BlockchainStatusCache();
+
+  private final INxtApi source = new NxtApi();
+  private final INxtApiAsync asyncSource = new NxtApiAsync();
+  private final long ttl;
+  private final long refreshInterval;
+  //held while NRS answers, a virtual thread waiting for it unmounts instead of pinning its carrier
+  private final ReentrantLock refreshLock = new ReentrantLock();
+
+  private volatile JSONObject status;
+  private volatile long updated;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong refreshes = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  private ScheduledExecutorService scheduler;
+
+  private BlockchainStatusCache()
+  {
+    ttl = Application.getIntProperty("blackyblack.statusCacheTtl");
+    refreshInterval = Application.getIntProperty("blackyblack.statusRefreshInterval");
+  }
+
+  public synchronized void start()
+  {
+    if (scheduler != null || refreshInterval <= 0)
+      return;
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("status-refresh"));
+    scheduler.scheduleWithFixedDelay(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          refresh();
+        }
+        catch (Exception e)
+        {
+          Logger.logDebugMessage("Blockchain status refresh failed: " + e.getMessage());
+        }
+      }
+    }, 0, refreshInterval, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop()
+  {
+    if (scheduler == null)
+      return;
+    scheduler.shutdownNow();
+    scheduler = null;
+  }
+
+  public JSONObject getStatus() throws NxtApiException
+  {
+    JSONObject current = status;
+    if (current != null && System.currentTimeMillis() - updated < ttl)
+    {
+      hits.incrementAndGet();
+      return current;
+    }
+
+    misses.incrementAndGet();
+    refreshLock.lock();
+    try
+    {
+      //other thread could refresh while we were waiting
+      current = status;
+      if (current != null && System.currentTimeMillis() - updated < ttl)
+      {
+        return current;
+      }
+      return refresh();
+    }
+    finally
+    {
+      refreshLock.unlock();
+    }
+  }
+
+  public Long getHeight() throws NxtApiException
+  {
+    return NxtApi.currentBlock(getStatus());
+  }
+
+  /*
+   * Height without blocking: cached when fresh, otherwise completed by the NRS answer.
+   * Concurrent misses are not merged, each asks NRS on its own.
+   */
+  public CompletableFuture<Long> getHeightAsync()
+  {
+    JSONObject current = status;
+    if (current != null && System.currentTimeMillis() - updated < ttl)
+    {
+      hits.incrementAndGet();
+      return CompletableFuture.completedFuture(NxtApi.currentBlock(current));
+    }
+
+    misses.incrementAndGet();
+    refreshes.incrementAndGet();
+    return asyncSource.getBlockchainStatus().whenComplete((newStatus, e) -> {
+      if (e != null)
+      {
+        failures.incrementAndGet();
+        return;
+      }
+      update(newStatus);
+    }).thenApply(newStatus -> NxtApi.currentBlock(newStatus));
+  }
+
+  /*
+   * Accepts status from block events. Older heights are ignored.
+   */
+  public void update(JSONObject newStatus)
+  {
+    if (newStatus == null)
+      return;
+
+    refreshLock.lock();
+    try
+    {
+      JSONObject current = status;
+      if (current != null && NxtApi.currentBlock(newStatus) < NxtApi.currentBlock(current))
+        return;
+      status = newStatus;
+      updated = System.currentTimeMillis();
+    }
+    finally
+    {
+      refreshLock.unlock();
+    }
+  }
+
+  private JSONObject refresh() throws NxtApiException
+  {
+    refreshes.incrementAndGet();
+    JSONObject newStatus = null;
+    try
+    {
+      newStatus = source.getBlockchainStatus();
+    }
+    catch (NxtApiException e)
+    {
+      failures.incrementAndGet();
+      throw e;
+    }
+
+    if (newStatus == null)
+    {
+      failures.incrementAndGet();
+      throw new NxtApiException("no blockchain status from NRS");
+    }
+
+    update(newStatus);
+    return newStatus;
+  }
+
+  @SuppressWarnings("unchecked")
+  public JSONObject getStats()
+  {
+    long h = hits.get();
+    long m = misses.get();
+    JSONObject o = new JSONObject();
+    o.put("hits", h);
+    o.put("misses", m);
+    o.put("hitRatio", h + m == 0 ? 0.0 : (double) h / (h + m));
+    o.put("refreshes", refreshes.get());
+    o.put("failures", failures.get());
+
+    JSONObject current = status;
+    if (current != null)
+    {
+      o.put("height", Convert.nullToZero((Long) current.get("numberOfBlocks")));
+      o.put("staleness", System.currentTimeMillis() - updated);
+    }
+    return o;
+  }
+}
@@ -0,0 +1,23 @@
+package blackyblack;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DaemonThreadFactory implements ThreadFactory
+{
+  private final String name;
+  private final AtomicInteger count = new AtomicInteger();
+
+  public DaemonThreadFactory(String name)
+  {
+    this.name = name;
+  }
+
+  @Override
+  public Thread newThread(Runnable r)
+  {
+    Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+    t.setDaemon(true);
+    return t;
+  }
+}
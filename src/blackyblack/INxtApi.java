@@ -41,6 +41,8 @@ public interface INxtApi
   
   public JSONObject getAsset(String txid) throws NxtApiException;
   
+  public JSONObject getBlock(int height) throws NxtApiException;
+  
   public String getUnsignedBytes(JSONObject tx);
   
   public String getFullHash(JSONObject tx);
@@ -56,5 +58,11 @@ public interface INxtApi
   
   public List<JSONObject> getTransactions(String account, int timelimit) throws NxtApiException;
   
+  public List<JSONObject> getTransactions(String account, int timelimit,
+      TransactionFilter.Acceptor acceptor) throws NxtApiException;
+  
+  public void getTransactions(String account, int timelimit,
+      TransactionFilter.Acceptor acceptor, TransactionPager.Listener listener) throws NxtApiException;
+  
   public JSONObject parseTransaction(String data) throws NxtApiException;
 }
@@ -0,0 +1,60 @@
+package blackyblack;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.json.simple.JSONObject;
+
+/*
+ * Non-blocking counterpart of INxtApi.
+ * Futures fail with NxtApiException (wrapped in CompletionException when chained).
+ * Local helpers (now, getUnsignedBytes, getFullHash) do not touch NRS and stay in INxtApi.
+ */
+public interface INxtApiAsync
+{
+  public CompletableFuture<String> pay(String recipient, String secretPhrase, Long amount,
+      String message, String messageEncrypt);
+
+  public CompletableFuture<String> tell(String recipient, String secretPhrase,
+      String message, String messageEncrypt);
+
+  public CompletableFuture<String> payAsset(String recipient, String secretPhrase, Long amount,
+      String message, String messageEncrypt, String assetId);
+
+  public CompletableFuture<String> readEncryptedMessage(String txid, String secretPhrase);
+
+  public CompletableFuture<List<String>> getTransactionIds(String account,
+      Boolean pays, Boolean tells,
+      int timelimit);
+
+  public CompletableFuture<JSONObject> getTransaction(String txid);
+
+  public CompletableFuture<String> transactionSafe(String recipient, String secretPhrase,
+      String message, String messageEncrypt, long amountNQT);
+
+  public CompletableFuture<String> assetTransferSafe(String recipient, String secretPhrase,
+      String message, String messageEncrypt, String assetId, Long assetNQT);
+
+  public CompletableFuture<String> getPublicKey(String account);
+
+  public CompletableFuture<JSONObject> getBlockchainStatus();
+
+  public CompletableFuture<Long> getCurrentBlock();
+
+  public CompletableFuture<JSONObject> getAsset(String txid);
+
+  public CompletableFuture<JSONObject> getBlock(int height);
+
+  public CompletableFuture<JSONObject> createPhasedPayment(String recipient, String secretPhrase, String fullHash,
+      int deadline, long finishheight, long payment, String message, String encryptedMessage);
+
+  public CompletableFuture<JSONObject> createPhasedAsset(String recipient, String secretPhrase, String fullHash,
+      int deadline, long finishheight, String assetId, Long qty, String message, String encryptedMessage);
+
+  public CompletableFuture<JSONObject> createPhasedMonetary(String recipient, String secretPhrase, String fullHash,
+      int deadline, long finishheight, String assetId, Long qty, String message, String encryptedMessage);
+
+  public CompletableFuture<List<JSONObject>> getTransactions(String account, int timelimit);
+
+  public CompletableFuture<JSONObject> parseTransaction(String data);
+}
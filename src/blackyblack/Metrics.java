@@ -0,0 +1,283 @@
+package blackyblack;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import nrs.util.Logger;
+
+/*
+ * Call counts, errors and latency histograms by name, in three groups:
+ * api - requestType of /api, nrs - requestType sent to NRS, phase - swap steps of QuackApp.
+ * Recording is lock-free and allocates nothing once the timer of a name exists.
+ * Timers are read on /metrics in Prometheus text format and over JMX
+ * as blackyblack:type=Metrics,group=...,name=...
+ */
+public class Metrics
+{
+  public static final Metrics api = new Metrics("api", "requestType");
+  public static final Metrics nrs = new Metrics("nrs", "requestType");
+  public static final Metrics phase = new Metrics("phase", "phase");
+
+  private static final Metrics[] groups = { api, nrs, phase };
+  private static final boolean jmx = Application.getBooleanProperty("blackyblack.metricsJmx");
+
+  private static final double[] quantiles = { 0.5, 0.9, 0.99, 0.999 };
+
+  public interface TimerMBean
+  {
+    long getCount();
+
+    long getErrors();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+  }
+
+  /*
+   * Log-linear histogram of nanoseconds, 16 buckets per power of two, values within 1/16 of the real one.
+   */
+  public static final class Timer implements TimerMBean
+  {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos, boolean error)
+    {
+      if (nanos < 0)
+      {
+        nanos = 0;
+      }
+      buckets.incrementAndGet(bucket(nanos));
+      count.increment();
+      sum.add(nanos);
+      if (error)
+      {
+        errors.increment();
+      }
+      long m = max.get();
+      while (nanos > m && !max.compareAndSet(m, nanos))
+      {
+        m = max.get();
+      }
+    }
+
+    static int bucket(long v)
+    {
+      if (v < SUB)
+        return (int) v;
+      int e = 63 - Long.numberOfLeadingZeros(v);
+      return (e - SUB_BITS + 1) * SUB + (int) ((v >>> (e - SUB_BITS)) & (SUB - 1));
+    }
+
+    static long lowest(int bucket)
+    {
+      if (bucket < SUB)
+        return bucket;
+      int e = bucket / SUB + SUB_BITS - 1;
+      return (1L << e) + ((long) (bucket % SUB) << (e - SUB_BITS));
+    }
+
+    /*
+     * Highest value of the bucket holding quantile q, nanoseconds.
+     */
+    public long quantile(double q)
+    {
+      long[] counts = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++)
+      {
+        counts[i] = buckets.get(i);
+        total += counts[i];
+      }
+      if (total == 0)
+        return 0;
+      long rank = Math.max(1, (long) Math.ceil(q * total));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++)
+      {
+        seen += counts[i];
+        if (seen >= rank)
+        {
+          long highest = i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE;
+          return Math.min(highest, max.get());
+        }
+      }
+      return max.get();
+    }
+
+    @Override
+    public long getCount()
+    {
+      return count.sum();
+    }
+
+    @Override
+    public long getErrors()
+    {
+      return errors.sum();
+    }
+
+    public long getSum()
+    {
+      return sum.sum();
+    }
+
+    @Override
+    public double getMeanMillis()
+    {
+      long n = count.sum();
+      return n == 0 ? 0 : sum.sum() / 1e6 / n;
+    }
+
+    @Override
+    public double getP50Millis()
+    {
+      return quantile(0.5) / 1e6;
+    }
+
+    @Override
+    public double getP90Millis()
+    {
+      return quantile(0.9) / 1e6;
+    }
+
+    @Override
+    public double getP99Millis()
+    {
+      return quantile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getP999Millis()
+    {
+      return quantile(0.999) / 1e6;
+    }
+
+    @Override
+    public double getMaxMillis()
+    {
+      return max.get() / 1e6;
+    }
+  }
+
+  private final String group;
+  private final String label;
+  private final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+  private Metrics(String group, String label)
+  {
+    this.group = group;
+    this.label = label;
+  }
+
+  public Timer timer(String name)
+  {
+    if (name == null)
+    {
+      name = "unknown";
+    }
+    Timer timer = timers.get(name);
+    if (timer != null)
+      return timer;
+    timer = new Timer();
+    Timer old = timers.putIfAbsent(name, timer);
+    if (old != null)
+      return old;
+    register(name, timer);
+    return timer;
+  }
+
+  /*
+   * Records time since start, a System.nanoTime() value.
+   */
+  public void record(String name, long start, boolean error)
+  {
+    timer(name).record(System.nanoTime() - start, error);
+  }
+
+  /*
+   * Records time from start until future completes, failed futures count as errors.
+   */
+  public <T> CompletableFuture<T> time(final String name, final long start, CompletableFuture<T> future)
+  {
+    return future.whenComplete((result, e) -> record(name, start, e != null));
+  }
+
+  private void register(String name, Timer timer)
+  {
+    if (!jmx)
+      return;
+    try
+    {
+      ObjectName objectName = new ObjectName("blackyblack:type=Metrics,group=" + group + ",name=" + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(timer, TimerMBean.class), objectName);
+    }
+    catch (JMException e)
+    {
+      Logger.logDebugMessage("Could not register metrics of " + group + " " + name + ": " + e.getMessage());
+    }
+  }
+
+  /*
+   * All timers in Prometheus text format, latencies as summaries in seconds.
+   */
+  public static void writeText(Writer out) throws IOException
+  {
+    for (Metrics m : groups)
+    {
+      Map<String, Timer> sorted = new TreeMap<String, Timer>(m.timers);
+      String metric = "quack_" + m.group + "_seconds";
+      out.write("# TYPE " + metric + " summary\n");
+      for (Map.Entry<String, Timer> e : sorted.entrySet())
+      {
+        String labels = m.label + "=\"" + escape(e.getKey()) + "\"";
+        Timer timer = e.getValue();
+        for (double q : quantiles)
+        {
+          out.write(metric + "{" + labels + ",quantile=\"" + q + "\"} " + timer.quantile(q) / 1e9 + "\n");
+        }
+        out.write(metric + "_sum{" + labels + "} " + timer.getSum() / 1e9 + "\n");
+        out.write(metric + "_count{" + labels + "} " + timer.getCount() + "\n");
+      }
+      String errors = "quack_" + m.group + "_errors_total";
+      out.write("# TYPE " + errors + " counter\n");
+      for (Map.Entry<String, Timer> e : sorted.entrySet())
+      {
+        out.write(errors + "{" + m.label + "=\"" + escape(e.getKey()) + "\"} " + e.getValue().getErrors() + "\n");
+      }
+    }
+  }
+
+  private static String escape(String s)
+  {
+    return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
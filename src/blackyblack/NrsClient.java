@@ -0,0 +1,848 @@
+package blackyblack;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import nrs.util.Logger;
+
+/*
+ * Shared transport for all NRS calls.
+ * Connections are pooled and kept alive between requests, so a swap
+ * with several legs reuses the same sockets instead of opening new ones.
+ * Asynchronous requests go through non-blocking client running on a small
+ * event loop pool, so waiting for NRS does not hold a thread per request.
+ * They are held to the same connection limits as the pool, waiting ones are queued.
+ * Every request goes to the node NrsPool selects. Reads move to the next node
+ * on any I/O error, other requests only when connection could not be made,
+ * so a transaction is never created twice. When all nodes failed a read,
+ * it is repeated after a backoff. Nodes with open circuit breakers get no requests. Slow reads are hedged with
+ * a second node after a percentile of recent response times of that request type.
+ */
+public class NrsClient
+{
+  public static final NrsClient instance = new NrsClient();
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final CloseableHttpClient httpclient;
+  private final long keepAlive;
+  private final int readTimeout;
+  private final ExecutorService eventLoop;
+  private final HttpClient asyncClient;
+  private final int connectTimeout;
+  private final int maxPerRoute;
+  private final AsyncLimit asyncTotal;
+  private final ConcurrentHashMap<NrsNode, AsyncLimit> asyncPerNode = new ConcurrentHashMap<NrsNode, AsyncLimit>();
+  private final ExecutorService hedgeExecutor;
+
+  private final AtomicLong hedged = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+
+  private NrsClient()
+  {
+    keepAlive = Application.getIntProperty("blackyblack.nrsKeepAlive");
+    int maxConnections = Math.max(1, Application.getIntProperty("blackyblack.nrsMaxConnections"));
+    maxPerRoute = Math.min(maxConnections, Math.max(1, Application.getIntProperty("blackyblack.nrsMaxConnectionsPerRoute")));
+    connectTimeout = Application.getIntProperty("blackyblack.nrsConnectTimeout");
+    readTimeout = Application.getIntProperty("blackyblack.nrsReadTimeout");
+
+    //connections are never kept longer than keep-alive time, even if NRS asks for more
+    connectionManager = new PoolingHttpClientConnectionManager(keepAlive > 0 ? keepAlive : -1, TimeUnit.MILLISECONDS);
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+    connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+        .setTcpNoDelay(true)
+        .setSoKeepAlive(true)
+        .setSoTimeout(readTimeout)
+        .build());
+
+    RequestConfig requestConfig = RequestConfig.custom()
+        .setConnectTimeout(connectTimeout)
+        .setConnectionRequestTimeout(connectTimeout)
+        .setSocketTimeout(readTimeout)
+        .build();
+
+    httpclient = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(requestConfig)
+        .setKeepAliveStrategy(new KeepAliveStrategy())
+        .build();
+
+    //idle time of async connections is a system property read when the first client is built
+    if (keepAlive > 0 && System.getProperty("jdk.httpclient.keepalive.timeout") == null)
+    {
+      System.setProperty("jdk.httpclient.keepalive.timeout", String.valueOf(Math.max(1, keepAlive / 1000)));
+    }
+    asyncTotal = new AsyncLimit(maxConnections);
+    int asyncThreads = Math.max(1, Application.getIntProperty("blackyblack.nrsAsyncThreads"));
+    eventLoop = Executors.newFixedThreadPool(asyncThreads, ThreadMode.factory("nrs-async"));
+    HttpClient.Builder asyncBuilder = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .executor(eventLoop);
+    if (connectTimeout > 0)
+    {
+      asyncBuilder.connectTimeout(Duration.ofMillis(connectTimeout));
+    }
+    asyncClient = asyncBuilder.build();
+
+    hedgeExecutor = Executors.newCachedThreadPool(ThreadMode.factory("nrs-hedge"));
+  }
+
+  private HttpPost httpPost(NrsNode node, List<BasicNameValuePair> fields) throws IOException
+  {
+    UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
+    HttpPost http = new HttpPost(node.api);
+    http.setHeader("Origin", node.host);
+    http.setEntity(entity);
+    return http;
+  }
+
+  static String requestType(List<BasicNameValuePair> fields)
+  {
+    for (BasicNameValuePair field : fields)
+    {
+      if ("requestType".equals(field.getName()))
+        return field.getValue();
+    }
+    return null;
+  }
+
+  //only reads are repeated on other nodes and hedged, never createPhased* or broadcastTransaction
+  static boolean isRead(String requestType)
+  {
+    return requestType != null && (requestType.startsWith("get") || requestType.equals("parseTransaction"));
+  }
+
+  //request surely did not reach NRS
+  private static boolean notConnected(Throwable e)
+  {
+    return e instanceof ConnectException || e instanceof ConnectTimeoutException
+        || e instanceof ConnectionPoolTimeoutException || e instanceof UnknownHostException
+        || e instanceof HttpConnectTimeoutException;
+  }
+
+  private static boolean canFailover(Throwable e, boolean read, Set<NrsNode> tried)
+  {
+    return tried.size() < NrsPool.instance.size() && (notConnected(e) || (read && e instanceof IOException));
+  }
+
+  /*
+   * What to do after a failed request: 0 to try an untried node now, wait in milliseconds
+   * before trying all nodes again, -1 to give up. Only reads are tried again after a wait,
+   * with exponential backoff up to nrsRetries times. Open breakers fail at once.
+   */
+  private static long retryDelay(Throwable e, boolean read, Set<NrsNode> tried, int retry)
+  {
+    if (e instanceof NrsPool.CircuitOpenException)
+      return -1;
+    if (canFailover(e, read, tried))
+      return 0;
+    if (read && e instanceof IOException && retry < NrsPool.instance.getRetries())
+      return NrsPool.instance.backoff(retry);
+    return -1;
+  }
+
+  private static void sleep(long millis) throws InterruptedIOException
+  {
+    try
+    {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting to repeat NRS request");
+    }
+  }
+
+  /*
+   * One request to one node, done when response headers arrive.
+   * A hedged attempt that lost the race is aborted, response arriving after that is closed.
+   */
+  private class Attempt implements Callable<Attempt>
+  {
+    final NrsNode node;
+    final String requestType;
+    final HttpPost post;
+    final long start = System.currentTimeMillis();
+    private CloseableHttpResponse response;
+    private boolean lost;
+    private boolean failed;
+
+    Attempt(NrsNode node, String requestType, List<BasicNameValuePair> fields) throws IOException
+    {
+      this.node = node;
+      this.requestType = requestType;
+      this.post = httpPost(node, fields);
+    }
+
+    @Override
+    public Attempt call() throws IOException
+    {
+      CloseableHttpResponse r;
+      try
+      {
+        r = httpclient.execute(post);
+      }
+      catch (IOException e)
+      {
+        if (fail())
+        {
+          NrsPool.instance.failure(node, e);
+        }
+        throw e;
+      }
+      NrsPool.instance.sample(requestType, System.currentTimeMillis() - start);
+      if (!deliver(r))
+      {
+        closeQuietly(r);
+        throw new IOException("hedged request to " + node + " lost");
+      }
+      return this;
+    }
+
+    private synchronized boolean deliver(CloseableHttpResponse r)
+    {
+      if (lost)
+        return false;
+      response = r;
+      return true;
+    }
+
+    private synchronized boolean fail()
+    {
+      failed = true;
+      return !lost;
+    }
+
+    synchronized boolean isFailed()
+    {
+      return failed && !lost;
+    }
+
+    synchronized void lose()
+    {
+      lost = true;
+      //a lost attempt gets no verdict, its probe slot must not stay taken
+      NrsPool.instance.release(node);
+      post.abort();
+      if (response != null)
+      {
+        closeQuietly(response);
+        response = null;
+      }
+    }
+
+    synchronized CloseableHttpResponse getResponse()
+    {
+      return response;
+    }
+  }
+
+  private static void closeQuietly(CloseableHttpResponse response)
+  {
+    try
+    {
+      response.close();
+    }
+    catch (IOException e)
+    {
+      //connection is dropped anyway
+    }
+  }
+
+  /*
+   * Sends request to selected node. Reads are hedged: if the node has not answered
+   * within the hedge delay, the same request goes to the next best node and
+   * the first answer wins. Nodes that failed are added to tried.
+   */
+  private Attempt open(List<BasicNameValuePair> fields, String requestType, Set<NrsNode> tried) throws IOException
+  {
+    NrsNode node = NrsPool.instance.acquire(tried);
+    long delay = isRead(requestType) ? NrsPool.instance.hedgeDelay(requestType) : -1;
+    if (delay < 0)
+    {
+      try
+      {
+        return new Attempt(node, requestType, fields).call();
+      }
+      catch (IOException e)
+      {
+        tried.add(node);
+        throw e;
+      }
+    }
+
+    List<Attempt> attempts = new ArrayList<Attempt>(2);
+    CompletionService<Attempt> service = new ExecutorCompletionService<Attempt>(hedgeExecutor);
+    Attempt first = new Attempt(node, requestType, fields);
+    attempts.add(first);
+    service.submit(first);
+    int running = 1;
+    IOException error = null;
+    try
+    {
+      Future<Attempt> done = service.poll(delay, TimeUnit.MILLISECONDS);
+      if (done == null)
+      {
+        Set<NrsNode> others = new HashSet<NrsNode>(tried);
+        others.add(node);
+        NrsNode second = NrsPool.instance.selectAdmitted(others);
+        if (second != null)
+        {
+          hedged.incrementAndGet();
+          Attempt hedge = new Attempt(second, requestType, fields);
+          attempts.add(hedge);
+          service.submit(hedge);
+          running++;
+        }
+      }
+
+      while (running > 0)
+      {
+        if (done == null)
+        {
+          done = service.take();
+        }
+        running--;
+        try
+        {
+          Attempt winner = done.get();
+          for (Attempt a : attempts)
+          {
+            if (a != winner)
+            {
+              a.lose();
+            }
+          }
+          if (winner != first)
+          {
+            hedgeWins.incrementAndGet();
+          }
+          return winner;
+        }
+        catch (ExecutionException e)
+        {
+          Throwable cause = e.getCause();
+          error = cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+        }
+        done = null;
+      }
+      throw error;
+    }
+    catch (InterruptedException e)
+    {
+      for (Attempt a : attempts)
+      {
+        a.lose();
+      }
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for NRS");
+    }
+    finally
+    {
+      for (Attempt a : attempts)
+      {
+        if (a.isFailed())
+        {
+          tried.add(a.node);
+        }
+      }
+    }
+  }
+
+  public String post(List<BasicNameValuePair> fields) throws IOException
+  {
+    String requestType = requestType(fields);
+    boolean read = isRead(requestType);
+    Set<NrsNode> tried = new HashSet<NrsNode>();
+    int retry = 0;
+    long started = System.nanoTime();
+    boolean error = true;
+    try
+    {
+      while (true)
+      {
+        Attempt attempt = null;
+        try
+        {
+          attempt = open(fields, requestType, tried);
+          String content;
+          try (CloseableHttpResponse response = attempt.getResponse())
+          {
+            //reading the entity to the end returns connection to the pool
+            content = EntityUtils.toString(response.getEntity(), "UTF-8");
+          }
+          error = false;
+          NrsPool.instance.success(attempt.node, System.currentTimeMillis() - attempt.start);
+          return content;
+        }
+        catch (IOException e)
+        {
+          if (attempt != null)
+          {
+            NrsPool.instance.failure(attempt.node, e);
+            tried.add(attempt.node);
+          }
+          long wait = retryDelay(e, read, tried, retry);
+          if (wait < 0)
+            throw e;
+          if (wait > 0)
+          {
+            retry++;
+            tried.clear();
+            sleep(wait);
+          }
+        }
+      }
+    }
+    finally
+    {
+      Metrics.nrs.record(requestType, started, error);
+    }
+  }
+
+  private String post(NrsNode node, List<BasicNameValuePair> fields) throws IOException
+  {
+    try (CloseableHttpResponse response = httpclient.execute(httpPost(node, fields)))
+    {
+      //reading the entity to the end returns connection to the pool
+      return EntityUtils.toString(response.getEntity(), "UTF-8");
+    }
+  }
+
+  public JSONObject request(List<BasicNameValuePair> fields) throws IOException, ParseException
+  {
+    String content = post(fields);
+    JSONParser parser = new JSONParser();
+    return (JSONObject) parser.parse(content);
+  }
+
+  /*
+   * Request to the given node only, used by health checks.
+   */
+  JSONObject request(NrsNode node, List<BasicNameValuePair> fields) throws IOException, ParseException
+  {
+    String content = post(node, fields);
+    JSONParser parser = new JSONParser();
+    return (JSONObject) parser.parse(content);
+  }
+
+  /*
+   * Feeds response to handler while it is being received, without keeping the whole body.
+   */
+  public void request(List<BasicNameValuePair> fields, ContentHandler handler) throws IOException, ParseException
+  {
+    String requestType = requestType(fields);
+    boolean read = isRead(requestType);
+    Set<NrsNode> tried = new HashSet<NrsNode>();
+    int retry = 0;
+    long started = System.nanoTime();
+    boolean error = true;
+    try
+    {
+      while (true)
+      {
+        Attempt attempt = null;
+        boolean settled = false;
+        try
+        {
+          attempt = open(fields, requestType, tried);
+          try (CloseableHttpResponse response = attempt.getResponse())
+          {
+            parse(response, handler);
+          }
+          error = false;
+          settled = true;
+          NrsPool.instance.success(attempt.node, System.currentTimeMillis() - attempt.start);
+          return;
+        }
+        catch (IOException e)
+        {
+          if (attempt != null)
+          {
+            settled = true;
+            NrsPool.instance.failure(attempt.node, e);
+            tried.add(attempt.node);
+          }
+          //handler may have seen part of the response, then only a failed connect is safe to repeat
+          long wait = retryDelay(e, read && attempt == null, tried, retry);
+          if (wait < 0)
+            throw e;
+          if (wait > 0)
+          {
+            retry++;
+            tried.clear();
+            sleep(wait);
+          }
+        }
+        finally
+        {
+          //parse or handler error says nothing about the node, only free its probe slot
+          if (attempt != null && !settled)
+          {
+            NrsPool.instance.release(attempt.node);
+          }
+        }
+      }
+    }
+    finally
+    {
+      Metrics.nrs.record(requestType, started, error);
+    }
+  }
+
+  private void parse(CloseableHttpResponse response, ContentHandler handler) throws IOException, ParseException
+  {
+    HttpEntity entity = response.getEntity();
+    if (entity == null)
+    {
+      throw new IOException("empty response from NRS");
+    }
+    Charset charset = ContentType.getOrDefault(entity).getCharset();
+    try (Reader reader = new InputStreamReader(entity.getContent(), charset != null ? charset : StandardCharsets.UTF_8))
+    {
+      JSONParser parser = new JSONParser();
+      parser.parse(reader, handler);
+    }
+  }
+
+  public CompletableFuture<String> postAsync(List<BasicNameValuePair> fields)
+  {
+    String requestType = requestType(fields);
+    return Metrics.nrs.time(requestType, System.nanoTime(),
+        postAsync(fields, requestType, ConcurrentHashMap.<NrsNode> newKeySet(), 0));
+  }
+
+  private CompletableFuture<String> postAsync(final List<BasicNameValuePair> fields, final String requestType,
+      final Set<NrsNode> tried, final int retry)
+  {
+    final NrsNode node;
+    try
+    {
+      node = NrsPool.instance.acquire(tried);
+    }
+    catch (NrsPool.CircuitOpenException e)
+    {
+      CompletableFuture<String> failed = new CompletableFuture<String>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    long delay = isRead(requestType) ? NrsPool.instance.hedgeDelay(requestType) : -1;
+    CompletableFuture<String> attempt = delay < 0 ? attemptAsync(node, requestType, fields, tried)
+        : hedgeAsync(node, delay, requestType, fields, tried);
+    return attempt.handle((content, error) -> {
+      if (error == null)
+        return CompletableFuture.completedFuture(content);
+      Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      long wait = retryDelay(cause, isRead(requestType), tried, retry);
+      if (wait == 0)
+        return postAsync(fields, requestType, tried, retry);
+      if (wait > 0)
+      {
+        tried.clear();
+        return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(wait, TimeUnit.MILLISECONDS, eventLoop))
+            .thenCompose(none -> postAsync(fields, requestType, tried, retry + 1));
+      }
+      CompletableFuture<String> failed = new CompletableFuture<String>();
+      failed.completeExceptionally(cause);
+      return failed;
+    }).thenCompose(future -> future);
+  }
+
+  /*
+   * Asynchronous hedge. The losing request can not be aborted, its answer only updates node latency.
+   */
+  private CompletableFuture<String> hedgeAsync(final NrsNode node, long delay, final String requestType,
+      final List<BasicNameValuePair> fields, final Set<NrsNode> tried)
+  {
+    final CompletableFuture<String> result = new CompletableFuture<String>();
+    final AtomicInteger running = new AtomicInteger(1);
+    final BiConsumer<String, Throwable> done = (content, error) -> {
+      if (error == null)
+      {
+        result.complete(content);
+      }
+      else if (running.decrementAndGet() == 0)
+      {
+        result.completeExceptionally(error);
+      }
+    };
+    final CompletableFuture<String> first = attemptAsync(node, requestType, fields, tried);
+    first.whenComplete(done);
+    CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, eventLoop).execute(() -> {
+      if (first.isDone())
+        return;
+      Set<NrsNode> others = new HashSet<NrsNode>(tried);
+      others.add(node);
+      NrsNode second = NrsPool.instance.selectAdmitted(others);
+      if (second == null)
+        return;
+      hedged.incrementAndGet();
+      running.incrementAndGet();
+      attemptAsync(second, requestType, fields, tried).whenComplete((content, error) -> {
+        if (error == null && !result.isDone())
+        {
+          hedgeWins.incrementAndGet();
+        }
+        done.accept(content, error);
+      });
+    });
+    return result;
+  }
+
+  private CompletableFuture<String> attemptAsync(final NrsNode node, final String requestType,
+      List<BasicNameValuePair> fields, final Set<NrsNode> tried)
+  {
+    final long start = System.currentTimeMillis();
+    return postAsync(node, fields).whenComplete((content, error) -> {
+      if (error == null)
+      {
+        long elapsed = System.currentTimeMillis() - start;
+        NrsPool.instance.sample(requestType, elapsed);
+        NrsPool.instance.success(node, elapsed);
+        return;
+      }
+      Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      NrsPool.instance.failure(node, cause instanceof Exception ? (Exception) cause : new Exception(cause));
+      tried.add(node);
+    });
+  }
+
+  /*
+   * Permits of asynchronous requests, the non-blocking counterpart of pool limits.
+   * Without a free permit a request waits in line, at most connect timeout,
+   * then fails the way a request waiting for a pooled connection does.
+   */
+  private class AsyncLimit
+  {
+    private final int max;
+    private int leased;
+    private final ArrayDeque<CompletableFuture<Void>> pending = new ArrayDeque<CompletableFuture<Void>>();
+
+    AsyncLimit(int max)
+    {
+      this.max = max;
+    }
+
+    CompletableFuture<Void> acquire()
+    {
+      final CompletableFuture<Void> permit = new CompletableFuture<Void>();
+      synchronized (this)
+      {
+        if (leased < max)
+        {
+          leased++;
+          permit.complete(null);
+          return permit;
+        }
+        pending.add(permit);
+      }
+      if (connectTimeout > 0)
+      {
+        CompletableFuture.delayedExecutor(connectTimeout, TimeUnit.MILLISECONDS, eventLoop).execute(() -> {
+          boolean expired;
+          synchronized (this)
+          {
+            expired = pending.remove(permit);
+          }
+          if (expired)
+          {
+            permit.completeExceptionally(new ConnectionPoolTimeoutException("Timeout waiting for NRS connection"));
+          }
+        });
+      }
+      return permit;
+    }
+
+    void release()
+    {
+      CompletableFuture<Void> next;
+      synchronized (this)
+      {
+        next = pending.poll();
+        if (next == null)
+        {
+          leased--;
+          return;
+        }
+      }
+      //permit passes to the next in line, completed outside the lock
+      next.complete(null);
+    }
+
+    synchronized int getLeased()
+    {
+      return leased;
+    }
+
+    synchronized int getPending()
+    {
+      return pending.size();
+    }
+  }
+
+  private CompletableFuture<String> postAsync(final NrsNode node, final List<BasicNameValuePair> fields)
+  {
+    final AsyncLimit nodeLimit = asyncPerNode.computeIfAbsent(node, n -> new AsyncLimit(maxPerRoute));
+    return nodeLimit.acquire()
+        .thenCompose(none -> asyncTotal.acquire().whenComplete((permit, e) -> {
+          if (e != null)
+          {
+            nodeLimit.release();
+          }
+        }))
+        .thenCompose(none -> {
+          CompletableFuture<String> response;
+          try
+          {
+            response = send(node, fields);
+          }
+          catch (RuntimeException e)
+          {
+            response = new CompletableFuture<String>();
+            response.completeExceptionally(e);
+          }
+          return response.whenComplete((content, e) -> {
+            asyncTotal.release();
+            nodeLimit.release();
+          });
+        });
+  }
+
+  private CompletableFuture<String> send(NrsNode node, List<BasicNameValuePair> fields)
+  {
+    HttpRequest.Builder http = HttpRequest.newBuilder(URI.create(node.api))
+        .header("Origin", node.host)
+        .header("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8")
+        .POST(HttpRequest.BodyPublishers.ofString(URLEncodedUtils.format(fields, "UTF-8"), StandardCharsets.UTF_8));
+    if (readTimeout > 0)
+    {
+      http.timeout(Duration.ofMillis(readTimeout));
+    }
+    return asyncClient.sendAsync(http.build(), BodyHandlers.ofString(StandardCharsets.UTF_8))
+        .thenApply(response -> response.body());
+  }
+
+  public CompletableFuture<JSONObject> requestAsync(List<BasicNameValuePair> fields)
+  {
+    return postAsync(fields).thenApply(content -> {
+      try
+      {
+        JSONParser parser = new JSONParser();
+        return (JSONObject) parser.parse(content);
+      }
+      catch (ParseException e)
+      {
+        throw new CompletionException(e);
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  public JSONObject getPoolStats()
+  {
+    PoolStats stats = connectionManager.getTotalStats();
+    JSONObject o = new JSONObject();
+    o.put("leased", stats.getLeased());
+    o.put("available", stats.getAvailable());
+    o.put("pending", stats.getPending());
+    o.put("max", stats.getMax());
+    o.put("asyncLeased", asyncTotal.getLeased());
+    //waiting for a node permit or for the total one
+    int asyncPending = asyncTotal.getPending();
+    for (AsyncLimit limit : asyncPerNode.values())
+    {
+      asyncPending += limit.getPending();
+    }
+    o.put("asyncPending", asyncPending);
+    o.put("hedged", hedged.get());
+    o.put("hedgeWins", hedgeWins.get());
+    return o;
+  }
+
+  public void shutdown()
+  {
+    try
+    {
+      httpclient.close();
+    }
+    catch (IOException e)
+    {
+      Logger.logMessage("Could not close NRS connections", e);
+    }
+    eventLoop.shutdownNow();
+    hedgeExecutor.shutdownNow();
+  }
+
+  private class KeepAliveStrategy implements ConnectionKeepAliveStrategy
+  {
+    private final ConnectionKeepAliveStrategy serverStrategy = DefaultConnectionKeepAliveStrategy.INSTANCE;
+
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+    {
+      long duration = serverStrategy.getKeepAliveDuration(response, context);
+      if (duration > 0 && (keepAlive <= 0 || duration < keepAlive))
+      {
+        return duration;
+      }
+      return keepAlive;
+    }
+  }
+}
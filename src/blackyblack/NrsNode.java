@@ -0,0 +1,179 @@
+package blackyblack;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+/*
+ * One NRS endpoint of the pool with its latency, height and health.
+ * Latency is a moving average of successful request times.
+ * Circuit breaker opens after failures in a row. While open no requests go
+ * to the node, after open time a single probe request is let through,
+ * its success closes the breaker and its failure opens it again.
+ */
+public class NrsNode
+{
+  //weight of the newest sample in moving average latency
+  private static final double ALPHA = 0.2;
+
+  public final String host;
+  public final int port;
+  final String api;
+
+  private volatile double latency;
+  private volatile long height = -1;
+  private volatile boolean ejected;
+  private volatile String ejectReason;
+  //0 while breaker is closed
+  private volatile long openUntil;
+  private boolean probing;
+
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong ejections = new AtomicLong();
+  private final AtomicLong breakerOpens = new AtomicLong();
+
+  NrsNode(String host, int port)
+  {
+    this.host = host;
+    this.port = port;
+    this.api = "http://" + host + ":" + port + "/nxt";
+  }
+
+  synchronized void success(long elapsed)
+  {
+    requests.incrementAndGet();
+    failures.set(0);
+    openUntil = 0;
+    probing = false;
+    latency = latency == 0 ? Math.max(1, elapsed) : latency + ALPHA * (elapsed - latency);
+  }
+
+  /*
+   * Returns true if this failure opened the breaker.
+   */
+  synchronized boolean failure(int maxFailures, long openTime)
+  {
+    requests.incrementAndGet();
+    errors.incrementAndGet();
+    int f = failures.incrementAndGet();
+    //failed probe opens the breaker again at once
+    if (probing || (openUntil == 0 && f >= maxFailures))
+    {
+      openUntil = System.currentTimeMillis() + openTime;
+      probing = false;
+      breakerOpens.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /*
+   * Frees the probe slot of a request that ended without verdict on the node:
+   * it lost a hedge race or its answer was not used. Without it the node
+   * would stay half open with nobody allowed to probe it.
+   */
+  synchronized void release()
+  {
+    probing = false;
+  }
+
+  /*
+   * Node can take a request now: breaker is closed, or open time is over and
+   * nobody probes the node yet.
+   */
+  boolean isAvailable()
+  {
+    long until = openUntil;
+    return until == 0 || (System.currentTimeMillis() >= until && !isProbing());
+  }
+
+  private synchronized boolean isProbing()
+  {
+    return probing;
+  }
+
+  /*
+   * Takes the request slot, false if other thread took the only probe first.
+   */
+  synchronized boolean acquire()
+  {
+    if (openUntil == 0)
+      return true;
+    if (System.currentTimeMillis() < openUntil || probing)
+      return false;
+    probing = true;
+    return true;
+  }
+
+  public boolean isOpen()
+  {
+    return openUntil != 0;
+  }
+
+  void setHeight(long height)
+  {
+    this.height = height;
+  }
+
+  public long getHeight()
+  {
+    return height;
+  }
+
+  public double getLatency()
+  {
+    return latency;
+  }
+
+  public boolean isEjected()
+  {
+    return ejected;
+  }
+
+  void eject(String reason)
+  {
+    if (!ejected)
+    {
+      ejections.incrementAndGet();
+    }
+    ejectReason = reason;
+    ejected = true;
+  }
+
+  void readmit()
+  {
+    ejected = false;
+    ejectReason = null;
+  }
+
+  @SuppressWarnings("unchecked")
+  JSONObject getStats()
+  {
+    JSONObject o = new JSONObject();
+    o.put("host", host);
+    o.put("port", port);
+    o.put("latency", Math.round(latency));
+    o.put("height", height);
+    o.put("requests", requests.get());
+    o.put("errors", errors.get());
+    o.put("ejections", ejections.get());
+    o.put("ejected", ejected);
+    long until = openUntil;
+    o.put("breaker", until == 0 ? "closed" : System.currentTimeMillis() < until ? "open" : "halfOpen");
+    o.put("breakerOpens", breakerOpens.get());
+    if (ejectReason != null)
+    {
+      o.put("ejectReason", ejectReason);
+    }
+    return o;
+  }
+
+  @Override
+  public String toString()
+  {
+    return host + ":" + port;
+  }
+}
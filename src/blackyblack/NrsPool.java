@@ -0,0 +1,407 @@
+package blackyblack;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.message.BasicNameValuePair;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import nrs.util.Convert;
+import nrs.util.Logger;
+
+/*
+ * NRS endpoints from blackyblack.nrsNodes, single nrsHost/nrsPort if empty.
+ * Every request goes to the node with the lowest moving average latency,
+ * nodes behind the best known height are penalized.
+ * Nodes too far behind are ejected and readmitted when a background health
+ * check finds them caught up. Nodes failing requests are cut off by their
+ * circuit breakers; with all breakers open requests fail at once.
+ * Response times of reads are kept per request type for hedge delays.
+ */
+public class NrsPool
+{
+  public static final NrsPool instance = new NrsPool();
+
+  /*
+   * No NRS node can take a request now, thrown without any network I/O.
+   */
+  public static class CircuitOpenException extends IOException
+  {
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(String message)
+    {
+      super(message);
+    }
+  }
+
+  private final List<NrsNode> nodes;
+  private final int maxFailures;
+  private final int maxLag;
+  private final long healthInterval;
+  private final long breakerOpenTime;
+  private final int retries;
+  private final long retryDelay;
+  private final long retryMaxDelay;
+  private final int hedgePercentile;
+  private final long hedgeMinDelay;
+  private final ConcurrentHashMap<String, LatencySamples> latencies = new ConcurrentHashMap<String, LatencySamples>();
+
+  private ScheduledExecutorService scheduler;
+
+  private NrsPool()
+  {
+    List<NrsNode> list = new ArrayList<NrsNode>();
+    String property = Application.getStringProperty("blackyblack.nrsNodes");
+    if (property != null)
+    {
+      for (String s : property.split(","))
+      {
+        s = s.trim();
+        if (s.isEmpty())
+          continue;
+        int colon = s.lastIndexOf(':');
+        try
+        {
+          if (colon < 0)
+          {
+            list.add(new NrsNode(s, NxtApi.port));
+          }
+          else
+          {
+            list.add(new NrsNode(s.substring(0, colon), Integer.parseInt(s.substring(colon + 1))));
+          }
+        }
+        catch (NumberFormatException e)
+        {
+          Logger.logMessage("Invalid NRS node " + s);
+        }
+      }
+    }
+    if (list.isEmpty())
+    {
+      list.add(new NrsNode(NxtApi.host, NxtApi.port));
+    }
+    nodes = Collections.unmodifiableList(list);
+
+    maxFailures = Math.max(1, Application.getIntProperty("blackyblack.nrsMaxFailures"));
+    maxLag = Math.max(0, Application.getIntProperty("blackyblack.nrsMaxLag"));
+    healthInterval = Application.getIntProperty("blackyblack.nrsHealthInterval");
+    breakerOpenTime = Math.max(0, Application.getIntProperty("blackyblack.nrsBreakerOpenTime"));
+    retries = Math.max(0, Application.getIntProperty("blackyblack.nrsRetries"));
+    retryDelay = Math.max(1, Application.getIntProperty("blackyblack.nrsRetryDelay"));
+    retryMaxDelay = Math.max(retryDelay, Application.getIntProperty("blackyblack.nrsRetryMaxDelay"));
+    hedgePercentile = Math.min(100, Application.getIntProperty("blackyblack.nrsHedgePercentile"));
+    hedgeMinDelay = Math.max(0, Application.getIntProperty("blackyblack.nrsHedgeMinDelay"));
+  }
+
+  /*
+   * Last response times of one request type. Percentile is recalculated every few samples.
+   */
+  private static class LatencySamples
+  {
+    private static final int SIZE = 256;
+    private static final int MIN_SAMPLES = 32;
+
+    private final long[] samples = new long[SIZE];
+    private long count;
+    private volatile long percentile = -1;
+
+    synchronized void add(long elapsed, int p)
+    {
+      samples[(int) (count++ % SIZE)] = elapsed;
+      if (count >= MIN_SAMPLES && count % 16 == 0)
+      {
+        int n = (int) Math.min(count, SIZE);
+        long[] sorted = Arrays.copyOf(samples, n);
+        Arrays.sort(sorted);
+        percentile = sorted[Math.max(0, (int) Math.ceil(p / 100.0 * n) - 1)];
+      }
+    }
+  }
+
+  public synchronized void start()
+  {
+    if (scheduler != null || healthInterval <= 0)
+      return;
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("nrs-health"));
+    scheduler.scheduleWithFixedDelay(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          check();
+        }
+        catch (Exception e)
+        {
+          Logger.logDebugMessage("NRS health check failed: " + e.getMessage());
+        }
+      }
+    }, 0, healthInterval, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop()
+  {
+    if (scheduler == null)
+      return;
+    scheduler.shutdownNow();
+    scheduler = null;
+  }
+
+  public int size()
+  {
+    return nodes.size();
+  }
+
+  /*
+   * Best available node not in tried set, null if there is none.
+   * When all available nodes are ejected the least lagging one is returned,
+   * a request to it is better than none.
+   */
+  public NrsNode select(Set<NrsNode> tried)
+  {
+    long best = bestHeight();
+    while (true)
+    {
+      NrsNode selected = select(tried, false, best);
+      if (selected == null)
+      {
+        selected = select(tried, true, best);
+      }
+      if (selected == null || selected.acquire())
+        return selected;
+      //other thread took the probe of a half open node, look again
+    }
+  }
+
+  private NrsNode select(Set<NrsNode> tried, boolean ejected, long best)
+  {
+    NrsNode selected = null;
+    double selectedScore = 0;
+    for (NrsNode node : nodes)
+    {
+      if (node.isEjected() != ejected || (tried != null && tried.contains(node)) || !node.isAvailable())
+        continue;
+      double score = score(node, best);
+      if (selected == null || score < selectedScore)
+      {
+        selected = node;
+        selectedScore = score;
+      }
+    }
+    return selected;
+  }
+
+  /*
+   * Best available node not in tried set and not ejected, for hedged reads.
+   */
+  public NrsNode selectAdmitted(Set<NrsNode> tried)
+  {
+    long best = bestHeight();
+    while (true)
+    {
+      NrsNode selected = select(tried, false, best);
+      if (selected == null || selected.acquire())
+        return selected;
+    }
+  }
+
+  /*
+   * Same as select, but fails at once when no node is available.
+   */
+  public NrsNode acquire(Set<NrsNode> tried) throws CircuitOpenException
+  {
+    NrsNode node = select(tried);
+    if (node == null)
+    {
+      throw new CircuitOpenException("no NRS node available, circuit breakers are open");
+    }
+    return node;
+  }
+
+  private static long lag(NrsNode node, long best)
+  {
+    return node.getHeight() < 0 || best < 0 ? 0 : best - node.getHeight();
+  }
+
+  //unknown latency scores 0, so new and readmitted nodes get traffic first
+  private static double score(NrsNode node, long best)
+  {
+    return node.getLatency() * (1 + lag(node, best));
+  }
+
+  private long bestHeight()
+  {
+    long best = -1;
+    for (NrsNode node : nodes)
+    {
+      if (!node.isOpen())
+      {
+        best = Math.max(best, node.getHeight());
+      }
+    }
+    return best;
+  }
+
+  public void sample(String requestType, long elapsed)
+  {
+    if (hedgePercentile <= 0 || requestType == null || nodes.size() == 1)
+      return;
+    LatencySamples s = latencies.get(requestType);
+    if (s == null)
+    {
+      latencies.putIfAbsent(requestType, new LatencySamples());
+      s = latencies.get(requestType);
+    }
+    s.add(elapsed, hedgePercentile);
+  }
+
+  /*
+   * How long to wait for a read before hedging it to another node, -1 for no hedging.
+   * Reads are not hedged until enough response times are known or with a single admitted node.
+   */
+  public long hedgeDelay(String requestType)
+  {
+    if (hedgePercentile <= 0 || requestType == null || nodes.size() == 1)
+      return -1;
+    LatencySamples s = latencies.get(requestType);
+    if (s == null || s.percentile < 0)
+      return -1;
+    int admitted = 0;
+    for (NrsNode node : nodes)
+    {
+      if (!node.isEjected())
+      {
+        admitted++;
+      }
+    }
+    if (admitted < 2)
+      return -1;
+    return Math.max(hedgeMinDelay, s.percentile);
+  }
+
+  public void success(NrsNode node, long elapsed)
+  {
+    node.success(elapsed);
+  }
+
+  /*
+   * Request to the node ended with neither success nor failure.
+   */
+  public void release(NrsNode node)
+  {
+    node.release();
+  }
+
+  public void failure(NrsNode node, Exception e)
+  {
+    if (e instanceof CircuitOpenException)
+      return;
+    //no local connection was free, that says nothing about the node
+    if (e instanceof ConnectionPoolTimeoutException)
+    {
+      node.release();
+      return;
+    }
+    if (node.failure(maxFailures, breakerOpenTime))
+    {
+      Logger.logMessage("NRS node " + node + " circuit breaker open for " + breakerOpenTime + " ms: " + e.getMessage());
+    }
+  }
+
+  public int getRetries()
+  {
+    return retries;
+  }
+
+  /*
+   * Wait before retry number n of a read, exponential with random half of it,
+   * so requests failed together do not come back together.
+   */
+  public long backoff(int n)
+  {
+    long cap = Math.min(retryMaxDelay, retryDelay << Math.min(n, 20));
+    return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+  }
+
+  /*
+   * Asks every node for its height. Good nodes within nrsMaxLag blocks
+   * of the best one are admitted, others are ejected.
+   */
+  void check()
+  {
+    List<BasicNameValuePair> fields = NxtApi.blockchainStatusFields();
+    boolean[] good = new boolean[nodes.size()];
+    for (int i = 0; i < nodes.size(); i++)
+    {
+      NrsNode node = nodes.get(i);
+      long start = System.currentTimeMillis();
+      try
+      {
+        JSONObject status = NrsClient.instance.request(node, fields);
+        if (status.get("errorDescription") != null)
+        {
+          failure(node, new Exception((String) status.get("errorDescription")));
+          continue;
+        }
+        node.success(System.currentTimeMillis() - start);
+        node.setHeight(Convert.nullToZero((Long) status.get("numberOfBlocks")));
+        good[i] = true;
+      }
+      catch (Exception e)
+      {
+        failure(node, e);
+      }
+    }
+
+    if (nodes.size() == 1)
+      return;
+
+    long best = bestHeight();
+    for (int i = 0; i < nodes.size(); i++)
+    {
+      NrsNode node = nodes.get(i);
+      if (!good[i])
+        continue;
+      long lag = best - node.getHeight();
+      if (lag > maxLag)
+      {
+        if (!node.isEjected())
+        {
+          Logger.logMessage("NRS node " + node + " ejected, " + lag + " blocks behind");
+        }
+        node.eject(lag + " blocks behind");
+      }
+      else if (node.isEjected())
+      {
+        node.readmit();
+        Logger.logMessage("NRS node " + node + " readmitted at height " + node.getHeight());
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public JSONArray getStats()
+  {
+    JSONArray a = new JSONArray();
+    for (NrsNode node : nodes)
+    {
+      a.add(node.getStats());
+    }
+    return a;
+  }
+}
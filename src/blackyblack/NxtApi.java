@@ -1,7 +1,5 @@
 package blackyblack;
 
-import java.io.IOException;
-import java.net.ConnectException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -14,18 +12,9 @@ import nrs.crypto.Crypto;
 import nrs.crypto.EncryptedData;
 import nrs.util.Convert;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 
 public class NxtApi implements INxtApi
 {
@@ -51,58 +40,121 @@ public class NxtApi implements INxtApi
     return "http://" + host + ":" + port + "/nxt";
   }
   
+  static JSONObject request(List<BasicNameValuePair> fields) throws NxtApiException
+  {
+    JSONObject json = null;
+    try
+    {
+      json = NrsClient.instance.request(fields);
+    }
+    catch (Exception e)
+    {
+      throw new NxtApiException(e.getMessage());
+    }
+    if(json == null)
+    {
+      throw new NxtApiException("no response from NRS");
+    }
+    return json;
+  }
+  
+  static JSONObject transactionJSON(JSONObject json) throws NxtApiException
+  {
+    JSONObject tx = (JSONObject) json.get("transactionJSON");
+    if(tx == null)
+    {
+      throw new NxtApiException("no transactionJSON from NRS");
+    }
+    return tx;
+  }
+  
   public Long now()
   {
     return (long) Convert.getEpochTime();
   }
   
-  public String getPublicKey(String account) throws NxtApiException
+  static String timestamp(int timelimit)
+  {
+    long now = Convert.getEpochTime();
+    if(timelimit > 0)
+    {
+      if(now > timelimit)
+      {
+        return "" + (now - timelimit);
+      }
+    }
+    return null;
+  }
+  
+  static List<BasicNameValuePair> publicKeyFields(String account)
   {
     List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
     fields.add(new BasicNameValuePair("requestType", "getAccountPublicKey"));
     fields.add(new BasicNameValuePair("account", account));
+    return fields;
+  }
+  
+  static String publicKey(JSONObject json) throws NxtApiException
+  {
+    String publicKey = Convert.emptyToNull((String)json.get("publicKey"));
+    if(publicKey == null)
+    {
+      throw new NxtApiException("no publicKey from NRS");
+    }
+    return publicKey;
+  }
+  
+  public String getPublicKey(String account) throws NxtApiException
+  {
+    Long accountId = PublicKeyCache.accountId(account);
+    if(accountId == null)
+    {
+      return publicKey(request(publicKeyFields(account)));
+    }
+    
+    byte[] cached = PublicKeyCache.instance.get(accountId);
+    if(PublicKeyCache.isMissing(cached))
+    {
+      throw new NxtApiException("no publicKey from NRS");
+    }
+    if(cached != null)
+    {
+      return Convert.toHexString(cached);
+    }
     
-    CloseableHttpResponse response = null;
-    String publicKey = null;
+    return cachePublicKey(accountId, request(publicKeyFields(account)));
+  }
+  
+  /*
+   * Remembers NRS answer for account. Missing key is cached only for a short time,
+   * it appears as soon as account makes first outgoing transaction.
+   */
+  static String cachePublicKey(Long accountId, JSONObject json) throws NxtApiException
+  {
+    String publicKey;
     try
     {
-      try 
-      {
-        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        HttpPost http = new HttpPost(api());
-        http.setHeader("Origin", host);
-        http.setEntity(entity);
-        response = httpclient.execute(http);
-        HttpEntity result = response.getEntity();
-        String content = EntityUtils.toString(result);
-        
-        JSONParser parser = new JSONParser();
-        JSONObject json = (JSONObject)parser.parse(content);
-  
-        publicKey = Convert.emptyToNull((String)json.get("publicKey"));
-        if(publicKey == null)
-        {
-          throw new NxtApiException("no publicKey from NRS");
-        }
-      }
-      finally
-      {
-        if(response != null)
-          response.close();
-      }
+      publicKey = publicKey(json);
     }
-    catch (Exception e)
+    catch (NxtApiException e)
     {
-      throw new NxtApiException(e.getMessage());
+      PublicKeyCache.instance.putMissing(accountId);
+      throw e;
     }
     
+    try
+    {
+      PublicKeyCache.instance.put(accountId, Convert.parseHexString(publicKey));
+    }
+    catch (RuntimeException e)
+    {
+      //malformed key is returned as is, but never cached
+    }
     return publicKey;
   }
   
-  public JSONObject create(String recipient,
-      String secretPhrase) throws NxtApiException
-  {    
+  static List<BasicNameValuePair> createFields(String recipient, String secretPhrase)
+  {
     byte[] publicKey = Crypto.getPublicKey(secretPhrase);
     String publicString = Convert.toHexString(publicKey);
     
@@ -113,92 +165,40 @@ public class NxtApi implements INxtApi
     fields.add(new BasicNameValuePair("feeNQT", transactionFee.toString()));
     fields.add(new BasicNameValuePair("broadcast", "false"));
     fields.add(new BasicNameValuePair("deadline", "1440"));
-    
-    CloseableHttpResponse response = null;
-    JSONObject tx = null;
-    try
-    {
-      try 
-      {
-        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        HttpPost http = new HttpPost(api());
-        http.setHeader("Origin", host);
-        http.setEntity(entity);
-        response = httpclient.execute(http);
-        HttpEntity result = response.getEntity();
-        String content = EntityUtils.toString(result);
-        
-        JSONParser parser = new JSONParser();
-        JSONObject json = (JSONObject)parser.parse(content);
-        tx = (JSONObject) json.get("transactionJSON");
-        if(tx == null)
-        {
-          throw new NxtApiException("no transactionJSON from NRS");
-        }
-      }
-      finally
-      {
-        if(response != null)
-          response.close();
-      }
-    }
-    catch (Exception e)
-    {
-      throw new NxtApiException(e.getMessage());
-    }
-    
-    return tx;
+    return fields;
   }
   
-  public String broadcast(String message) throws NxtApiException
+  public JSONObject create(String recipient,
+      String secretPhrase) throws NxtApiException
   {    
+    return transactionJSON(request(createFields(recipient, secretPhrase)));
+  }
+  
+  static List<BasicNameValuePair> broadcastFields(String message)
+  {
     List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
     fields.add(new BasicNameValuePair("requestType", "broadcastTransaction"));
     fields.add(new BasicNameValuePair("transactionBytes", message));
-    
-    CloseableHttpResponse response = null;
-    String txid = null;
-    try
-    {
-      try 
-      {
-        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        HttpPost http = new HttpPost(api());
-        http.setHeader("Origin", host);
-        http.setEntity(entity);
-        response = httpclient.execute(http);
-        HttpEntity result = response.getEntity();
-        String content = EntityUtils.toString(result);
-        
-        JSONParser parser = new JSONParser();
-        JSONObject json = (JSONObject)parser.parse(content);
-  
-        txid = Convert.emptyToNull((String)json.get("transaction"));
-        if(txid == null)
-        {
-          throw new NxtApiException("no txid from NRS");
-        }
-      }
-      finally
-      {
-        if(response != null)
-          response.close();
-      }
-    }
-    catch (Exception e)
+    return fields;
+  }
+  
+  static String txid(JSONObject json) throws NxtApiException
+  {
+    String txid = Convert.emptyToNull((String)json.get("transaction"));
+    if(txid == null)
     {
-      throw new NxtApiException(e.getMessage());
+      throw new NxtApiException("no txid from NRS");
     }
-    
     return txid;
   }
   
-  @SuppressWarnings("unchecked")
-  public List<String> getTransactionIds(String account,
-      Boolean pays, Boolean tells,
-      int timelimit) throws Exception
+  public String broadcast(String message) throws NxtApiException
+  {    
+    return txid(request(broadcastFields(message)));
+  }
+  
+  static List<BasicNameValuePair> transactionIdsFields(String account,
+      Boolean pays, Boolean tells, int timelimit)
   {
     String messageType = null;
     if(pays && !tells)
@@ -210,14 +210,7 @@ public class NxtApi implements INxtApi
       messageType = "1";
     }
     
-    String timestamp = null;
-    if(timelimit > 0)
-    {
-      if(now() > timelimit)
-      {
-        timestamp = "" + (now() - timelimit);
-      }
-    }
+    String timestamp = timestamp(timelimit);
     
     List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
     fields.add(new BasicNameValuePair("requestType", "getAccountTransactionIds"));
@@ -230,55 +223,54 @@ public class NxtApi implements INxtApi
     {
       fields.add(new BasicNameValuePair("timestamp", timestamp));
     }
-    UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-    
-    JSONObject json = null;
-    CloseableHttpResponse response = null;
-    CloseableHttpClient httpclient = HttpClients.createDefault();
-    HttpPost http = new HttpPost(api());
-    http.setHeader("Origin", host);
-    http.setEntity(entity);
-    response = httpclient.execute(http);
-    HttpEntity result = response.getEntity();
-    String content = EntityUtils.toString(result);
-      
-    JSONParser parser = new JSONParser();
-    json = (JSONObject)parser.parse(content);
+    return fields;
+  }
+  
+  @SuppressWarnings("unchecked")
+  static List<String> transactionIds(JSONObject json)
+  {
     JSONArray a = (JSONArray)json.get("transactionIds");
     return (List<String>)a;
   }
   
-  public JSONObject getTransaction(String txid) throws Exception
+  public List<String> getTransactionIds(String account,
+      Boolean pays, Boolean tells,
+      int timelimit) throws Exception
+  {
+    JSONObject json = NrsClient.instance.request(transactionIdsFields(account, pays, tells, timelimit));
+    return transactionIds(json);
+  }
+  
+  static List<BasicNameValuePair> transactionFields(String txid)
   {
     List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
     fields.add(new BasicNameValuePair("requestType", "getTransaction"));
     fields.add(new BasicNameValuePair("transaction", txid));
-    UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-    
-    JSONObject json = null;
-    CloseableHttpResponse response = null;
-    CloseableHttpClient httpclient = HttpClients.createDefault();
-    HttpPost http = new HttpPost(api());
-    http.setHeader("Origin", host);
-    http.setEntity(entity);
-    response = httpclient.execute(http);
-    HttpEntity result = response.getEntity();
-    String content = EntityUtils.toString(result);
-      
-    JSONParser parser = new JSONParser();
-    json = (JSONObject)parser.parse(content);
+    return fields;
+  }
+  
+  static JSONObject transaction(JSONObject json)
+  {
     if(json == null) return null;
     if(Convert.emptyToNull((String)json.get("transaction")) == null) return null;
     return json;
+  }
+  
+  public JSONObject getTransaction(String txid) throws Exception
+  {
+    JSONObject json = NrsClient.instance.request(transactionFields(txid));
+    return transaction(json);
   } 
   
+  /*
+   * Builds and signs transaction locally using timestamp and EC block from NRS template tx.
+   * Returns signed transaction bytes ready for broadcast.
+   */
   @SuppressWarnings("unchecked")
-  public String transactionSafe(String recipient, String secretPhrase,
-      String message, String messageEncrypt, long amountNQT) throws NxtApiException
+  static String signTransaction(JSONObject tempTx, String recipient, String recipientPublicKey, String secretPhrase,
+      String message, String messageEncrypt, byte type, byte subtype, long amountNQT,
+      Appendix.AbstractAppendix attachment) throws NxtApiException
   {
-    JSONObject tempTx = create(recipient, secretPhrase);
-    
-    String recipientPublicKey = getPublicKey(recipient);
     byte[] recipientPublicKeyBytes = null;
     try
     {
@@ -302,22 +294,13 @@ public class NxtApi implements INxtApi
     }
     
     Transaction tx = new Transaction();
-    String txid = null;
     
     try
     {
       tx.senderPublicKey = publicKey;
       tx.feeNQT =  transactionFee;
-      
-      if(amountNQT == 0)
-      {
-        tx.type = 1;  //AM
-      }
-      else
-      {
-        tx.type = 0;
-      }
-      tx.subtype = 0;
+      tx.type = type;
+      tx.subtype = subtype;
       Long versionValue = Convert.nullToZero((Long) tempTx.get("version"));
       tx.version = versionValue.byteValue();
       tx.ecBlockId = Convert.parseUnsignedLong((String) tempTx.get("ecBlockId"));
@@ -345,6 +328,9 @@ public class NxtApi implements INxtApi
       tx.encryptedMessage = Appendix.EncryptedMessage.parse(attachmentData);
       
       List<Appendix.AbstractAppendix> list = new ArrayList<>();
+      if (attachment != null) {
+          list.add(attachment);
+      }
       if (tx.message != null) {
           list.add(tx.message);
       }
@@ -369,113 +355,53 @@ public class NxtApi implements INxtApi
       byte[] unsignedTx = tx.getBytes();
       byte[] signedTx = Crypto.sign(unsignedTx, secretPhrase);
       tx.signature = signedTx;
-      txid = broadcast(Convert.toHexString(tx.getBytes()));
+      return Convert.toHexString(tx.getBytes());
     }
     catch(Exception e)
     {
       throw new NxtApiException(e.getMessage());
     }
-    return txid;
   }
   
-  @SuppressWarnings("unchecked")
-  public String assetTransferSafe(String recipient, String secretPhrase,
+  static String signPayment(JSONObject tempTx, String recipient, String recipientPublicKey, String secretPhrase,
+      String message, String messageEncrypt, long amountNQT) throws NxtApiException
+  {
+    //zero amount is sent as arbitrary message
+    byte type = (byte) (amountNQT == 0 ? 1 : 0);
+    return signTransaction(tempTx, recipient, recipientPublicKey, secretPhrase, message, messageEncrypt,
+        type, (byte) 0, amountNQT, null);
+  }
+  
+  static String signAssetTransfer(JSONObject tempTx, String recipient, String recipientPublicKey, String secretPhrase,
       String message, String messageEncrypt, String assetId, Long assetNQT) throws NxtApiException
   {
-    JSONObject tempTx = create(recipient, secretPhrase);
-    
-    String recipientPublicKey = getPublicKey(recipient);
-    byte[] recipientPublicKeyBytes = null;
+    Appendix.AbstractAppendix attachment = null;
     try
     {
-      recipientPublicKeyBytes = Convert.parseHexString(recipientPublicKey);
-    }
-    catch(NumberFormatException e)
-    {
-      throw new NxtApiException("bad publicKey from NRS");
-    }
-    
-    byte[] publicKey = Crypto.getPublicKey(secretPhrase);
-    Long senderId = Convert.publicKeyToAccountId(publicKey);
-    String encryptedText = "";
-    String encryptedNonce = "";
-    if(messageEncrypt != null && messageEncrypt.length() > 0)
-    {
-      EncryptedData encrypted = EncryptedData.encrypt(
-          Convert.toBytes(messageEncrypt), Crypto.getPrivateKey(secretPhrase), recipientPublicKeyBytes);
-      encryptedText = Convert.toHexString(encrypted.getData());
-      encryptedNonce = Convert.toHexString(encrypted.getNonce());
-    }
-    
-    Transaction tx = new Transaction();
-    String txid = null;
-    
-    try
-    {
-      tx.senderPublicKey = publicKey;
-      tx.feeNQT =  transactionFee;
-      tx.type = 2;  //Assets
-      tx.subtype = 1; //Asset Transfer
-      Long versionValue = Convert.nullToZero((Long) tempTx.get("version"));
-      tx.version = versionValue.byteValue();
-      tx.ecBlockId = Convert.parseUnsignedLong((String) tempTx.get("ecBlockId"));
-      tx.ecBlockHeight = ((Long) tempTx.get("ecBlockHeight")).intValue();
-      
-      JSONObject attachmentData = new JSONObject();
-      
-      if(message != null && message.length() > 0)
-      {
-        attachmentData.put("version.Message", 1L);
-        attachmentData.put("messageIsText", true);
-        attachmentData.put("message", message);
-      }
-      
-      if(messageEncrypt != null && messageEncrypt.length() > 0)
-      {
-        JSONObject encryptedData = new JSONObject();
-        encryptedData.put("data", encryptedText);
-        encryptedData.put("nonce", encryptedNonce);
-        encryptedData.put("isText", true);
-        attachmentData.put("encryptedMessage", encryptedData);
-        attachmentData.put("version.EncryptedMessage", 1L);
-      }
-      
-      tx.message = Appendix.Message.parse(attachmentData);
-      tx.encryptedMessage = Appendix.EncryptedMessage.parse(attachmentData);
-      
-      List<Appendix.AbstractAppendix> list = new ArrayList<>();
-      list.add(new Appendix.ColoredCoinsAssetTransfer(Convert.parseUnsignedLong(assetId), assetNQT));
-      if (tx.message != null) {
-          list.add(tx.message);
-      }
-      if (tx.encryptedMessage != null) {
-          list.add(tx.encryptedMessage);
-      }
-     
-      tx.appendages = Collections.unmodifiableList(list);
-      int appendagesSize = 0;
-      for (Appendix appendage : tx.appendages) {
-          appendagesSize += appendage.getSize();
-      }
-      tx.appendagesSize = appendagesSize;
-      
-      tx.amountNQT = 0;
-      tx.senderId = senderId;
-      tx.recipientId = Convert.parseAccountId(recipient);
-      tx.deadline = 1440;
-      tx.timestamp = ((Long) tempTx.get("timestamp")).intValue();
-      tx.height = ((Long) tempTx.get("height")).intValue();
-      
-      byte[] unsignedTx = tx.getBytes();
-      byte[] signedTx = Crypto.sign(unsignedTx, secretPhrase);
-      tx.signature = signedTx;
-      txid = broadcast(Convert.toHexString(tx.getBytes()));
+      attachment = new Appendix.ColoredCoinsAssetTransfer(Convert.parseUnsignedLong(assetId), assetNQT);
     }
     catch(Exception e)
     {
       throw new NxtApiException(e.getMessage());
     }
-    return txid;
+    return signTransaction(tempTx, recipient, recipientPublicKey, secretPhrase, message, messageEncrypt,
+        (byte) 2, (byte) 1, 0, attachment);
+  }
+  
+  public String transactionSafe(String recipient, String secretPhrase,
+      String message, String messageEncrypt, long amountNQT) throws NxtApiException
+  {
+    JSONObject tempTx = create(recipient, secretPhrase);
+    String recipientPublicKey = getPublicKey(recipient);
+    return broadcast(signPayment(tempTx, recipient, recipientPublicKey, secretPhrase, message, messageEncrypt, amountNQT));
+  }
+  
+  public String assetTransferSafe(String recipient, String secretPhrase,
+      String message, String messageEncrypt, String assetId, Long assetNQT) throws NxtApiException
+  {
+    JSONObject tempTx = create(recipient, secretPhrase);
+    String recipientPublicKey = getPublicKey(recipient);
+    return broadcast(signAssetTransfer(tempTx, recipient, recipientPublicKey, secretPhrase, message, messageEncrypt, assetId, assetNQT));
   }
   
   public String pay(String recipient, String secretPhrase, Long amount,
@@ -496,25 +422,8 @@ public class NxtApi implements INxtApi
     return assetTransferSafe(recipient, secretPhrase, message, messageEncrypt, assetId, amount);
   }
   
-  public String readEncryptedMessageSafe(String txid, String secretPhrase) throws NxtApiException
+  static String decryptMessage(JSONObject o, String senderPublicKey, String secretPhrase)
   {
-    JSONObject o = null;
-    try
-    {
-      o = getTransaction(txid);
-    }
-    catch (Exception e)
-    {
-      throw new NxtApiException(e.getMessage());
-    }
-    
-    if(o == null) return "";
-    
-    String sender = (String) o.get("senderRS");
-    if(sender == null) return "";
-    
-    String senderPublicKey = getPublicKey(sender);
-    
     JSONObject attach = (JSONObject) o.get("attachment");
     if(attach == null) return "";
     
@@ -543,104 +452,92 @@ public class NxtApi implements INxtApi
     return Convert.toString(result);
   }
   
-  public String readEncryptedMessage(String txid, String secretPhrase) throws NxtApiException
-  {
-    return readEncryptedMessageSafe(txid, secretPhrase);
-  }
-  
-  public JSONObject getBlockchainStatus() throws NxtApiException
+  public String readEncryptedMessageSafe(String txid, String secretPhrase) throws NxtApiException
   {
-    List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
-    fields.add(new BasicNameValuePair("requestType", "getBlockchainStatus"));
-    
-    JSONObject answer = null;
-    CloseableHttpResponse response = null;
+    JSONObject o = null;
     try
     {
-      try 
-      {
-        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        HttpPost http = new HttpPost(NxtApi.api());
-        http.setHeader("Origin", NxtApi.host);
-        http.setEntity(entity);
-        response = httpclient.execute(http);
-        HttpEntity result = response.getEntity();
-        String content = EntityUtils.toString(result);
-          
-        JSONParser parser = new JSONParser();
-        answer = (JSONObject)parser.parse(content);
-      }
-      catch(ConnectException e)
-      {
-      }
-      catch(ClientProtocolException e)
-      {
-      }
-      catch(IOException e)
-      {
-      }
-      finally
-      {
-        if(response != null)
-          response.close();
-      }
+      o = getTransaction(txid);
     }
     catch (Exception e)
     {
       throw new NxtApiException(e.getMessage());
     }
     
-    return answer;
+    if(o == null) return "";
+    
+    String sender = (String) o.get("senderRS");
+    if(sender == null) return "";
+    
+    String senderPublicKey = getPublicKey(sender);
+    return decryptMessage(o, senderPublicKey, secretPhrase);
   }
   
-  public Long getCurrentBlock() throws NxtApiException
+  public String readEncryptedMessage(String txid, String secretPhrase) throws NxtApiException
+  {
+    return readEncryptedMessageSafe(txid, secretPhrase);
+  }
+  
+  static List<BasicNameValuePair> blockchainStatusFields()
+  {
+    List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
+    fields.add(new BasicNameValuePair("requestType", "getBlockchainStatus"));
+    return fields;
+  }
+  
+  public JSONObject getBlockchainStatus() throws NxtApiException
+  {
+    return request(blockchainStatusFields());
+  }
+  
+  static Long currentBlock(JSONObject status)
   {
-    JSONObject status = getBlockchainStatus();
-    
     Long blocksNow = Convert.nullToZero((Long) status.get("numberOfBlocks"));
     return blocksNow;
   }
   
-  public JSONObject getAsset(String txid) throws NxtApiException
+  public Long getCurrentBlock() throws NxtApiException
+  {
+    return BlockchainStatusCache.instance.getHeight();
+  }
+  
+  static List<BasicNameValuePair> assetFields(String txid)
   {
     List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
     fields.add(new BasicNameValuePair("requestType", "getAsset"));
     fields.add(new BasicNameValuePair("asset", txid));
     fields.add(new BasicNameValuePair("includeCounts", "false"));
-    
-    CloseableHttpResponse response = null;
-    JSONObject json = null;
-    try
-    {
-      try 
-      {
-        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        HttpPost http = new HttpPost(api());
-        http.setHeader("Origin", host);
-        http.setEntity(entity);
-        response = httpclient.execute(http);
-        HttpEntity result = response.getEntity();
-        String content = EntityUtils.toString(result);
-        
-        JSONParser parser = new JSONParser();
-        json = (JSONObject)parser.parse(content);
-      }
-      finally
-      {
-        if(response != null)
-          response.close();
-      }
-    }
-    catch (Exception e)
+    return fields;
+  }
+  
+  public JSONObject getAsset(String txid) throws NxtApiException
+  {
+    return request(assetFields(txid));
+  }
+  
+  static List<BasicNameValuePair> blockFields(int height)
+  {
+    List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
+    fields.add(new BasicNameValuePair("requestType", "getBlock"));
+    fields.add(new BasicNameValuePair("height", "" + height));
+    fields.add(new BasicNameValuePair("includeTransactions", "true"));
+    return fields;
+  }
+  
+  static JSONObject block(JSONObject json) throws NxtApiException
+  {
+    if(Convert.emptyToNull((String)json.get("block")) == null)
     {
-      throw new NxtApiException(e.getMessage());
+      throw new NxtApiException("no block from NRS");
     }
-    
     return json;
   }
   
+  public JSONObject getBlock(int height) throws NxtApiException
+  {
+    return block(request(blockFields(height)));
+  }
+  
   public String getUnsignedBytes(JSONObject tx)
   {
     return Convert.emptyToNull((String) tx.get("unsignedTransactionBytes"));
@@ -651,17 +548,24 @@ public class NxtApi implements INxtApi
     return Convert.emptyToNull((String) tx.get("fullHash"));
   }
   
-  public JSONObject createPhasedPayment(String recipient, String secretPhrase, String fullHash,
-      int deadline, long finishheight, long payment, String message, String encryptedMessage) throws NxtApiException
-  {    
+  /*
+   * Common fields for phased transfer linked to trigger fullHash.
+   * Transfer specific fields (amount, asset or currency) go right after deadline.
+   */
+  static List<BasicNameValuePair> phasedFields(String requestType, String recipient, String secretPhrase, String fullHash,
+      int deadline, long finishheight, String message, String encryptedMessage, BasicNameValuePair... transfer)
+  {
     List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
-    fields.add(new BasicNameValuePair("requestType", "sendMoney"));
+    fields.add(new BasicNameValuePair("requestType", requestType));
     fields.add(new BasicNameValuePair("recipient", recipient));
     fields.add(new BasicNameValuePair("secretPhrase", secretPhrase));
     fields.add(new BasicNameValuePair("feeNQT", "" + 2 * Constants.ONE_NXT));
     fields.add(new BasicNameValuePair("broadcast", "true"));
     fields.add(new BasicNameValuePair("deadline", "" + deadline));
-    fields.add(new BasicNameValuePair("amountNQT", "" + payment));
+    for(BasicNameValuePair field : transfer)
+    {
+      fields.add(field);
+    }
     fields.add(new BasicNameValuePair("message", message));
     fields.add(new BasicNameValuePair("messageIsText", "true"));
     fields.add(new BasicNameValuePair("messageIsPrunable", "true"));
@@ -673,259 +577,139 @@ public class NxtApi implements INxtApi
     fields.add(new BasicNameValuePair("phasingFinishHeight", "" + finishheight));
     fields.add(new BasicNameValuePair("phasingVotingModel", "4"));
     fields.add(new BasicNameValuePair("phasingQuorum", "1"));
-    fields.add(new BasicNameValuePair("phasingLinkedFullHash", fullHash));    
-    
-    CloseableHttpResponse response = null;
-    JSONObject tx = null;
-    try
-    {
-      try 
-      {
-        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        HttpPost http = new HttpPost(NxtApi.api());
-        http.setHeader("Origin", NxtApi.host);
-        http.setEntity(entity);
-        response = httpclient.execute(http);
-        HttpEntity result = response.getEntity();
-        String content = EntityUtils.toString(result);
-        
-        JSONParser parser = new JSONParser();
-        JSONObject json = (JSONObject)parser.parse(content);
-        tx = (JSONObject) json.get("transactionJSON");
-        if(tx == null)
-        {
-          throw new NxtApiException("no transactionJSON from NRS");
-        }
-      }
-      finally
-      {
-        if(response != null)
-          response.close();
-      }
-    }
-    catch (Exception e)
-    {
-      throw new NxtApiException(e.getMessage());
-    }
-    
-    return tx;
+    fields.add(new BasicNameValuePair("phasingLinkedFullHash", fullHash));
+    return fields;
+  }
+  
+  static List<BasicNameValuePair> phasedPaymentFields(String recipient, String secretPhrase, String fullHash,
+      int deadline, long finishheight, long payment, String message, String encryptedMessage)
+  {
+    return phasedFields("sendMoney", recipient, secretPhrase, fullHash, deadline, finishheight, message, encryptedMessage,
+        new BasicNameValuePair("amountNQT", "" + payment));
+  }
+  
+  static List<BasicNameValuePair> phasedAssetFields(String recipient, String secretPhrase, String fullHash,
+      int deadline, long finishheight, String assetId, Long qty, String message, String encryptedMessage)
+  {
+    return phasedFields("transferAsset", recipient, secretPhrase, fullHash, deadline, finishheight, message, encryptedMessage,
+        new BasicNameValuePair("asset", assetId),
+        new BasicNameValuePair("quantityQNT", "" + qty));
+  }
+  
+  static List<BasicNameValuePair> phasedMonetaryFields(String recipient, String secretPhrase, String fullHash,
+      int deadline, long finishheight, String assetId, Long qty, String message, String encryptedMessage)
+  {
+    return phasedFields("transferCurrency", recipient, secretPhrase, fullHash, deadline, finishheight, message, encryptedMessage,
+        new BasicNameValuePair("currency", assetId),
+        new BasicNameValuePair("units", "" + qty));
+  }
+  
+  public JSONObject createPhasedPayment(String recipient, String secretPhrase, String fullHash,
+      int deadline, long finishheight, long payment, String message, String encryptedMessage) throws NxtApiException
+  {    
+    return transactionJSON(request(phasedPaymentFields(recipient, secretPhrase, fullHash,
+        deadline, finishheight, payment, message, encryptedMessage)));
   }
   
   public JSONObject createPhasedAsset(String recipient, String secretPhrase, String fullHash,
       int deadline, long finishheight, String assetId, Long qty, String message, String encryptedMessage) throws NxtApiException
   {    
-    List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
-    fields.add(new BasicNameValuePair("requestType", "transferAsset"));
-    fields.add(new BasicNameValuePair("recipient", recipient));
-    fields.add(new BasicNameValuePair("secretPhrase", secretPhrase));
-    fields.add(new BasicNameValuePair("feeNQT", "" + 2 * Constants.ONE_NXT));
-    fields.add(new BasicNameValuePair("broadcast", "true"));
-    fields.add(new BasicNameValuePair("deadline", "" + deadline));
-    fields.add(new BasicNameValuePair("asset", assetId)); 
-    fields.add(new BasicNameValuePair("quantityQNT", "" + qty));
-    fields.add(new BasicNameValuePair("message", message));
-    fields.add(new BasicNameValuePair("messageIsText", "true"));
-    fields.add(new BasicNameValuePair("messageIsPrunable", "true"));
-    fields.add(new BasicNameValuePair("messageToEncrypt", encryptedMessage));
-    fields.add(new BasicNameValuePair("messageToEncryptIsText", "true"));
-    ///HACK: cannot have both encrypted and unencrypted prunnable messages
-    fields.add(new BasicNameValuePair("encryptedMessageIsPrunable", "false"));
-    fields.add(new BasicNameValuePair("phased", "true"));
-    fields.add(new BasicNameValuePair("phasingFinishHeight", "" + finishheight));
-    fields.add(new BasicNameValuePair("phasingVotingModel", "4"));
-    fields.add(new BasicNameValuePair("phasingQuorum", "1"));
-    fields.add(new BasicNameValuePair("phasingLinkedFullHash", fullHash));    
-    
-    CloseableHttpResponse response = null;
-    JSONObject tx = null;
-    try
-    {
-      try 
-      {
-        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        HttpPost http = new HttpPost(NxtApi.api());
-        http.setHeader("Origin", NxtApi.host);
-        http.setEntity(entity);
-        response = httpclient.execute(http);
-        HttpEntity result = response.getEntity();
-        String content = EntityUtils.toString(result);
-        
-        JSONParser parser = new JSONParser();
-        JSONObject json = (JSONObject)parser.parse(content);
-        tx = (JSONObject) json.get("transactionJSON");
-        if(tx == null)
-        {
-          throw new NxtApiException("no transactionJSON from NRS");
-        }
-      }
-      finally
-      {
-        if(response != null)
-          response.close();
-      }
-    }
-    catch (Exception e)
-    {
-      throw new NxtApiException(e.getMessage());
-    }
-    
-    return tx;
+    return transactionJSON(request(phasedAssetFields(recipient, secretPhrase, fullHash,
+        deadline, finishheight, assetId, qty, message, encryptedMessage)));
   }
   
   public JSONObject createPhasedMonetary(String recipient, String secretPhrase, String fullHash,
       int deadline, long finishheight, String assetId, Long qty, String message, String encryptedMessage) throws NxtApiException
   {    
+    return transactionJSON(request(phasedMonetaryFields(recipient, secretPhrase, fullHash,
+        deadline, finishheight, assetId, qty, message, encryptedMessage)));
+  }
+  
+  static List<BasicNameValuePair> transactionsFields(String account, int timelimit)
+  {
+    return transactionsFields(account, timestamp(timelimit));
+  }
+  
+  static List<BasicNameValuePair> transactionsFields(String account, String timestamp)
+  {
     List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
-    fields.add(new BasicNameValuePair("requestType", "transferCurrency"));
-    fields.add(new BasicNameValuePair("recipient", recipient));
-    fields.add(new BasicNameValuePair("secretPhrase", secretPhrase));
-    fields.add(new BasicNameValuePair("feeNQT", "" + 2 * Constants.ONE_NXT));
-    fields.add(new BasicNameValuePair("broadcast", "true"));
-    fields.add(new BasicNameValuePair("deadline", "" + deadline));
-    fields.add(new BasicNameValuePair("currency", assetId)); 
-    fields.add(new BasicNameValuePair("units", "" + qty));
-    fields.add(new BasicNameValuePair("message", message));
-    fields.add(new BasicNameValuePair("messageIsText", "true"));
-    fields.add(new BasicNameValuePair("messageIsPrunable", "true"));
-    fields.add(new BasicNameValuePair("messageToEncrypt", encryptedMessage));
-    fields.add(new BasicNameValuePair("messageToEncryptIsText", "true"));
-  ///HACK: cannot have both encrypted and unencrypted prunnable messages
-    fields.add(new BasicNameValuePair("encryptedMessageIsPrunable", "false"));
-    fields.add(new BasicNameValuePair("phased", "true"));
-    fields.add(new BasicNameValuePair("phasingFinishHeight", "" + finishheight));
-    fields.add(new BasicNameValuePair("phasingVotingModel", "4"));
-    fields.add(new BasicNameValuePair("phasingQuorum", "1"));
-    fields.add(new BasicNameValuePair("phasingLinkedFullHash", fullHash));    
-    
-    CloseableHttpResponse response = null;
-    JSONObject tx = null;
-    try
-    {
-      try 
-      {
-        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        HttpPost http = new HttpPost(NxtApi.api());
-        http.setHeader("Origin", NxtApi.host);
-        http.setEntity(entity);
-        response = httpclient.execute(http);
-        HttpEntity result = response.getEntity();
-        String content = EntityUtils.toString(result);
-        
-        JSONParser parser = new JSONParser();
-        JSONObject json = (JSONObject)parser.parse(content);
-        tx = (JSONObject) json.get("transactionJSON");
-        if(tx == null)
-        {
-          throw new NxtApiException("no transactionJSON from NRS");
-        }
-      }
-      finally
-      {
-        if(response != null)
-          response.close();
-      }
-    }
-    catch (Exception e)
+    fields.add(new BasicNameValuePair("requestType", "getBlockchainTransactions"));
+    fields.add(new BasicNameValuePair("account", account));
+    if(timestamp != null)
     {
-      throw new NxtApiException(e.getMessage());
+      fields.add(new BasicNameValuePair("timestamp", timestamp));
     }
-    
-    return tx;
+    return fields;
   }
   
   @SuppressWarnings("unchecked")
+  static List<JSONObject> transactions(JSONObject json)
+  {
+    return (JSONArray)json.get("transactions");
+  }
+  
   public List<JSONObject> getTransactions(String account, int timelimit) throws NxtApiException
   {    
-    String timestamp = null;
-    JSONArray a = new JSONArray();
-    
-    if(timelimit > 0)
+    try
     {
-      if(now() > timelimit)
-      {
-        timestamp = "" + (now() - timelimit);
-      }
+      JSONObject json = NrsClient.instance.request(transactionsFields(account, timelimit));
+      return transactions(json);
     }
-    
+    catch (Exception e)
+    {
+      throw new NxtApiException(e.getMessage());
+    }
+  }
+  
+  /*
+   * Streams getBlockchainTransactions response and keeps only transactions accepted by acceptor.
+   */
+  public List<JSONObject> getTransactions(String account, int timelimit,
+      TransactionFilter.Acceptor acceptor) throws NxtApiException
+  {
+    TransactionFilter filter = new TransactionFilter(acceptor);
     try
     {
-      List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
-      fields.add(new BasicNameValuePair("requestType", "getBlockchainTransactions"));
-      fields.add(new BasicNameValuePair("account", account));
-      if(timestamp != null)
-      {
-        fields.add(new BasicNameValuePair("timestamp", timestamp));
-      }
-      UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-      
-      JSONObject json = null;
-      CloseableHttpResponse response = null;
-      try
-      {
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        HttpPost http = new HttpPost(api());
-        http.setHeader("Origin", host);
-        http.setEntity(entity);
-        response = httpclient.execute(http);
-        HttpEntity result = response.getEntity();
-        String content = EntityUtils.toString(result);
-          
-        JSONParser parser = new JSONParser();
-        json = (JSONObject)parser.parse(content);
-        a = (JSONArray)json.get("transactions");
-      }
-      finally
-      {
-        if(response != null)
-          response.close();
-      }
+      NrsClient.instance.request(transactionsFields(account, timelimit), filter);
     }
     catch (Exception e)
     {
       throw new NxtApiException(e.getMessage());
     }
-    return a;
+    
+    if(filter.getError() != null)
+    {
+      throw new NxtApiException(filter.getError());
+    }
+    return filter.getTransactions();
+  }
+  
+  /*
+   * Reads history page by page, listener gets accepted transactions of each page in history order.
+   */
+  public void getTransactions(String account, int timelimit,
+      TransactionFilter.Acceptor acceptor, TransactionPager.Listener listener) throws NxtApiException
+  {
+    TransactionPager.instance.fetch(account, timelimit, acceptor, listener);
+  }
+  
+  static List<BasicNameValuePair> parseTransactionFields(String data)
+  {
+    List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
+    fields.add(new BasicNameValuePair("requestType", "parseTransaction"));
+    fields.add(new BasicNameValuePair("transactionBytes", data));
+    return fields;
   }
   
   public JSONObject parseTransaction(String data) throws NxtApiException
   {    
-    JSONObject json = null;
-    
     try
     {
-      List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
-      fields.add(new BasicNameValuePair("requestType", "parseTransaction"));
-      fields.add(new BasicNameValuePair("transactionBytes", data));
-      UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-      
-      
-      CloseableHttpResponse response = null;
-      try
-      {
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        HttpPost http = new HttpPost(api());
-        http.setHeader("Origin", host);
-        http.setEntity(entity);
-        response = httpclient.execute(http);
-        HttpEntity result = response.getEntity();
-        String content = EntityUtils.toString(result);
-          
-        JSONParser parser = new JSONParser();
-        json = (JSONObject)parser.parse(content);
-      }
-      finally
-      {
-        if(response != null)
-          response.close();
-      }
+      return NrsClient.instance.request(parseTransactionFields(data));
     }
     catch (Exception e)
     {
       throw new NxtApiException(e.getMessage());
     }
-    return json;
   }
 }
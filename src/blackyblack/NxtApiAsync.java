@@ -0,0 +1,270 @@
+package blackyblack;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.http.message.BasicNameValuePair;
+import org.json.simple.JSONObject;
+
+import nrs.NxtException.NxtApiException;
+import nrs.crypto.Crypto;
+import nrs.util.Convert;
+
+/*
+ * Asynchronous NRS API. Requests and responses are the same as in NxtApi,
+ * only the transport does not block calling thread.
+ * Signing and message encryption run on a separate pool, not on the NRS event loop.
+ */
+public class NxtApiAsync implements INxtApiAsync
+{
+  //platform threads always, the work is CPU only
+  private static final ExecutorService compute = Executors.newFixedThreadPool(computeThreads(),
+      ThreadMode.factory("nrs-crypto", false));
+
+  private static int computeThreads()
+  {
+    int threads = Application.getIntProperty("blackyblack.cryptoThreads");
+    return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+  }
+
+  /*
+   * Account id of a secret phrase. Deriving the key is a full scalar multiplication,
+   * so it runs on the compute pool, never on NRS callbacks.
+   */
+  public static CompletableFuture<Long> accountId(final String secretPhrase)
+  {
+    return CompletableFuture.supplyAsync(() -> Convert.publicKeyToAccountId(Crypto.getPublicKey(secretPhrase)), compute);
+  }
+
+  interface Extractor<T>
+  {
+    T apply(JSONObject json) throws NxtApiException;
+  }
+
+  /*
+   * Sends request and converts NRS response with extractor.
+   * Any failure completes returned future with NxtApiException.
+   */
+  static <T> CompletableFuture<T> request(List<BasicNameValuePair> fields, final Extractor<T> extractor)
+  {
+    final CompletableFuture<T> result = new CompletableFuture<T>();
+    NrsClient.instance.requestAsync(fields).whenComplete((json, e) -> {
+      if(e != null)
+      {
+        result.completeExceptionally(apiException(e));
+        return;
+      }
+      try
+      {
+        result.complete(extractor.apply(json));
+      }
+      catch (Exception x)
+      {
+        result.completeExceptionally(apiException(x));
+      }
+    });
+    return result;
+  }
+
+  static <T> CompletableFuture<T> failed(Throwable e)
+  {
+    CompletableFuture<T> result = new CompletableFuture<T>();
+    result.completeExceptionally(apiException(e));
+    return result;
+  }
+
+  static NxtApiException apiException(Throwable e)
+  {
+    while(e instanceof CompletionException && e.getCause() != null)
+    {
+      e = e.getCause();
+    }
+    if(e instanceof NxtApiException)
+    {
+      return (NxtApiException) e;
+    }
+    return new NxtApiException(e.getMessage(), e);
+  }
+
+  private static JSONObject response(JSONObject json) throws NxtApiException
+  {
+    if(json == null)
+    {
+      throw new NxtApiException("no response from NRS");
+    }
+    return json;
+  }
+
+  public CompletableFuture<String> getPublicKey(String account)
+  {
+    final Long accountId = PublicKeyCache.accountId(account);
+    if(accountId == null)
+    {
+      return request(NxtApi.publicKeyFields(account), json -> NxtApi.publicKey(response(json)));
+    }
+
+    byte[] cached = PublicKeyCache.instance.get(accountId);
+    if(PublicKeyCache.isMissing(cached))
+    {
+      return failed(new NxtApiException("no publicKey from NRS"));
+    }
+    if(cached != null)
+    {
+      return CompletableFuture.completedFuture(Convert.toHexString(cached));
+    }
+
+    return request(NxtApi.publicKeyFields(account), json -> NxtApi.cachePublicKey(accountId, response(json)));
+  }
+
+  public CompletableFuture<JSONObject> create(String recipient, String secretPhrase)
+  {
+    return request(NxtApi.createFields(recipient, secretPhrase), json -> NxtApi.transactionJSON(response(json)));
+  }
+
+  public CompletableFuture<String> broadcast(String message)
+  {
+    return request(NxtApi.broadcastFields(message), json -> NxtApi.txid(response(json)));
+  }
+
+  public CompletableFuture<List<String>> getTransactionIds(String account,
+      Boolean pays, Boolean tells,
+      int timelimit)
+  {
+    return request(NxtApi.transactionIdsFields(account, pays, tells, timelimit), json -> NxtApi.transactionIds(response(json)));
+  }
+
+  public CompletableFuture<JSONObject> getTransaction(String txid)
+  {
+    return request(NxtApi.transactionFields(txid), json -> NxtApi.transaction(json));
+  }
+
+  public CompletableFuture<String> transactionSafe(final String recipient, final String secretPhrase,
+      final String message, final String messageEncrypt, final long amountNQT)
+  {
+    //template tx and recipient key are independent, fetch them together
+    CompletableFuture<String> recipientPublicKey = getPublicKey(recipient);
+    return create(recipient, secretPhrase)
+        .thenCombineAsync(recipientPublicKey, (tempTx, publicKey) -> {
+          try
+          {
+            return NxtApi.signPayment(tempTx, recipient, publicKey, secretPhrase, message, messageEncrypt, amountNQT);
+          }
+          catch (NxtApiException e)
+          {
+            throw new CompletionException(e);
+          }
+        }, compute)
+        .thenCompose(bytes -> broadcast(bytes))
+        .handle((txid, e) -> {
+          if(e != null) throw new CompletionException(apiException(e));
+          return txid;
+        });
+  }
+
+  public CompletableFuture<String> assetTransferSafe(final String recipient, final String secretPhrase,
+      final String message, final String messageEncrypt, final String assetId, final Long assetNQT)
+  {
+    CompletableFuture<String> recipientPublicKey = getPublicKey(recipient);
+    return create(recipient, secretPhrase)
+        .thenCombineAsync(recipientPublicKey, (tempTx, publicKey) -> {
+          try
+          {
+            return NxtApi.signAssetTransfer(tempTx, recipient, publicKey, secretPhrase, message, messageEncrypt, assetId, assetNQT);
+          }
+          catch (NxtApiException e)
+          {
+            throw new CompletionException(e);
+          }
+        }, compute)
+        .thenCompose(bytes -> broadcast(bytes))
+        .handle((txid, e) -> {
+          if(e != null) throw new CompletionException(apiException(e));
+          return txid;
+        });
+  }
+
+  public CompletableFuture<String> pay(String recipient, String secretPhrase, Long amount,
+      String message, String messageEncrypt)
+  {
+    return transactionSafe(recipient, secretPhrase, message, messageEncrypt, amount);
+  }
+
+  public CompletableFuture<String> tell(String recipient, String secretPhrase,
+      String message, String messageEncrypt)
+  {
+    return transactionSafe(recipient, secretPhrase, message, messageEncrypt, 0);
+  }
+
+  public CompletableFuture<String> payAsset(String recipient, String secretPhrase, Long amount,
+      String message, String messageEncrypt, String assetId)
+  {
+    return assetTransferSafe(recipient, secretPhrase, message, messageEncrypt, assetId, amount);
+  }
+
+  public CompletableFuture<String> readEncryptedMessage(String txid, final String secretPhrase)
+  {
+    return getTransaction(txid).thenCompose(o -> {
+      if(o == null) return CompletableFuture.completedFuture("");
+
+      String sender = (String) o.get("senderRS");
+      if(sender == null) return CompletableFuture.completedFuture("");
+
+      return getPublicKey(sender).thenApplyAsync(senderPublicKey -> NxtApi.decryptMessage(o, senderPublicKey, secretPhrase),
+          compute);
+    });
+  }
+
+  public CompletableFuture<JSONObject> getBlockchainStatus()
+  {
+    return request(NxtApi.blockchainStatusFields(), json -> response(json));
+  }
+
+  public CompletableFuture<Long> getCurrentBlock()
+  {
+    return request(NxtApi.blockchainStatusFields(), json -> NxtApi.currentBlock(response(json)));
+  }
+
+  public CompletableFuture<JSONObject> getAsset(String txid)
+  {
+    return request(NxtApi.assetFields(txid), json -> response(json));
+  }
+
+  public CompletableFuture<JSONObject> getBlock(int height)
+  {
+    return request(NxtApi.blockFields(height), json -> NxtApi.block(response(json)));
+  }
+
+  public CompletableFuture<JSONObject> createPhasedPayment(String recipient, String secretPhrase, String fullHash,
+      int deadline, long finishheight, long payment, String message, String encryptedMessage)
+  {
+    return request(NxtApi.phasedPaymentFields(recipient, secretPhrase, fullHash,
+        deadline, finishheight, payment, message, encryptedMessage), json -> NxtApi.transactionJSON(response(json)));
+  }
+
+  public CompletableFuture<JSONObject> createPhasedAsset(String recipient, String secretPhrase, String fullHash,
+      int deadline, long finishheight, String assetId, Long qty, String message, String encryptedMessage)
+  {
+    return request(NxtApi.phasedAssetFields(recipient, secretPhrase, fullHash,
+        deadline, finishheight, assetId, qty, message, encryptedMessage), json -> NxtApi.transactionJSON(response(json)));
+  }
+
+  public CompletableFuture<JSONObject> createPhasedMonetary(String recipient, String secretPhrase, String fullHash,
+      int deadline, long finishheight, String assetId, Long qty, String message, String encryptedMessage)
+  {
+    return request(NxtApi.phasedMonetaryFields(recipient, secretPhrase, fullHash,
+        deadline, finishheight, assetId, qty, message, encryptedMessage), json -> NxtApi.transactionJSON(response(json)));
+  }
+
+  public CompletableFuture<List<JSONObject>> getTransactions(String account, int timelimit)
+  {
+    return request(NxtApi.transactionsFields(account, timelimit), json -> NxtApi.transactions(response(json)));
+  }
+
+  public CompletableFuture<JSONObject> parseTransaction(String data)
+  {
+    return request(NxtApi.parseTransactionFields(data), json -> json);
+  }
+}
@@ -0,0 +1,256 @@
+package blackyblack;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+import nrs.util.Convert;
+import nrs.util.Logger;
+
+/*
+ * LRU cache of account id -> announced public key.
+ * Announced keys never change, so positive entries live until evicted.
+ * Accounts without announced key are remembered for a short time only.
+ * Positive entries can be appended to a local file to survive restarts.
+ */
+public class PublicKeyCache
+{
+  public static final PublicKeyCache instance = new PublicKeyCache();
+
+  private static class Entry
+  {
+    final byte[] publicKey;
+    final long expires;
+
+    Entry(byte[] publicKey, long expires)
+    {
+      this.publicKey = publicKey;
+      this.expires = expires;
+    }
+  }
+
+  private final int capacity;
+  private final long negativeTtl;
+  private final File file;
+  private final LinkedHashMap<Long, Entry> entries;
+  //appends of concurrent puts do not interleave
+  private final Object fileLock = new Object();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong negativeHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  @SuppressWarnings("serial")
+  private PublicKeyCache()
+  {
+    capacity = Math.max(1, Application.getIntProperty("blackyblack.publicKeyCacheSize"));
+    negativeTtl = Application.getIntProperty("blackyblack.publicKeyNegativeTtl");
+    String fileName = Application.getStringProperty("blackyblack.publicKeyCacheFile");
+    file = fileName == null ? null : new File(fileName);
+
+    entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, PublicKeyCache.Entry> eldest)
+      {
+        return size() > capacity;
+      }
+    };
+    load();
+  }
+
+  /*
+   * Returns cached public key, null if account is unknown to cache.
+   * Accounts known to have no public key return empty array.
+   */
+  public synchronized byte[] get(long accountId)
+  {
+    Entry e = entries.get(accountId);
+    if (e == null)
+    {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    if (e.publicKey == null)
+    {
+      if (System.currentTimeMillis() < e.expires)
+      {
+        negativeHits.incrementAndGet();
+        return new byte[0];
+      }
+      entries.remove(accountId);
+      misses.incrementAndGet();
+      return null;
+    }
+
+    hits.incrementAndGet();
+    return e.publicKey;
+  }
+
+  public void put(long accountId, byte[] publicKey)
+  {
+    if (publicKey == null || publicKey.length != 32)
+      return;
+
+    //never trust key that does not belong to account
+    if (Convert.publicKeyToAccountId(publicKey) != accountId)
+      return;
+
+    synchronized (this)
+    {
+      Entry old = entries.put(accountId, new Entry(publicKey.clone(), 0));
+      if (old != null && old.publicKey != null)
+        return;
+    }
+    //file is written outside of the cache lock, get() does not wait for disk
+    append(accountId, publicKey);
+  }
+
+  public synchronized void putMissing(long accountId)
+  {
+    if (negativeTtl <= 0)
+      return;
+    Entry old = entries.get(accountId);
+    if (old != null && old.publicKey != null)
+      return;
+    entries.put(accountId, new Entry(null, System.currentTimeMillis() + negativeTtl));
+  }
+
+  private void load()
+  {
+    if (file == null || !file.exists())
+      return;
+
+    int lines = 0;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)))
+    {
+      String line;
+      while ((line = reader.readLine()) != null)
+      {
+        lines++;
+        String[] parts = line.trim().split(" ");
+        if (parts.length != 2)
+          continue;
+        try
+        {
+          long accountId = Convert.parseUnsignedLong(parts[0]);
+          byte[] publicKey = Convert.parseHexString(parts[1]);
+          if (publicKey.length == 32 && Convert.publicKeyToAccountId(publicKey) == accountId)
+          {
+            entries.put(accountId, new Entry(publicKey, 0));
+          }
+        }
+        catch (RuntimeException e)
+        {
+          //skip broken line
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      Logger.logMessage("Could not load public keys from " + file, e);
+      return;
+    }
+
+    Logger.logMessage("Loaded " + entries.size() + " public keys from " + file);
+    //file grows with evicted keys, keep it close to cache size
+    if (lines > entries.size() * 2)
+    {
+      rewrite();
+    }
+  }
+
+  private void rewrite()
+  {
+    File tmp = new File(file.getPath() + ".tmp");
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))
+    {
+      for (Map.Entry<Long, Entry> e : entries.entrySet())
+      {
+        if (e.getValue().publicKey == null)
+          continue;
+        writer.write(line(e.getKey(), e.getValue().publicKey));
+      }
+    }
+    catch (IOException e)
+    {
+      Logger.logMessage("Could not write public keys to " + tmp, e);
+      return;
+    }
+    if (!tmp.renameTo(file))
+    {
+      file.delete();
+      tmp.renameTo(file);
+    }
+  }
+
+  private void append(long accountId, byte[] publicKey)
+  {
+    if (file == null)
+      return;
+
+    synchronized (fileLock)
+    {
+      try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8))
+      {
+        writer.write(line(accountId, publicKey));
+      }
+      catch (IOException e)
+      {
+        Logger.logMessage("Could not save public key to " + file, e);
+      }
+    }
+  }
+
+  private static String line(long accountId, byte[] publicKey)
+  {
+    return Convert.toUnsignedLong(accountId) + " " + Convert.toHexString(publicKey) + "\n";
+  }
+
+  @SuppressWarnings("unchecked")
+  public JSONObject getStats()
+  {
+    JSONObject o = new JSONObject();
+    o.put("hits", hits.get());
+    o.put("negativeHits", negativeHits.get());
+    o.put("misses", misses.get());
+    synchronized (this)
+    {
+      o.put("size", entries.size());
+    }
+    o.put("capacity", capacity);
+    return o;
+  }
+
+  public static boolean isMissing(byte[] publicKey)
+  {
+    return publicKey != null && publicKey.length == 0;
+  }
+
+  /*
+   * Parses RS or numeric account, null when account can not be cached.
+   */
+  public static Long accountId(String account)
+  {
+    try
+    {
+      return Convert.parseAccountId(account);
+    }
+    catch (RuntimeException e)
+    {
+      return null;
+    }
+  }
+}
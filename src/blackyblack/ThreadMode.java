@@ -0,0 +1,30 @@
+package blackyblack;
+
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Threads running API requests and NRS calls, blackyblack.threadMode:
+ * platform - pools of platform threads, swap requests are released with servlet async while NRS answers
+ * virtual - every API request runs in its own virtual thread and blocks on NRS there,
+ * server threads only accept connections and read requests
+ * Pool sizes still limit how many NRS calls of each kind run at the same time.
+ */
+public class ThreadMode
+{
+  public static final boolean virtual = "virtual".equalsIgnoreCase(Application.getStringProperty("blackyblack.threadMode"));
+
+  public static ThreadFactory factory(String name)
+  {
+    return factory(name, virtual);
+  }
+
+  public static ThreadFactory factory(String name, boolean virtual)
+  {
+    if (virtual)
+    {
+      //virtual threads are always daemon
+      return Thread.ofVirtual().name(name + "-", 1).factory();
+    }
+    return new DaemonThreadFactory(name);
+  }
+}
@@ -0,0 +1,207 @@
+package blackyblack;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.ParseException;
+
+/*
+ * Streaming handler for getBlockchainTransactions response.
+ * Only one transaction is kept in memory while it is being read,
+ * it is dropped right away unless acceptor wants it.
+ * Top-level scalar fields (errorDescription, requestProcessingTime) go to getResponse().
+ */
+public class TransactionFilter implements ContentHandler
+{
+  public interface Acceptor
+  {
+    boolean accept(JSONObject tx);
+  }
+
+  public static final Acceptor all = new Acceptor()
+  {
+    @Override
+    public boolean accept(JSONObject tx)
+    {
+      return true;
+    }
+  };
+
+  private final Acceptor acceptor;
+  private final List<JSONObject> transactions = new ArrayList<JSONObject>();
+  private final JSONObject response = new JSONObject();
+
+  //containers of the transaction being read, root transaction at the bottom
+  private final LinkedList<Object> stack = new LinkedList<Object>();
+  private final LinkedList<String> keys = new LinkedList<String>();
+  private int depth;
+  private String topKey;
+  private boolean inTransactions;
+  private int count;
+
+  public TransactionFilter(Acceptor acceptor)
+  {
+    this.acceptor = acceptor;
+  }
+
+  public List<JSONObject> getTransactions()
+  {
+    return transactions;
+  }
+
+  /*
+   * Number of transactions in response, including dropped ones.
+   */
+  public int getCount()
+  {
+    return count;
+  }
+
+  public JSONObject getResponse()
+  {
+    return response;
+  }
+
+  public String getError()
+  {
+    Object error = response.get("errorDescription");
+    return error == null ? null : error.toString();
+  }
+
+  @Override
+  public void startJSON() throws ParseException, IOException
+  {
+  }
+
+  @Override
+  public void endJSON() throws ParseException, IOException
+  {
+  }
+
+  @Override
+  public boolean startObject() throws ParseException, IOException
+  {
+    depth++;
+    if (!stack.isEmpty())
+    {
+      JSONObject o = new JSONObject();
+      attach(o);
+      stack.push(o);
+    }
+    else if (inTransactions && depth == 3)
+    {
+      stack.push(new JSONObject());
+    }
+    return true;
+  }
+
+  @Override
+  public boolean endObject() throws ParseException, IOException
+  {
+    depth--;
+    if (stack.isEmpty())
+      return true;
+
+    Object o = stack.pop();
+    if (stack.isEmpty())
+    {
+      count++;
+      JSONObject tx = (JSONObject) o;
+      if (acceptor.accept(tx))
+      {
+        transactions.add(tx);
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean startObjectEntry(String key) throws ParseException, IOException
+  {
+    if (!stack.isEmpty())
+    {
+      keys.push(key);
+    }
+    else if (depth == 1)
+    {
+      topKey = key;
+    }
+    return true;
+  }
+
+  @Override
+  public boolean endObjectEntry() throws ParseException, IOException
+  {
+    if (!stack.isEmpty())
+    {
+      keys.pop();
+    }
+    return true;
+  }
+
+  @Override
+  public boolean startArray() throws ParseException, IOException
+  {
+    depth++;
+    if (!stack.isEmpty())
+    {
+      JSONArray a = new JSONArray();
+      attach(a);
+      stack.push(a);
+    }
+    else if (depth == 2 && "transactions".equals(topKey))
+    {
+      inTransactions = true;
+    }
+    return true;
+  }
+
+  @Override
+  public boolean endArray() throws ParseException, IOException
+  {
+    if (!stack.isEmpty())
+    {
+      stack.pop();
+    }
+    else if (depth == 2)
+    {
+      inTransactions = false;
+    }
+    depth--;
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public boolean primitive(Object value) throws ParseException, IOException
+  {
+    if (!stack.isEmpty())
+    {
+      attach(value);
+    }
+    else if (depth == 1 && topKey != null)
+    {
+      response.put(topKey, value);
+    }
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void attach(Object value)
+  {
+    Object parent = stack.peek();
+    if (parent instanceof JSONObject)
+    {
+      ((JSONObject) parent).put(keys.peek(), value);
+    }
+    else
+    {
+      ((JSONArray) parent).add(value);
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package blackyblack;
+
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.message.BasicNameValuePair;
+import org.json.simple.JSONObject;
+
+import nrs.NxtException.NxtApiException;
+
+/*
+ * Reads account history with firstIndex/lastIndex pages.
+ * Several pages of one scan are requested at the same time, page size follows NRS response time.
+ * Pages are handed to listener in history order on the calling thread,
+ * as soon as all pages before them are received.
+ */
+public class TransactionPager
+{
+  public static final TransactionPager instance = new TransactionPager();
+
+  public interface Listener
+  {
+    void transactions(List<JSONObject> txs);
+  }
+
+  private static class Page
+  {
+    int firstIndex;
+    int size;
+    int count;
+    long elapsed;
+    List<JSONObject> transactions;
+  }
+
+  private final int minPageSize;
+  private final int maxPageSize;
+  private final int initialPageSize;
+  private final int parallelPages;
+  private final long pageTime;
+  private final ExecutorService executor;
+
+  private final AtomicLong pages = new AtomicLong();
+  private final AtomicLong transactions = new AtomicLong();
+  private volatile int lastPageSize;
+
+  private TransactionPager()
+  {
+    maxPageSize = Math.max(1, Application.getIntProperty("blackyblack.historyMaxPageSize"));
+    minPageSize = Math.max(1, Math.min(maxPageSize, Application.getIntProperty("blackyblack.historyMinPageSize")));
+    initialPageSize = Math.max(minPageSize, Math.min(maxPageSize, Application.getIntProperty("blackyblack.historyPageSize")));
+    parallelPages = Math.max(1, Application.getIntProperty("blackyblack.historyParallelPages"));
+    pageTime = Application.getIntProperty("blackyblack.historyPageTime");
+    int threads = Math.max(1, Application.getIntProperty("blackyblack.historyThreads"));
+    executor = Executors.newFixedThreadPool(threads, ThreadMode.factory("nrs-history"));
+    lastPageSize = initialPageSize;
+  }
+
+  public void fetch(String account, int timelimit, TransactionFilter.Acceptor acceptor,
+      Listener listener) throws NxtApiException
+  {
+    //same lower bound for all pages, otherwise pages could shift against each other
+    String timestamp = NxtApi.timestamp(timelimit);
+    CompletionService<Page> service = new ExecutorCompletionService<Page>(executor);
+    TreeMap<Integer, Page> received = new TreeMap<Integer, Page>();
+    TreeMap<Integer, Future<Page>> pending = new TreeMap<Integer, Future<Page>>();
+
+    int size = initialPageSize;
+    int nextIndex = 0;
+    int deliverIndex = 0;
+    //index of the first missing transaction, unknown until a short page arrives
+    int endIndex = -1;
+
+    try
+    {
+      while (true)
+      {
+        while (endIndex < 0 && pending.size() < parallelPages)
+        {
+          pending.put(nextIndex, service.submit(page(account, timestamp, acceptor, nextIndex, size)));
+          nextIndex += size;
+        }
+        if (pending.isEmpty())
+          break;
+
+        Future<Page> done = service.take();
+        //cancelled pages past the end are queued too
+        if (done.isCancelled())
+          continue;
+        Page p = done.get();
+        pending.remove(p.firstIndex);
+        pages.incrementAndGet();
+        transactions.addAndGet(p.count);
+
+        size = adapt(size, p);
+        if (p.count < p.size)
+        {
+          int end = p.firstIndex + p.count;
+          endIndex = endIndex < 0 ? end : Math.min(endIndex, end);
+          //pages past the end can only be empty
+          for (Future<Page> f : pending.tailMap(endIndex, true).values())
+          {
+            f.cancel(true);
+          }
+          pending.tailMap(endIndex, true).clear();
+        }
+        received.put(p.firstIndex, p);
+
+        while (!received.isEmpty() && received.firstKey() == deliverIndex)
+        {
+          Page next = received.pollFirstEntry().getValue();
+          deliverIndex += next.size;
+          if (!next.transactions.isEmpty())
+          {
+            listener.transactions(next.transactions);
+          }
+        }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new NxtApiException("interrupted while reading account history");
+    }
+    catch (ExecutionException e)
+    {
+      Throwable cause = e.getCause();
+      if (cause instanceof NxtApiException)
+        throw (NxtApiException) cause;
+      throw new NxtApiException(cause.getMessage());
+    }
+    finally
+    {
+      for (Future<Page> f : pending.values())
+      {
+        f.cancel(true);
+      }
+    }
+    lastPageSize = size;
+  }
+
+  //fast pages grow, slow pages shrink
+  private int adapt(int size, Page p)
+  {
+    if (pageTime <= 0 || p.count < p.size)
+      return size;
+    if (p.elapsed > pageTime)
+      return Math.max(minPageSize, size / 2);
+    if (p.elapsed < pageTime / 2)
+      return Math.min(maxPageSize, size * 2);
+    return size;
+  }
+
+  private Callable<Page> page(final String account, final String timestamp,
+      final TransactionFilter.Acceptor acceptor, final int firstIndex, final int size)
+  {
+    return new Callable<Page>()
+    {
+      @Override
+      public Page call() throws Exception
+      {
+        long start = System.currentTimeMillis();
+        TransactionFilter filter = new TransactionFilter(acceptor);
+        List<BasicNameValuePair> fields = NxtApi.transactionsFields(account, timestamp);
+        fields.add(new BasicNameValuePair("firstIndex", "" + firstIndex));
+        fields.add(new BasicNameValuePair("lastIndex", "" + (firstIndex + size - 1)));
+        NrsClient.instance.request(fields, filter);
+        if (filter.getError() != null)
+        {
+          throw new NxtApiException(filter.getError());
+        }
+
+        Page p = new Page();
+        p.firstIndex = firstIndex;
+        p.size = size;
+        p.count = filter.getCount();
+        p.transactions = filter.getTransactions();
+        p.elapsed = System.currentTimeMillis() - start;
+        return p;
+      }
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  public JSONObject getStats()
+  {
+    JSONObject o = new JSONObject();
+    o.put("pages", pages.get());
+    o.put("transactions", transactions.get());
+    o.put("pageSize", lastPageSize);
+    return o;
+  }
+
+  public void shutdown()
+  {
+    executor.shutdownNow();
+  }
+}
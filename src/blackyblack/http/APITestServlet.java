@@ -2,15 +2,31 @@ package blackyblack.http;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
 import nrs.util.Convert;
@@ -21,6 +37,8 @@ import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
 import blackyblack.Application;
+import blackyblack.Metrics;
+import blackyblack.ThreadMode;
 
 
 public class APITestServlet extends HttpServlet {
@@ -48,6 +66,156 @@ public class APITestServlet extends HttpServlet {
         return false;
     }
 }
+
+  /*
+   * Handler waiting on NRS. Servlet thread is released by startAsync and the response
+   * is written when the future completes on NRS client callbacks.
+   * Callers without async support get the blocking processRequest.
+   */
+  abstract static class AsyncAPIRequestHandler extends APIRequestHandler {
+
+    AsyncAPIRequestHandler(String... parameters) {
+        super(parameters);
+    }
+
+    abstract CompletableFuture<JSONStreamAware> processRequestAsync(HttpServletRequest request) throws Exception;
+
+    @Override
+    final JSONStreamAware processRequest(HttpServletRequest request) throws Exception {
+        try
+        {
+          return processRequestAsync(request).get();
+        }
+        catch (ExecutionException e)
+        {
+          Throwable cause = e.getCause();
+          throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    static CompletableFuture<JSONStreamAware> done(JSONStreamAware response) {
+        return CompletableFuture.completedFuture(response);
+    }
+
+    @SuppressWarnings("unchecked")
+    static JSONStreamAware nrsError(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null)
+        {
+          e = e.getCause();
+        }
+        Logger.logMessage("Error in NRS API call: " + e.getMessage());
+
+        JSONObject answer = new JSONObject();
+        answer.put("errorCode", 9);
+        answer.put("errorDescription", e.getMessage());
+        answer.put("error", e.getMessage());
+        return answer;
+    }
+}
+
+  /*
+   * Answer with an ETag. Without body it is written as 304 Not Modified.
+   * Batch writes the body alone, its sub-requests are never conditional.
+   */
+  static final class TaggedResponse implements JSONStreamAware {
+
+    final String etag;
+    final JSONStreamAware body;
+
+    TaggedResponse(String etag, JSONStreamAware body) {
+        this.etag = etag;
+        this.body = body;
+    }
+
+    @Override
+    public void writeJSONString(Writer out) throws IOException {
+        if (body != null)
+        {
+          body.writeJSONString(out);
+        }
+        else
+        {
+          JSONResponses.NOT_MODIFIED.writeJSONString(out);
+        }
+    }
+}
+
+  /*
+   * Parameters and headers copied on the servlet thread. A handler running on its own
+   * thread may outlive the request, which is recycled once timeout or error completes it.
+   */
+  static class RequestSnapshot extends HttpServletRequestWrapper
+  {
+    private final Map<String, String[]> parameters;
+    private final Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+
+    RequestSnapshot(HttpServletRequest req)
+    {
+      super(req);
+      this.parameters = Collections.unmodifiableMap(new HashMap<String, String[]>(req.getParameterMap()));
+      Enumeration<String> names = req.getHeaderNames();
+      while (names != null && names.hasMoreElements())
+      {
+        String name = names.nextElement();
+        headers.put(name, Collections.list(req.getHeaders(name)));
+      }
+    }
+
+    @Override
+    public String getParameter(String name)
+    {
+      String[] values = parameters.get(name);
+      return values == null ? null : values[0];
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap()
+    {
+      return parameters;
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames()
+    {
+      return Collections.enumeration(parameters.keySet());
+    }
+
+    @Override
+    public String[] getParameterValues(String name)
+    {
+      return parameters.get(name);
+    }
+
+    @Override
+    public String getHeader(String name)
+    {
+      List<String> values = headers.get(name);
+      return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name)
+    {
+      List<String> values = headers.get(name);
+      return Collections.enumeration(values == null ? Collections.<String> emptyList() : values);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames()
+    {
+      return Collections.enumeration(new ArrayList<String>(headers.keySet()));
+    }
+  }
+
+  private static final int maxInFlight = Math.max(1, Application.getIntProperty("blackyblack.apiMaxInFlight"));
+  private static final long asyncTimeout = Math.max(0, Application.getIntProperty("blackyblack.apiAsyncTimeout"));
+  private static final AtomicInteger inFlight = new AtomicInteger();
+  private static final ExecutorService virtualExecutor = ThreadMode.virtual
+      ? Executors.newThreadPerTaskExecutor(ThreadMode.factory("api")) : null;
+  private static final AtomicLong asyncRequests = new AtomicLong();
+  private static final AtomicLong rejected = new AtomicLong();
+  private static final AtomicLong timeouts = new AtomicLong();
+  private static final AtomicLong notModified = new AtomicLong();
   
   static {
     Map<String,APIRequestHandler> map = new HashMap<>();
@@ -56,6 +224,9 @@ public class APITestServlet extends HttpServlet {
     map.put("accept", AcceptHandler.instance);
     map.put("scan", ScanHandler.instance);
     map.put("trigger", TriggerHandler.instance);
+    map.put("status", StatusHandler.instance);
+    map.put("journal", JournalHandler.instance);
+    map.put("batch", BatchHandler.instance);
     
     apiRequestHandlers = Collections.unmodifiableMap(map);
   }
@@ -72,6 +243,10 @@ public class APITestServlet extends HttpServlet {
     resp.setDateHeader("Expires", 0);
 
     JSONStreamAware response = JSON.prepare(new JSONObject());
+    boolean async = false;
+    long start = System.nanoTime();
+    String metric = null;
+    boolean error = true;
 
     try
     {      
@@ -89,7 +264,25 @@ public class APITestServlet extends HttpServlet {
       
       String command = Convert.emptyToNull(req.getParameter("requestType"));
       APIRequestHandler apiRequestHandler = apiRequestHandlers.get(command);
+      //only known request types get timers of their own
+      metric = apiRequestHandler != null ? command : null;
+      //with virtual threads every request leaves the server thread, otherwise only those waiting for NRS
+      if (apiRequestHandler != null && req.isAsyncSupported()
+          && (virtualExecutor != null || apiRequestHandler instanceof AsyncAPIRequestHandler))
+      {
+        if (inFlight.incrementAndGet() > maxInFlight)
+        {
+          inFlight.decrementAndGet();
+          rejected.incrementAndGet();
+          response = JSONResponses.TOO_MANY_REQUESTS;
+          return;
+        }
+        async = true;
+        processAsync(req, resp, apiRequestHandler, metric, start);
+        return;
+      }
       response = apiRequestHandler.processRequest(req);
+      error = false;
     }
     catch (Exception e) 
     {
@@ -98,11 +291,170 @@ public class APITestServlet extends HttpServlet {
     }
     finally
     {
-        resp.setContentType("text/plain; charset=UTF-8");
-        try (Writer writer = resp.getWriter())
+      if (!async)
+      {
+        write(resp, response);
+        Metrics.api.record(metric, start, error);
+      }
+    }
+  }
+
+  private static void write(HttpServletResponse resp, JSONStreamAware response) throws IOException
+  {
+    if (response instanceof TaggedResponse)
+    {
+      TaggedResponse tagged = (TaggedResponse) response;
+      //tagged answers may be kept by clients, but only after asking again
+      resp.setHeader("Cache-Control", "no-cache, private");
+      resp.setHeader("ETag", tagged.etag);
+      if (tagged.body == null)
+      {
+        notModified.incrementAndGet();
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+    }
+    resp.setContentType("text/plain; charset=UTF-8");
+    try (Writer writer = resp.getWriter())
+    {
+      response.writeJSONString(writer);
+    }
+  }
+
+  /*
+   * Whichever comes first, handler answer, timeout or error, writes the response
+   * and completes the request. The in-flight slot is held until the handler returns
+   * or its future completes, even after timeout, so maxInFlight bounds the work
+   * still running.
+   */
+  private void processAsync(final HttpServletRequest req, final HttpServletResponse resp, final APIRequestHandler handler,
+      final String metric, final long start)
+  {
+    asyncRequests.incrementAndGet();
+    final AtomicBoolean completed = new AtomicBoolean();
+    final AsyncContext context = req.startAsync();
+    //time is recorded by whichever answer is written
+    final BiConsumer<JSONStreamAware, Boolean> finish = (response, error) -> {
+      if (complete(context, resp, completed, response))
+      {
+        Metrics.api.record(metric, start, error);
+      }
+    };
+    context.setTimeout(asyncTimeout);
+    context.addListener(new AsyncListener()
+    {
+      @Override
+      public void onTimeout(AsyncEvent event)
+      {
+        timeouts.incrementAndGet();
+        finish.accept(JSONResponses.REQUEST_TIMEOUT, true);
+      }
+
+      @Override
+      public void onError(AsyncEvent event)
+      {
+        finish.accept(JSONResponses.ERROR_INCORRECT_REQUEST, true);
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event)
+      {
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event)
+      {
+      }
+    });
+
+    if (virtualExecutor != null)
+    {
+      //the handler must not touch the request, it may be completed by timeout meanwhile
+      final HttpServletRequest snapshot = new RequestSnapshot(req);
+      //blocking handler in its own virtual thread, a blocked virtual thread costs little
+      virtualExecutor.execute(() -> {
+        JSONStreamAware response;
+        boolean error = false;
+        try
         {
-          response.writeJSONString(writer);
+          response = handler.processRequest(snapshot);
         }
+        catch (Exception e)
+        {
+          Logger.logMessage("Error processing API request", e);
+          response = JSONResponses.ERROR_INCORRECT_REQUEST;
+          error = true;
+        }
+        try
+        {
+          finish.accept(response, error);
+        }
+        finally
+        {
+          inFlight.decrementAndGet();
+        }
+      });
+      return;
     }
+
+    CompletableFuture<JSONStreamAware> future;
+    try
+    {
+      //parameters are read here, callbacks must not touch the request
+      future = ((AsyncAPIRequestHandler) handler).processRequestAsync(req);
+    }
+    catch (Exception e)
+    {
+      Logger.logMessage("Error processing API request", e);
+      future = AsyncAPIRequestHandler.done(JSONResponses.ERROR_INCORRECT_REQUEST);
+    }
+    future.whenComplete((response, e) -> {
+      if (e != null)
+      {
+        Logger.logMessage("Error processing API request: " + e.getMessage());
+        response = JSONResponses.ERROR_INCORRECT_REQUEST;
+      }
+      try
+      {
+        finish.accept(response, e != null);
+      }
+      finally
+      {
+        inFlight.decrementAndGet();
+      }
+    });
+  }
+
+  private static boolean complete(AsyncContext context, HttpServletResponse resp, AtomicBoolean completed,
+      JSONStreamAware response)
+  {
+    if (!completed.compareAndSet(false, true))
+      return false;
+    try
+    {
+      write(resp, response);
+    }
+    catch (IOException | RuntimeException e)
+    {
+      Logger.logDebugMessage("Failed to write API response: " + e.getMessage());
+    }
+    finally
+    {
+      context.complete();
+    }
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static JSONObject getStats()
+  {
+    JSONObject o = new JSONObject();
+    o.put("inFlight", inFlight.get());
+    o.put("maxInFlight", maxInFlight);
+    o.put("asyncRequests", asyncRequests.get());
+    o.put("rejected", rejected.get());
+    o.put("timeouts", timeouts.get());
+    o.put("notModified", notModified.get());
+    return o;
   }
 }
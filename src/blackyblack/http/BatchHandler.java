@@ -0,0 +1,267 @@
+package blackyblack.http;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+
+import blackyblack.Application;
+import blackyblack.ThreadMode;
+import nrs.util.Convert;
+import nrs.util.Logger;
+
+/*
+ * requestType=batch&requests=[{"requestType":"scan","account":"NXT-...","timelimit":3600}, ...]
+ * Runs sub-requests with other handlers, at most batchParallelism of one batch at a time.
+ * Results come in request order, a failed sub-request gets its own error object.
+ * No server thread waits for the batch, which takes one in-flight slot as a whole.
+ */
+public final class BatchHandler extends APITestServlet.AsyncAPIRequestHandler {
+  public static final BatchHandler instance = new BatchHandler();
+
+  private final int maxRequests;
+  private final int parallelism;
+  private final ExecutorService executor;
+
+  private BatchHandler() {
+    super("requests");
+    maxRequests = Math.max(1, Application.getIntProperty("blackyblack.batchMaxRequests"));
+    parallelism = Math.max(1, Application.getIntProperty("blackyblack.batchParallelism"));
+    int threads = Math.max(1, Application.getIntProperty("blackyblack.batchThreads"));
+    executor = Executors.newFixedThreadPool(threads, ThreadMode.factory("api-batch"));
+  }
+
+  /*
+   * Request with parameters of one sub-request.
+   * Everything else comes from the batch request.
+   */
+  private static class SubRequest extends HttpServletRequestWrapper
+  {
+    private final Map<String, String[]> parameters;
+
+    SubRequest(HttpServletRequest req, Map<String, String[]> parameters)
+    {
+      super(req);
+      this.parameters = Collections.unmodifiableMap(parameters);
+    }
+
+    @Override
+    public String getParameter(String name)
+    {
+      String[] values = parameters.get(name);
+      return values == null ? null : values[0];
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap()
+    {
+      return parameters;
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames()
+    {
+      return Collections.enumeration(parameters.keySet());
+    }
+
+    @Override
+    public String[] getParameterValues(String name)
+    {
+      return parameters.get(name);
+    }
+
+    //sub-requests share one HTTP answer, none of them can be answered as not modified
+    @Override
+    public String getHeader(String name)
+    {
+      return "If-None-Match".equalsIgnoreCase(name) ? null : super.getHeader(name);
+    }
+  }
+
+  @Override
+  CompletableFuture<JSONStreamAware> processRequestAsync(HttpServletRequest req) throws Exception {
+
+    String requestsValue = Convert.emptyToNull(req.getParameter("requests"));
+    if (requestsValue == null)
+    {
+      return done(JSONResponses.MISSING_REQUESTS);
+    }
+
+    Object parsed = JSONValue.parse(requestsValue);
+    if (!(parsed instanceof JSONArray))
+    {
+      return done(JSONResponses.INCORRECT_REQUESTS);
+    }
+    JSONArray requests = (JSONArray) parsed;
+    if (requests.size() > maxRequests)
+    {
+      return done(JSONResponses.incorrect("requests", "(at most " + maxRequests + " sub-requests)"));
+    }
+
+    //sub-requests may still run after a timeout completed the servlet request, they get a copy of it
+    return new Window(new APITestServlet.RequestSnapshot(req), requests).start();
+  }
+
+  /*
+   * Sub-requests of one batch, at most parallelism of them running:
+   * each finished sub-request starts the next one.
+   */
+  private class Window
+  {
+    private final HttpServletRequest req;
+    private final JSONArray requests;
+    private final JSONStreamAware[] results;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger remaining;
+    private final CompletableFuture<JSONStreamAware> done = new CompletableFuture<JSONStreamAware>();
+
+    Window(HttpServletRequest req, JSONArray requests)
+    {
+      this.req = req;
+      this.requests = requests;
+      this.results = new JSONStreamAware[requests.size()];
+      this.remaining = new AtomicInteger(results.length);
+    }
+
+    CompletableFuture<JSONStreamAware> start()
+    {
+      if (results.length == 0)
+      {
+        done.complete(answer(results));
+        return done;
+      }
+      for (int i = 0; i < Math.min(parallelism, results.length); i++)
+      {
+        submitNext();
+      }
+      return done;
+    }
+
+    private void submitNext()
+    {
+      final int i = next.getAndIncrement();
+      if (i >= results.length)
+        return;
+      CompletableFuture<JSONStreamAware> item;
+      try
+      {
+        item = item(req, requests.get(i));
+      }
+      catch (Exception e)
+      {
+        item = new CompletableFuture<JSONStreamAware>();
+        item.completeExceptionally(e);
+      }
+      item.whenComplete((response, e) -> {
+        if (e == null)
+        {
+          results[i] = response;
+        }
+        else
+        {
+          Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+          Logger.logMessage("Error processing batch request " + i, cause instanceof Exception ? (Exception) cause : new Exception(cause));
+          results[i] = error(cause);
+        }
+        if (remaining.decrementAndGet() > 0)
+        {
+          submitNext();
+          return;
+        }
+        done.complete(answer(results));
+      });
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static JSONStreamAware answer(JSONStreamAware[] results)
+  {
+    JSONArray resultArray = new JSONArray();
+    for (JSONStreamAware r : results)
+    {
+      resultArray.add(r);
+    }
+    JSONObject answer = new JSONObject();
+    answer.put("query_status", "good");
+    answer.put("results", resultArray);
+    return answer;
+  }
+
+  /*
+   * Handlers waiting on NRS answer through their futures,
+   * blocking ones run on the batch threads, never on the caller.
+   */
+  private CompletableFuture<JSONStreamAware> item(HttpServletRequest req, Object request) throws Exception
+  {
+    if (!(request instanceof JSONObject))
+    {
+      return done(JSONResponses.INCORRECT_REQUESTS);
+    }
+
+    Map<String, String[]> parameters = new HashMap<String, String[]>();
+    for (Object o : ((JSONObject) request).entrySet())
+    {
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      Object value = e.getValue();
+      if (value == null)
+        continue;
+      //nested arrays and objects are passed on as JSON text, the way a form field would carry them
+      String s = value instanceof String ? (String) value : JSONValue.toJSONString(value);
+      parameters.put(String.valueOf(e.getKey()), new String[] { s });
+    }
+
+    String[] command = parameters.get("requestType");
+    final APITestServlet.APIRequestHandler handler = command == null ? null : APITestServlet.apiRequestHandlers.get(command[0]);
+    if (handler == null || handler == instance)
+    {
+      return done(JSONResponses.UNKNOWN_REQUEST);
+    }
+    final SubRequest sub = new SubRequest(req, parameters);
+    if (handler instanceof APITestServlet.AsyncAPIRequestHandler)
+    {
+      return ((APITestServlet.AsyncAPIRequestHandler) handler).processRequestAsync(sub);
+    }
+    return CompletableFuture.supplyAsync(() -> {
+      try
+      {
+        return handler.processRequest(sub);
+      }
+      catch (Exception e)
+      {
+        throw new CompletionException(e);
+      }
+    }, executor);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static JSONStreamAware error(Throwable e)
+  {
+    JSONObject response = new JSONObject();
+    response.put("query_status", "bad");
+    response.put("errorCode", 1);
+    response.put("errorDescription", e.getMessage() != null ? e.getMessage() : e.toString());
+    return response;
+  }
+
+  public void shutdown()
+  {
+    executor.shutdownNow();
+  }
+
+  @Override
+  boolean requirePost() {
+    return true;
+  }
+}
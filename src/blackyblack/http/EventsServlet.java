@@ -0,0 +1,422 @@
+package blackyblack.http;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+
+import blackyblack.Application;
+import blackyblack.ThreadMode;
+import blackyblack.quack.SwapWatcher;
+import nrs.util.Convert;
+import nrs.util.Logger;
+
+/*
+ * Swap state changes from SwapWatcher: /events?account=NXT-...&triggerhash=...
+ * account and triggerhash may be repeated or comma separated, without triggerhash every swap of the accounts is sent.
+ * With Accept: text/event-stream events are streamed as Server-Sent Events, each with its id.
+ * Otherwise the request is a long poll: with since=id it waits up to eventsPollTimeout
+ * for events after that id, without since it answers the current last id at once.
+ * A reset answer or event means events were missed, scan once and go on from its last id.
+ */
+public class EventsServlet extends HttpServlet
+{
+  private static final long serialVersionUID = 1L;
+
+  private static final int maxSubscribers = Math.max(1, Application.getIntProperty("blackyblack.eventsMaxSubscribers"));
+  private static final long pollTimeout = Math.max(1000, Application.getIntProperty("blackyblack.eventsPollTimeout"));
+  private static final AtomicInteger subscribers = new AtomicInteger();
+  //writes to clients, a slow client holds one of these and not the watcher
+  private static final ExecutorService executor = Executors.newFixedThreadPool(
+      Math.max(1, Application.getIntProperty("blackyblack.eventsThreads")), ThreadMode.factory("events"));
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+  {
+    process(req, resp);
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+  {
+    process(req, resp);
+  }
+
+  private void process(HttpServletRequest req, HttpServletResponse resp) throws IOException
+  {
+    resp.setHeader("Cache-Control", "no-cache, no-store, must-revalidate, private");
+    resp.setHeader("Pragma", "no-cache");
+    resp.setDateHeader("Expires", 0);
+
+    if (Application.allowedBotHosts != null && !Application.allowedBotHosts.contains(req.getRemoteHost()))
+    {
+      write(resp, JSONResponses.ERROR_NOT_ALLOWED);
+      return;
+    }
+    if (!SwapWatcher.instance.isRunning() || !req.isAsyncSupported())
+    {
+      write(resp, JSONResponses.FEATURE_NOT_AVAILABLE);
+      return;
+    }
+
+    Set<String> accounts = new HashSet<String>();
+    for (String value : values(req, "account"))
+    {
+      Long id;
+      try
+      {
+        id = Convert.parseAccountId(value);
+      }
+      catch (RuntimeException e)
+      {
+        id = null;
+      }
+      if (id == null)
+      {
+        write(resp, JSONResponses.INCORRECT_ACCOUNT);
+        return;
+      }
+      accounts.add(Convert.rsAccount(id));
+    }
+    if (accounts.isEmpty())
+    {
+      write(resp, JSONResponses.MISSING_ACCOUNT);
+      return;
+    }
+    Set<String> triggerhashes = values(req, "triggerhash");
+
+    String sinceValue = Convert.emptyToNull(req.getParameter("since"));
+    boolean stream = accepts(req, "text/event-stream");
+    if (sinceValue == null && stream)
+    {
+      sinceValue = Convert.emptyToNull(req.getHeader("Last-Event-ID"));
+    }
+    Long since = null;
+    if (sinceValue != null)
+    {
+      try
+      {
+        since = Long.parseLong(sinceValue);
+      }
+      catch (NumberFormatException e)
+      {
+        write(resp, JSONResponses.incorrect("since"));
+        return;
+      }
+    }
+
+    if (subscribers.incrementAndGet() > maxSubscribers)
+    {
+      subscribers.decrementAndGet();
+      write(resp, JSONResponses.TOO_MANY_REQUESTS);
+      return;
+    }
+
+    AsyncContext context = req.startAsync();
+    Client client = stream ? new EventStream(context, since) : new LongPoll(context, since);
+    context.setTimeout(stream ? 0 : pollTimeout);
+    context.addListener(client);
+    client.subscription = new SwapWatcher.Subscription(accounts, triggerhashes, client);
+    if (stream)
+    {
+      resp.setContentType("text/event-stream; charset=UTF-8");
+      resp.flushBuffer();
+    }
+    SwapWatcher.instance.subscribe(client.subscription);
+  }
+
+  private static Set<String> values(HttpServletRequest req, String name)
+  {
+    Set<String> result = new HashSet<String>();
+    String[] values = req.getParameterValues(name);
+    if (values == null)
+      return result;
+    for (String value : values)
+    {
+      for (String s : value.split(","))
+      {
+        s = s.trim();
+        if (!s.isEmpty())
+        {
+          result.add(s);
+        }
+      }
+    }
+    return result;
+  }
+
+  private static boolean accepts(HttpServletRequest req, String type)
+  {
+    String accept = req.getHeader("Accept");
+    return accept != null && accept.contains(type);
+  }
+
+  private static void write(HttpServletResponse resp, JSONStreamAware response) throws IOException
+  {
+    resp.setContentType("text/plain; charset=UTF-8");
+    try (Writer writer = resp.getWriter())
+    {
+      response.writeJSONString(writer);
+    }
+  }
+
+  /*
+   * One subscribed request. Watcher callbacks are passed to executor,
+   * the request ends once, on answer, client error or shutdown.
+   */
+  private static abstract class Client implements SwapWatcher.Listener, AsyncListener
+  {
+    final AsyncContext context;
+    final AtomicBoolean closed = new AtomicBoolean();
+    SwapWatcher.Subscription subscription;
+    //last event id the client has
+    Long since;
+
+    Client(AsyncContext context, Long since)
+    {
+      this.context = context;
+      this.since = since;
+    }
+
+    @Override
+    public void ready()
+    {
+      execute(this::onReady);
+    }
+
+    @Override
+    public void changed()
+    {
+      execute(this::onChanged);
+    }
+
+    @Override
+    public void ping()
+    {
+    }
+
+    abstract void onReady();
+
+    abstract void onChanged();
+
+    void execute(Runnable task)
+    {
+      if (closed.get())
+        return;
+      try
+      {
+        executor.execute(task);
+      }
+      catch (RuntimeException e)
+      {
+        close();
+      }
+    }
+
+    void close()
+    {
+      if (!closed.compareAndSet(false, true))
+        return;
+      subscribers.decrementAndGet();
+      SwapWatcher.instance.unsubscribe(subscription);
+      try
+      {
+        context.complete();
+      }
+      catch (IllegalStateException e)
+      {
+        //request already completed by container
+      }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event)
+    {
+      close();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event)
+    {
+      close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event)
+    {
+      close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event)
+    {
+    }
+  }
+
+  private static final class EventStream extends Client
+  {
+    EventStream(AsyncContext context, Long since)
+    {
+      super(context, since);
+    }
+
+    @Override
+    public void ping()
+    {
+      execute(() -> send(": ping\n\n"));
+    }
+
+    @Override
+    synchronized void onReady()
+    {
+      if (since == null)
+      {
+        since = SwapWatcher.instance.lastId();
+        sendEvent("ready", since, null);
+        return;
+      }
+      onChanged();
+    }
+
+    @Override
+    synchronized void onChanged()
+    {
+      if (since == null)
+        return;
+      List<JSONObject> events = SwapWatcher.instance.events(subscription, since);
+      if (events == null)
+      {
+        since = SwapWatcher.instance.lastId();
+        sendEvent("reset", since, null);
+        return;
+      }
+      for (JSONObject e : events)
+      {
+        since = (Long) e.get("id");
+        if (!sendEvent((String) e.get("event"), since, e))
+          return;
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean sendEvent(String name, long id, JSONObject data)
+    {
+      if (data == null)
+      {
+        data = new JSONObject();
+        data.put("last", id);
+      }
+      return send("id: " + id + "\nevent: " + name + "\ndata: " + data.toJSONString() + "\n\n");
+    }
+
+    private synchronized boolean send(String text)
+    {
+      if (closed.get())
+        return false;
+      try
+      {
+        context.getResponse().getOutputStream().write(text.getBytes(StandardCharsets.UTF_8));
+        context.getResponse().flushBuffer();
+        return true;
+      }
+      catch (IOException | RuntimeException e)
+      {
+        Logger.logDebugMessage("Events client gone: " + e.getMessage());
+        close();
+        return false;
+      }
+    }
+  }
+
+  private static final class LongPoll extends Client
+  {
+    private final AtomicBoolean answered = new AtomicBoolean();
+
+    LongPoll(AsyncContext context, Long since)
+    {
+      super(context, since);
+    }
+
+    @Override
+    void onReady()
+    {
+      if (since == null)
+      {
+        answer(Collections.<JSONObject> emptyList(), SwapWatcher.instance.lastId(), false);
+        return;
+      }
+      onChanged();
+    }
+
+    @Override
+    void onChanged()
+    {
+      List<JSONObject> events = SwapWatcher.instance.events(subscription, since);
+      if (events == null)
+      {
+        answer(Collections.<JSONObject> emptyList(), SwapWatcher.instance.lastId(), true);
+      }
+      else if (!events.isEmpty())
+      {
+        answer(events, (Long) events.get(events.size() - 1).get("id"), false);
+      }
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event)
+    {
+      //nothing new, client asks again from the same id
+      answer(Collections.<JSONObject> emptyList(), since != null ? since : SwapWatcher.instance.lastId(), false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void answer(List<JSONObject> events, long last, boolean reset)
+    {
+      if (closed.get() || !answered.compareAndSet(false, true))
+        return;
+      JSONArray array = new JSONArray();
+      array.addAll(events);
+      JSONObject response = new JSONObject();
+      response.put("query_status", "good");
+      response.put("events", array);
+      response.put("last", last);
+      if (reset)
+      {
+        response.put("reset", true);
+      }
+      try
+      {
+        write((HttpServletResponse) context.getResponse(), response);
+      }
+      catch (IOException | RuntimeException e)
+      {
+        Logger.logDebugMessage("Events client gone: " + e.getMessage());
+      }
+      close();
+    }
+  }
+
+  public static void shutdown()
+  {
+    executor.shutdownNow();
+  }
+}
@@ -144,6 +144,8 @@ public final class JSONResponses {
     public static final JSONStreamAware INCORRECT_MARKET = incorrect("market");
     public static final JSONStreamAware MISSING_REQUEST = missing("request");
     public static final JSONStreamAware UNKNOWN_REQUEST = unknown("request");
+    public static final JSONStreamAware MISSING_REQUESTS = missing("requests");
+    public static final JSONStreamAware INCORRECT_REQUESTS = incorrect("requests");
     public static final JSONStreamAware MISSING_BUYING_ID = missing("buying_id");
     public static final JSONStreamAware MISSING_ITEMS = missing("items");
     public static final JSONStreamAware INCORRECT_ITEMS = incorrect("items");
@@ -206,6 +208,31 @@ public final class JSONResponses {
         POST_REQUIRED = JSON.prepare(response);
     }
 
+    public static final JSONStreamAware TOO_MANY_REQUESTS;
+    static {
+        JSONObject response = new JSONObject();
+        response.put("query_status", "bad");
+        response.put("errorCode", 10);
+        response.put("errorDescription", "Too many requests in progress, try again later");
+        TOO_MANY_REQUESTS = JSON.prepare(response);
+    }
+
+    public static final JSONStreamAware REQUEST_TIMEOUT;
+    static {
+        JSONObject response = new JSONObject();
+        response.put("query_status", "bad");
+        response.put("errorCode", 10);
+        response.put("errorDescription", "Request timed out, its outcome is unknown");
+        REQUEST_TIMEOUT = JSON.prepare(response);
+    }
+
+    public static final JSONStreamAware NOT_MODIFIED;
+    static {
+        JSONObject response = new JSONObject();
+        response.put("query_status", "unchanged");
+        NOT_MODIFIED = JSON.prepare(response);
+    }
+
     public static final JSONStreamAware FEATURE_NOT_AVAILABLE;
     static {
         JSONObject response = new JSONObject();
@@ -0,0 +1,51 @@
+package blackyblack.http;
+import javax.servlet.http.HttpServletRequest;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+
+import blackyblack.Application;
+import blackyblack.quack.SwapJournal;
+import nrs.NxtException.NxtApiException;
+
+public final class JournalHandler extends APITestServlet.APIRequestHandler {
+  public static final JournalHandler instance = new JournalHandler();
+
+  private JournalHandler() {
+    super("all");
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  JSONStreamAware processRequest(HttpServletRequest req) throws Exception {
+
+    boolean all = "true".equalsIgnoreCase(req.getParameter("all"));
+    long height = 0;
+    if (!all)
+    {
+      try
+      {
+        height = Application.api.getCurrentBlock();
+      }
+      catch (NxtApiException e)
+      {
+        //without height every not triggered swap is reported
+      }
+    }
+
+    JSONArray swapArray = new JSONArray();
+    for (SwapJournal.JournalSwap a : SwapJournal.instance.getSwaps())
+    {
+      //in-flight swaps are not triggered and not expired yet
+      if (!all && (a.triggered || a.finishHeight < height))
+        continue;
+      swapArray.add(a.toJson());
+    }
+
+    JSONObject answer = new JSONObject();
+    answer.put("query_status", "good");
+    answer.put("swaps", swapArray);
+    return answer;
+  }
+}
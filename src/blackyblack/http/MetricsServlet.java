@@ -0,0 +1,42 @@
+package blackyblack.http;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import blackyblack.Application;
+import blackyblack.Metrics;
+
+/*
+ * Request counts, errors and latencies of Metrics in Prometheus text format: GET /metrics
+ */
+public class MetricsServlet extends HttpServlet
+{
+  private static final long serialVersionUID = 1L;
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+  {
+    resp.setHeader("Cache-Control", "no-cache, no-store, must-revalidate, private");
+
+    if (Application.allowedBotHosts != null && !Application.allowedBotHosts.contains(req.getRemoteHost()))
+    {
+      resp.setContentType("text/plain; charset=UTF-8");
+      try (Writer writer = resp.getWriter())
+      {
+        JSONResponses.ERROR_NOT_ALLOWED.writeJSONString(writer);
+      }
+      return;
+    }
+
+    resp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+    try (Writer writer = resp.getWriter())
+    {
+      Metrics.writeText(writer);
+    }
+  }
+}
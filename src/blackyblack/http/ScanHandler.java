@@ -1,16 +1,18 @@
 package blackyblack.http;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
-import blackyblack.quack.AssetInfo;
-import blackyblack.quack.BlockAssetInfo;
+import blackyblack.Application;
+import blackyblack.BlockchainStatusCache;
+import blackyblack.quack.BlockPoller;
 import blackyblack.quack.QuackApp;
+import blackyblack.quack.SwapIndex;
 import blackyblack.quack.SwapInfo;
 import nrs.util.Convert;
 import nrs.util.Logger;
@@ -18,8 +20,12 @@ import nrs.util.Logger;
 public final class ScanHandler extends APITestServlet.APIRequestHandler {
   public static final ScanHandler instance = new ScanHandler();
 
+  //seconds the scan window may move before an ETag changes, 0 to answer without ETags
+  private final int etagWindow;
+
   private ScanHandler() {
     super("account", "timelimit");
+    etagWindow = Math.max(0, Application.getIntProperty("blackyblack.scanETagWindow"));
   }
 
   @SuppressWarnings("unchecked")
@@ -51,70 +57,125 @@ public final class ScanHandler extends APITestServlet.APIRequestHandler {
       timelimit = (60L * 60 * 24 * 7);
     }
 
-    JSONObject answer = new JSONObject();
-    CloseableHttpResponse response = null;
+    //swaps change only with the chain, a bot polling the same scan gets 304 until a new block
+    String etag = etag(account, timelimit.intValue(), currentBlock());
+    if (etag != null && matches(req.getHeader("If-None-Match"), etag))
+    {
+      return new APITestServlet.TaggedResponse(etag, null);
+    }
+
+    final List<SwapInfo> swaps;
     try
     {
-      List<SwapInfo> swaps = QuackApp.instance.scanSwaps(account, timelimit.intValue());
-      JSONArray swapArray = new JSONArray();
-      for(SwapInfo a : swaps)
+      SwapIndex.Scan scan = QuackApp.instance.scan(account, timelimit.intValue());
+      swaps = scan.swaps;
+      //the index may have moved on since the check, tag with the block the answer was built at
+      if (scan.height >= 0)
       {
-        JSONObject swapResult = new JSONObject();
-        swapResult.put("triggerBytes", a.triggerBytes);
-        swapResult.put("triggerhash", a.triggerhash);
-        swapResult.put("sender", a.sender);
-        swapResult.put("recipient", a.recipient);
-        swapResult.put("minFinishHeight", a.minFinishHeight);
-        swapResult.put("gotTrigger", a.gotTrigger);
-        
-        JSONArray assetsArray = new JSONArray();
-        for (AssetInfo b : a.announcedAssets)
-        {
-          assetsArray.add(b.toJson());
-        }
-        swapResult.put("announcedAssets", assetsArray);
-
-        assetsArray = new JSONArray();
-        for (AssetInfo b : a.announcedExpAssets)
-        {
-          assetsArray.add(b.toJson());
-        }
-        swapResult.put("expectedAssets", assetsArray);
-        
-        assetsArray = new JSONArray();
-        for (BlockAssetInfo b : a.assetsA)
-        {
-          assetsArray.add(b.toJson());
-        }
-        swapResult.put("assetsA", assetsArray);
-        
-        assetsArray = new JSONArray();
-        for (BlockAssetInfo b : a.assetsB)
-        {
-          assetsArray.add(b.toJson());
-        }
-        swapResult.put("assetsB", assetsArray);
-        
-        swapArray.add(swapResult);
+        etag = etag(account, timelimit.intValue(), block(scan.height, scan.block));
       }
-      
-      answer.put("query_status", "good");
-      answer.put("swaps", swapArray);
     }
     catch (Exception e)
     {
       Logger.logMessage("Error in NRS API call: " + e.getMessage());
 
+      JSONObject answer = new JSONObject();
       answer.put("errorCode", 9);
       answer.put("errorDescription", e.getMessage());
       answer.put("error", e.getMessage());
+      return answer;
     }
-    finally
+
+    //swaps are written to the response one by one, no JSON tree of the whole result is built
+    JSONStreamAware answer = new JSONStreamAware()
     {
-      if (response != null)
-        response.close();
+      @Override
+      public void writeJSONString(Writer out) throws IOException
+      {
+        out.write("{\"query_status\":\"good\",\"swaps\":[");
+        boolean first = true;
+        for (SwapInfo a : swaps)
+        {
+          if (!first)
+          {
+            out.write(',');
+          }
+          first = false;
+          a.writeJSONString(out);
+        }
+        out.write("]}");
+      }
+    };
+    return etag == null ? answer : new APITestServlet.TaggedResponse(etag, answer);
+  }
+
+  /*
+   * Account, timelimit, scan window start rounded to etagWindow and the block.
+   * Null when there is no block to tag with, the answer is then sent untagged.
+   */
+  private String etag(String account, int timelimit, String block)
+  {
+    if (etagWindow <= 0 || block == null)
+      return null;
+    try
+    {
+      Long id = Convert.parseAccountId(account);
+      if (id == null)
+        return null;
+      int now = Convert.getEpochTime();
+      int from = (timelimit > 0 && now > timelimit) ? now - timelimit : 0;
+      return "\"" + Convert.toUnsignedLong(id) + "-" + timelimit + "-" + (from / etagWindow)
+          + "-" + block + "\"";
+    }
+    catch (Exception e)
+    {
+      return null;
+    }
+  }
+
+  /*
+   * Block the index answers at: the one BlockPoller applied last, or the cached
+   * chain status when the poller is off. Status is read before the scan then,
+   * so an answer fetched from NRS is never tagged newer than its data.
+   */
+  private static String currentBlock()
+  {
+    BlockPoller.Tip tip = BlockPoller.instance.getTip();
+    if (tip != null)
+      return block(tip.height, tip.block);
+    try
+    {
+      JSONObject status = BlockchainStatusCache.instance.getStatus();
+      return status.get("numberOfBlocks") + "-" + status.get("lastBlock");
+    }
+    catch (Exception e)
+    {
+      return null;
+    }
+  }
+
+  private static String block(int height, String block)
+  {
+    return (height + 1) + "-" + block;
+  }
+
+  private static boolean matches(String ifNoneMatch, String etag)
+  {
+    if (ifNoneMatch == null)
+      return false;
+    for (String tag : ifNoneMatch.split(","))
+    {
+      tag = tag.trim();
+      if (tag.startsWith("W/"))
+      {
+        tag = tag.substring(2);
+      }
+      //compressed answers carry the tag with a suffix added by the gzip filter
+      tag = tag.replace("--gzip\"", "\"");
+      if (tag.equals("*") || tag.equals(etag))
+        return true;
     }
-    return answer;
+    return false;
   }
 
   @Override
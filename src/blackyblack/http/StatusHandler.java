@@ -0,0 +1,42 @@
+package blackyblack.http;
+import javax.servlet.http.HttpServletRequest;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+
+import blackyblack.BlockchainStatusCache;
+import blackyblack.NrsClient;
+import blackyblack.NrsPool;
+import blackyblack.PublicKeyCache;
+import blackyblack.TransactionPager;
+import blackyblack.quack.BlockPoller;
+import blackyblack.quack.SwapIndex;
+import blackyblack.quack.SwapJournal;
+import blackyblack.quack.SwapWatcher;
+
+public final class StatusHandler extends APITestServlet.APIRequestHandler {
+  public static final StatusHandler instance = new StatusHandler();
+
+  private StatusHandler() {
+    super();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  JSONStreamAware processRequest(HttpServletRequest req) throws Exception {
+
+    JSONObject answer = new JSONObject();
+    answer.put("query_status", "good");
+    answer.put("nrsPool", NrsClient.instance.getPoolStats());
+    answer.put("nrsNodes", NrsPool.instance.getStats());
+    answer.put("blockchainStatusCache", BlockchainStatusCache.instance.getStats());
+    answer.put("publicKeyCache", PublicKeyCache.instance.getStats());
+    answer.put("history", TransactionPager.instance.getStats());
+    answer.put("swapIndex", SwapIndex.instance.getStats());
+    answer.put("blockPoller", BlockPoller.instance.getStats());
+    answer.put("journal", SwapJournal.instance.getStats());
+    answer.put("api", APITestServlet.getStats());
+    answer.put("events", SwapWatcher.instance.getStats());
+    return answer;
+  }
+}
@@ -1,13 +1,21 @@
 package blackyblack.quack;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
 import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
 
 import nrs.util.Convert;
 
-public class BlockAssetInfo
+public class BlockAssetInfo implements JSONStreamAware
 {
   AssetInfo asset;
   JSONObject tx;
+  //confirmations at scan height, -1 to take them from tx
+  long confirmations = -1;
   
   @SuppressWarnings("unchecked")
   public JSONObject toJson()
@@ -16,12 +24,67 @@ public class BlockAssetInfo
     o.put("id", asset.id);
     o.put("QNT", asset.quantity);
     o.put("type", asset.type);
-    o.put("confirmations", tx.get("confirmations"));
+    o.put("confirmations", confirmations());
     JSONObject attach = (JSONObject) tx.get("attachment");
     o.put("finishHeight", attach.get("phasingFinishHeight"));
-    o.put("tx", tx);
+    JSONObject txCopy = tx;
+    if (confirmations >= 0)
+    {
+      txCopy = new JSONObject(tx);
+      txCopy.put("confirmations", confirmations);
+    }
+    o.put("tx", txCopy);
     return o;
   }
+
+  /*
+   * Same content as toJson written straight to out, tx is not copied.
+   */
+  @Override
+  public void writeJSONString(Writer out) throws IOException
+  {
+    JSONObject attach = (JSONObject) tx.get("attachment");
+    out.write("{\"id\":");
+    JSONValue.writeJSONString(asset.id, out);
+    out.write(",\"QNT\":");
+    out.write(Long.toString(asset.quantity));
+    out.write(",\"type\":");
+    JSONValue.writeJSONString(asset.type, out);
+    out.write(",\"confirmations\":");
+    JSONValue.writeJSONString(confirmations(), out);
+    out.write(",\"finishHeight\":");
+    JSONValue.writeJSONString(attach.get("phasingFinishHeight"), out);
+
+    out.write(",\"tx\":{");
+    boolean first = true;
+    for (Object o : tx.entrySet())
+    {
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      String key = String.valueOf(e.getKey());
+      if (confirmations >= 0 && key.equals("confirmations"))
+        continue;
+      if (!first)
+      {
+        out.write(',');
+      }
+      first = false;
+      out.write('"');
+      out.write(JSONValue.escape(key));
+      out.write("\":");
+      JSONValue.writeJSONString(e.getValue(), out);
+    }
+    if (confirmations >= 0)
+    {
+      out.write(first ? "\"confirmations\":" : ",\"confirmations\":");
+      out.write(Long.toString(confirmations));
+    }
+    out.write("}}");
+  }
+
+  private Object confirmations()
+  {
+    return confirmations >= 0 ? (Object) confirmations : tx.get("confirmations");
+  }
   
   public void fromJson(JSONObject o)
   {
@@ -0,0 +1,203 @@
+package blackyblack.quack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import blackyblack.Application;
+import blackyblack.BlockchainStatusCache;
+import blackyblack.DaemonThreadFactory;
+import blackyblack.INxtApi;
+import blackyblack.NxtApi;
+import nrs.NxtException.NxtApiException;
+import nrs.util.Convert;
+import nrs.util.Logger;
+
+/*
+ * Follows the chain block by block and pushes quack transactions
+ * of scanned accounts into SwapIndex, so repeated scans are answered from memory.
+ * Each block is fetched once for all accounts.
+ * On a fork or a long gap followed accounts are released and the next scan reads NRS again.
+ * Status of every new block is pushed into BlockchainStatusCache.
+ */
+public class BlockPoller
+{
+  public static final BlockPoller instance = new BlockPoller();
+
+  private final INxtApi api = new NxtApi();
+  private final long interval;
+  private final int maxCatchUp;
+
+  /*
+   * Last block applied to SwapIndex, height and id read together.
+   */
+  public static final class Tip
+  {
+    public final int height;
+    public final String block;
+
+    Tip(int height, String block)
+    {
+      this.height = height;
+      this.block = block;
+    }
+  }
+
+  //last applied block, -1 when not following
+  private volatile int height = -1;
+  private String lastBlock;
+  //published copy of height and lastBlock, null when not following
+  private volatile Tip tip;
+
+  private final AtomicLong blocks = new AtomicLong();
+  private final AtomicLong transactions = new AtomicLong();
+  private final AtomicLong forks = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  private ScheduledExecutorService scheduler;
+
+  private BlockPoller()
+  {
+    interval = Application.getIntProperty("blackyblack.blockPollInterval");
+    maxCatchUp = Math.max(1, Application.getIntProperty("blackyblack.blockPollMaxCatchUp"));
+  }
+
+  public synchronized void start()
+  {
+    if (scheduler != null || interval <= 0)
+      return;
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("block-poller"));
+    scheduler.scheduleWithFixedDelay(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          poll();
+        }
+        catch (Exception e)
+        {
+          failures.incrementAndGet();
+          Logger.logDebugMessage("Block poll failed: " + e.getMessage());
+        }
+      }
+    }, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop()
+  {
+    if (scheduler == null)
+      return;
+    scheduler.shutdownNow();
+    scheduler = null;
+    height = -1;
+    tip = null;
+  }
+
+  /*
+   * Height of the last block pushed to SwapIndex, -1 when poller does not follow the chain.
+   */
+  public int getHeight()
+  {
+    Tip t = tip;
+    return t == null ? -1 : t.height;
+  }
+
+  /*
+   * Last block pushed to SwapIndex with its id, null when poller does not follow the chain.
+   */
+  public Tip getTip()
+  {
+    return tip;
+  }
+
+  private void poll() throws NxtApiException
+  {
+    //asked from NRS, cached status may be behind by its TTL
+    JSONObject status = api.getBlockchainStatus();
+    int last = (int) (Convert.nullToZero((Long) status.get("numberOfBlocks")) - 1);
+    if (last < 0)
+      return;
+
+    if (height < 0 || last - height > maxCatchUp)
+    {
+      //start following from current block, accounts resync on next scan
+      SwapIndex.instance.unfollow();
+      lastBlock = (String) status.get("lastBlock");
+      height = last;
+      tip = new Tip(height, lastBlock);
+      BlockchainStatusCache.instance.update(status);
+      return;
+    }
+
+    boolean applied = false;
+    while (height < last)
+    {
+      JSONObject block = api.getBlock(height + 1);
+      if (lastBlock != null && !lastBlock.equals(block.get("previousBlock")))
+      {
+        forks.incrementAndGet();
+        Logger.logMessage("Fork detected at height " + (height + 1) + ", swap index resync");
+        height = -1;
+        tip = null;
+        SwapIndex.instance.unfollow();
+        return;
+      }
+
+      List<JSONObject> txs = quackTransactions(block);
+      SwapIndex.instance.applyBlock(height + 1, (int) Convert.parseLong(block.get("timestamp")), txs);
+      blocks.incrementAndGet();
+      transactions.addAndGet(txs.size());
+
+      lastBlock = (String) block.get("block");
+      height++;
+      tip = new Tip(height, lastBlock);
+      applied = true;
+    }
+    //pushed once the index has the new blocks, so heights and scan ETags do not run ahead of it
+    if (applied)
+    {
+      BlockchainStatusCache.instance.update(status);
+    }
+  }
+
+  private static List<JSONObject> quackTransactions(JSONObject block)
+  {
+    List<JSONObject> result = new ArrayList<JSONObject>();
+    JSONArray txs = (JSONArray) block.get("transactions");
+    if (txs == null)
+      return result;
+
+    for (Object o : txs)
+    {
+      if (!(o instanceof JSONObject))
+        continue;
+      JSONObject tx = (JSONObject) o;
+      if (QuackApp.instance.quackTagged.accept(tx))
+      {
+        result.add(tx);
+      }
+    }
+    return result;
+  }
+
+  @SuppressWarnings("unchecked")
+  public JSONObject getStats()
+  {
+    JSONObject o = new JSONObject();
+    o.put("height", height);
+    o.put("blocks", blocks.get());
+    o.put("transactions", transactions.get());
+    o.put("forks", forks.get());
+    o.put("failures", failures.get());
+    return o;
+  }
+}
@@ -1,19 +1,13 @@
 package blackyblack.quack;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
@@ -21,12 +15,18 @@ import org.json.simple.parser.JSONParser;
 
 import blackyblack.AppConstants;
 import blackyblack.Application;
+import blackyblack.BlockchainStatusCache;
 import blackyblack.INxtApi;
+import blackyblack.Metrics;
+import blackyblack.NrsClient;
 import blackyblack.NxtApi;
+import blackyblack.NxtApiAsync;
+import blackyblack.TransactionFilter;
 import blackyblack.http.JSONResponses;
 import nrs.Constants;
+import nrs.NxtException;
 import nrs.NxtException.NxtApiException;
-import nrs.crypto.Crypto;
+import nrs.Transaction;
 import nrs.util.Convert;
 import nrs.util.Logger;
 
@@ -49,21 +49,111 @@ import nrs.util.Logger;
  */
 public class QuackApp
 {
+  private static final long triggerAccountId = Convert.parseAccountId(AppConstants.triggerAccount);
   public static final QuackApp instance = new QuackApp();
   public INxtApi api = new NxtApi();
 
   public String marketAccount;
+  
+  private final int legWindow = Math.max(1, Application.getIntProperty("blackyblack.legThreads"));
 
   private QuackApp()
   {
   }
 
-  @SuppressWarnings("unchecked")
   public JSONStreamAware init(String secret, String recipient, int finishheight, List<AssetInfo> assets, List<AssetInfo> expectedAssets,
       String privateMessage) throws NxtApiException
   {
-    Long height = Application.api.getCurrentBlock();
-    int rest = finishheight - height.intValue();
+    return join(initAsync(secret, recipient, finishheight, assets, expectedAssets, privateMessage));
+  }
+
+  /*
+   * Same as init, completes on NRS client callbacks without holding a thread while NRS answers.
+   */
+  public CompletableFuture<JSONStreamAware> initAsync(final String secret, final String recipient, final int finishheight,
+      final List<AssetInfo> assets, final List<AssetInfo> expectedAssets, final String privateMessage)
+  {
+    long start = System.nanoTime();
+    //key is derived on the compute pool while NRS answers, never on the NRS event loop
+    final CompletableFuture<Long> account = NxtApiAsync.accountId(secret);
+    return Metrics.phase.time("init", start, BlockchainStatusCache.instance.getHeightAsync().thenCompose(height -> {
+      final int deadline = deadlineOrFail(finishheight, height);
+      // now prepare triggertx and send phased transfers
+      return createtriggerAsync(AppConstants.triggerAccount, secret, 1440, AppConstants.triggerFee)
+          .thenCombine(account, (trigger, accountId) -> initLegs(trigger, accountId, secret, recipient, finishheight, deadline,
+              assets, expectedAssets, privateMessage))
+          .thenCompose(future -> future);
+    }));
+  }
+
+  @SuppressWarnings("unchecked")
+  private CompletableFuture<JSONStreamAware> initLegs(JSONObject trigger, final Long accountId, String secret, final String recipient,
+      final int finishheight, int deadline, List<AssetInfo> assets, List<AssetInfo> expectedAssets, String privateMessage)
+  {
+    String sender = Convert.rsAccount(accountId);
+
+    final String fullhash = Application.api.getFullHash(trigger);
+    if (fullhash == null)
+    {
+      return CompletableFuture.completedFuture(JSONResponses.MISSING_TRANSACTION_BYTES_OR_JSON);
+    }
+
+    final String triggerBytes = Application.api.getUnsignedBytes(trigger);
+    if (triggerBytes == null)
+    {
+      return CompletableFuture.completedFuture(JSONResponses.MISSING_TRANSACTION_BYTES_OR_JSON);
+    }
+
+    final List<AssetInfo> legs = new ArrayList<AssetInfo>();
+    for (AssetInfo a : assets)
+    {
+      if (a.id == null)
+        continue;
+      legs.add(a);
+    }
+    final List<AssetInfo> allLegs = new ArrayList<AssetInfo>(legs);
+    final long recipientId = SwapJournal.parseAccount(recipient);
+    SwapJournal.instance.init(fullhash, accountId, recipientId, finishheight, allLegs.size());
+    final LegJournal journal = new LegJournal(fullhash, accountId, recipientId, finishheight);
+
+    //insert message with triggerBytes and invitation only in first transaction
+    //first leg is sent before the rest so invitation is always queued first
+    CompletableFuture<JSONArray> firstResult = CompletableFuture.completedFuture(new JSONArray());
+    if (legs.size() > 0)
+    {
+      JSONObject messageObject = new JSONObject();
+      messageObject.put("quack", 1L);
+      messageObject = createinfo(messageObject, sender, recipient, triggerBytes, assets, expectedAssets);
+
+      final AssetInfo first = legs.remove(0);
+      firstResult = submitLegAsync(first, 0, journal, recipient, secret, fullhash, deadline, finishheight,
+          messageObject.toString(), privateMessage).thenApply(paytx -> {
+            JSONArray results = new JSONArray();
+            results.add(legResult(first, paytx, null));
+            return results;
+          });
+    }
+
+    return firstResult.thenCompose(legResults -> submitLegsAsync(legs, allLegs.size() - legs.size(), journal, recipient, secret,
+        fullhash, deadline, finishheight)
+        .thenApply(rest -> {
+          legResults.addAll(rest);
+
+          JSONObject answer = new JSONObject();
+          answer.put("query_status", legsStatus(legResults));
+          answer.put("triggerBytes", triggerBytes);
+          answer.put("triggerhash", fullhash);
+          answer.put("legs", legResults);
+          return answer;
+        }));
+  }
+
+  /*
+   * Phasing deadline of legs: half of the blocks left until finishheight, at least 3.
+   */
+  static int deadline(int finishheight, long height) throws NxtApiException
+  {
+    int rest = finishheight - (int) height;
 
     if (rest <= 0)
     {
@@ -77,93 +167,63 @@ public class QuackApp
     {
       throw new NxtApiException("Too short period until timeout");
     }
-    
-    byte[] publicKey = Crypto.getPublicKey(secret);
-    Long accountId = Convert.publicKeyToAccountId(publicKey);
-    String sender = Convert.rsAccount(accountId);
-    
-    // now prepare triggertx and send phased transfers
-    JSONObject trigger = createtrigger(AppConstants.triggerAccount, secret, 1440, AppConstants.triggerFee);
-    String fullhash = Application.api.getFullHash(trigger);
-    if (fullhash == null)
+    return deadline;
+  }
+
+  private static int deadlineOrFail(int finishheight, long height)
+  {
+    try
     {
-      return JSONResponses.MISSING_TRANSACTION_BYTES_OR_JSON;
+      return deadline(finishheight, height);
     }
-
-    String triggerBytes = Application.api.getUnsignedBytes(trigger);
-    if (triggerBytes == null)
+    catch (NxtApiException e)
     {
-      return JSONResponses.MISSING_TRANSACTION_BYTES_OR_JSON;
+      throw new CompletionException(e);
     }
+  }
 
-    //insert message with triggerBytes and invitation only in first transaction
-    int count = 0;
-    for (AssetInfo a : assets)
+  /*
+   * Waits for a swap operation, failures come back as NxtApiException.
+   */
+  private static <T> T join(CompletableFuture<T> future) throws NxtApiException
+  {
+    try
     {
-      if (a.id == null)
-        continue;
-      
-      JSONObject paytx = null;
-      JSONObject messageObject = new JSONObject();
-      messageObject.put("quack", 1L);
-      String encryptedMessage = null;
-      
-      if(count == 0)
-      {
-        messageObject = createinfo(messageObject, sender, recipient, triggerBytes, assets, expectedAssets);
-        encryptedMessage = privateMessage;
-      }
-      
-      if (a.type.equals("NXT"))
-      {
-        paytx = api.createPhasedPayment(recipient, secret, fullhash, deadline, finishheight, a.quantity,
-            messageObject.toString(), encryptedMessage);
-        
-        if (paytx != null)
-        {
-          String txid = (String) paytx.get("transaction");
-          Logger.logMessage("Queued transaction: " + txid + "; finish at " + finishheight);
-          count++;
-        }
-        continue;
-      }
-      
-      if (a.type.equals("M"))
-      {
-        paytx = api.createPhasedMonetary(recipient, secret, fullhash, deadline, finishheight, a.id, a.quantity,
-            messageObject.toString(), encryptedMessage);
-        
-        if (paytx != null)
-        {
-          String txid = (String) paytx.get("transaction");
-          Logger.logMessage("Queued transaction: " + txid + "; finish at " + finishheight);
-          count++;
-        }
-        continue;
-      }
-      
-      paytx = api.createPhasedAsset(recipient, secret, fullhash, deadline, finishheight, a.id, a.quantity,
-          messageObject.toString(), encryptedMessage);
+      return future.get();
+    }
+    catch (ExecutionException e)
+    {
+      throw apiException(e.getCause());
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new NxtApiException("interrupted");
+    }
+  }
 
-      if (paytx != null)
-      {
-        String txid = (String) paytx.get("transaction");
-        Logger.logMessage("Queued transaction: " + txid + "; finish at " + finishheight);
-        count++;
-      }
-      continue;
+  static NxtApiException apiException(Throwable e)
+  {
+    while (e instanceof CompletionException && e.getCause() != null)
+    {
+      e = e.getCause();
     }
+    if (e instanceof NxtApiException)
+    {
+      return (NxtApiException) e;
+    }
+    return new NxtApiException(e.getMessage(), e);
+  }
 
-    JSONObject answer = new JSONObject();
-    answer.put("query_status", "good");
-    answer.put("triggerBytes", triggerBytes);
-    answer.put("triggerhash", fullhash);
-    return answer;
+  public JSONObject createtrigger(String recipient, String secretPhrase, int deadline, long payment) throws NxtApiException
+  {
+    return join(createtriggerAsync(recipient, secretPhrase, deadline, payment));
   }
 
   @SuppressWarnings("unchecked")
-  public JSONObject createtrigger(String recipient, String secretPhrase, int deadline, long payment) throws NxtApiException
-  {    
+  public CompletableFuture<JSONObject> createtriggerAsync(String recipient, String secretPhrase, int deadline, long payment)
+  {
+    long start = System.nanoTime();
     JSONObject messageJson = new JSONObject();
     messageJson.put("quack", 1L);
     messageJson.put("trigger", 1L);
@@ -180,39 +240,21 @@ public class QuackApp
     fields.add(new BasicNameValuePair("messageIsText", "true"));
     fields.add(new BasicNameValuePair("messageIsPrunable", "false"));
 
-    CloseableHttpResponse response = null;
-    JSONObject json = null;
-    try
-    {
-      try
-      {
-        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        HttpPost http = new HttpPost(NxtApi.api());
-        http.setHeader("Origin", NxtApi.host);
-        http.setEntity(entity);
-        response = httpclient.execute(http);
-        HttpEntity result = response.getEntity();
-        String content = EntityUtils.toString(result);
-
-        JSONParser parser = new JSONParser();
-        json = (JSONObject) parser.parse(content);
-        if (json == null)
-        {
-          throw new NxtApiException("no transactionJSON from NRS");
-        }
-      }
-      finally
-      {
-        if (response != null)
-          response.close();
-      }
-    }
-    catch (Exception e)
-    {
-      throw new NxtApiException(e.getMessage());
-    }
-    return json;
+    return Metrics.phase.time("createtrigger", start, requestAsync(fields, null));
+  }
+
+  /*
+   * NRS request failing with NxtApiException when there is no answer or the answer misses key.
+   */
+  private static CompletableFuture<JSONObject> requestAsync(List<BasicNameValuePair> fields, final String key)
+  {
+    return NrsClient.instance.requestAsync(fields).handle((json, e) -> {
+      if (e != null)
+        throw new CompletionException(new NxtApiException(apiException(e).getMessage()));
+      if (json == null || (key != null && json.get(key) == null))
+        throw new CompletionException(new NxtApiException("no transactionJSON from NRS"));
+      return json;
+    });
   }
   
   @SuppressWarnings("unchecked")
@@ -237,342 +279,290 @@ public class QuackApp
     return item;
   }
 
-  @SuppressWarnings("unchecked")
   public JSONStreamAware trigger(String secret, String triggerBytes) throws NxtApiException
   {
+    return join(triggerAsync(secret, triggerBytes));
+  }
+
+  @SuppressWarnings("unchecked")
+  public CompletableFuture<JSONStreamAware> triggerAsync(final String secret, String triggerBytes)
+  {
+    long start = System.nanoTime();
     List<BasicNameValuePair> fields = new ArrayList<BasicNameValuePair>();
     fields.add(new BasicNameValuePair("requestType", "signTransaction"));
     fields.add(new BasicNameValuePair("unsignedTransactionBytes", triggerBytes));
     fields.add(new BasicNameValuePair("secretPhrase", secret));
+    final CompletableFuture<Long> account = NxtApiAsync.accountId(secret);
+
+    return Metrics.phase.time("trigger", start, requestAsync(fields, "transactionBytes").thenCompose(signed -> {
+      List<BasicNameValuePair> broadcastFields = new ArrayList<BasicNameValuePair>();
+      broadcastFields.add(new BasicNameValuePair("requestType", "broadcastTransaction"));
+      broadcastFields.add(new BasicNameValuePair("transactionBytes", (String) signed.get("transactionBytes")));
+      return requestAsync(broadcastFields, "transaction");
+    }).thenCombine(account, (json, sender) -> {
+      String txid = (String) json.get("transaction");
+      SwapJournal.instance.trigger((String) json.get("fullHash"), sender, txid);
+
+      JSONObject answer = new JSONObject();
+      answer.put("query_status", "good");
+      answer.put("txid", txid);
+      return answer;
+    }));
+  }
 
-    CloseableHttpResponse response = null;
-    JSONObject json = null;
-    String txBytes = null;
-    try
-    {
-      try
-      {
-        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        HttpPost http = new HttpPost(NxtApi.api());
-        http.setHeader("Origin", NxtApi.host);
-        http.setEntity(entity);
-        response = httpclient.execute(http);
-        HttpEntity result = response.getEntity();
-        String content = EntityUtils.toString(result);
-
-        JSONParser parser = new JSONParser();
-        json = (JSONObject) parser.parse(content);
-        if (json == null)
-        {
-          throw new NxtApiException("no transactionJSON from NRS");
-        }
-
-        txBytes = (String) json.get("transactionBytes");
-        if (txBytes == null)
-        {
-          throw new NxtApiException("no transactionJSON from NRS");
-        }
-      }
-      finally
+  public JSONStreamAware accept(String secret, String recipient, int finishheight, List<AssetInfo> assets, String triggerhash) throws NxtApiException
+  {
+    return join(acceptAsync(secret, recipient, finishheight, assets, triggerhash));
+  }
+
+  @SuppressWarnings("unchecked")
+  public CompletableFuture<JSONStreamAware> acceptAsync(final String secret, final String recipient, final int finishheight,
+      final List<AssetInfo> assets, final String triggerhash)
+  {
+    // now prepare triggertx and send phased transfers
+    long start = System.nanoTime();
+    final CompletableFuture<Long> account = NxtApiAsync.accountId(secret);
+    return Metrics.phase.time("accept", start, BlockchainStatusCache.instance.getHeightAsync().thenCombine(account, (height, sender) -> {
+      int deadline = deadlineOrFail(finishheight, height);
+
+      final List<AssetInfo> legs = new ArrayList<AssetInfo>();
+      for (AssetInfo a : assets)
       {
-        if (response != null)
-          response.close();
+        if (a.id == null)
+          continue;
+        legs.add(a);
       }
-    }
-    catch (Exception e)
-    {
-      throw new NxtApiException(e.getMessage());
-    }
 
-    fields = new ArrayList<BasicNameValuePair>();
-    fields.add(new BasicNameValuePair("requestType", "broadcastTransaction"));
-    fields.add(new BasicNameValuePair("transactionBytes", txBytes));
+      final long recipientId = SwapJournal.parseAccount(recipient);
+      SwapJournal.instance.accept(triggerhash, sender, recipientId, finishheight, legs.size());
+      LegJournal journal = new LegJournal(triggerhash, sender, recipientId, finishheight);
+
+      return submitLegsAsync(legs, 0, journal, recipient, secret, triggerhash, deadline, finishheight).<JSONStreamAware> thenApply(legResults -> {
+        JSONObject answer = new JSONObject();
+        answer.put("query_status", legsStatus(legResults));
+        answer.put("legs", legResults);
+        return answer;
+      });
+    }).thenCompose(future -> future));
+  }
 
-    response = null;
-    String txid = null;
-    try
+  /*
+   * Sends leg number index of a swap, it is journaled as soon as NRS answers, failed or not.
+   */
+  CompletableFuture<JSONObject> submitLegAsync(final AssetInfo a, final int index, final LegJournal journal, String recipient,
+      String secret, String fullhash, int deadline, final int finishheight, String message, String encryptedMessage)
+  {
+    long start = System.nanoTime();
+    CompletableFuture<JSONObject> paytx = null;
+    if (a.type.equals("NXT"))
     {
-      try
-      {
-        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(fields, "UTF-8");
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-        HttpPost http = new HttpPost(NxtApi.api());
-        http.setHeader("Origin", NxtApi.host);
-        http.setEntity(entity);
-        response = httpclient.execute(http);
-        HttpEntity result = response.getEntity();
-        String content = EntityUtils.toString(result);
-
-        JSONParser parser = new JSONParser();
-        json = (JSONObject) parser.parse(content);
-        if (json == null)
-        {
-          throw new NxtApiException("no transactionJSON from NRS");
-        }
-
-        txid = (String) json.get("transaction");
-        if (txid == null)
-        {
-          throw new NxtApiException("no transactionJSON from NRS");
-        }
-      }
-      finally
-      {
-        if (response != null)
-          response.close();
-      }
+      paytx = Application.asyncApi.createPhasedPayment(recipient, secret, fullhash, deadline, finishheight, a.quantity,
+          message, encryptedMessage);
+    }
+    else if (a.type.equals("M"))
+    {
+      paytx = Application.asyncApi.createPhasedMonetary(recipient, secret, fullhash, deadline, finishheight, a.id, a.quantity,
+          message, encryptedMessage);
     }
-    catch (Exception e)
+    else
     {
-      throw new NxtApiException(e.getMessage());
+      paytx = Application.asyncApi.createPhasedAsset(recipient, secret, fullhash, deadline, finishheight, a.id, a.quantity,
+          message, encryptedMessage);
     }
 
-    JSONObject answer = new JSONObject();
-    answer.put("query_status", "good");
-    answer.put("txid", txid);
-    return answer;
+    return Metrics.phase.time("leg", start, paytx.whenComplete((tx, e) -> {
+      journal.leg(index, a, e == null ? tx : null);
+      if (tx != null)
+      {
+        String txid = (String) tx.get("transaction");
+        Logger.logMessage("Queued transaction: " + txid + "; finish at " + finishheight);
+      }
+    }));
   }
 
+  /*
+   * Submits independent legs concurrently, at most legThreads of a basket at a time.
+   * Results are returned in the same order as legs, failed legs carry an error.
+   * Legs are journaled with numbers from first on.
+   */
   @SuppressWarnings("unchecked")
-  public JSONStreamAware accept(String secret, String recipient, int finishheight, List<AssetInfo> assets, String triggerhash) throws NxtApiException
+  CompletableFuture<JSONArray> submitLegsAsync(List<AssetInfo> legs, int first, LegJournal journal, String recipient,
+      String secret, String fullhash, int deadline, int finishheight)
   {
-    // now prepare triggertx and send phased transfers
-    Long height = Application.api.getCurrentBlock();
-    int rest = finishheight - height.intValue();
-
-    if (rest <= 0)
-    {
-      throw new NxtApiException("Too short period until timeout");
-    }
+    JSONObject messageObject = new JSONObject();
+    messageObject.put("quack", 1L);
+    return new LegQueue(legs, first, journal, recipient, secret, fullhash, deadline, finishheight,
+        messageObject.toString()).start();
+  }
 
-    int deadline = rest / 2;
-    if (deadline < 3)
-      deadline = 3;
-    if ((deadline + 1) > rest)
+  /*
+   * Legs of one basket, next leg is sent when NRS answers one of those in flight.
+   */
+  private class LegQueue
+  {
+    private final List<AssetInfo> legs;
+    private final int first;
+    private final LegJournal journal;
+    private final String recipient;
+    private final String secret;
+    private final String fullhash;
+    private final int deadline;
+    private final int finishheight;
+    private final String message;
+    private final JSONObject[] results;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger remaining;
+    private final CompletableFuture<JSONArray> done = new CompletableFuture<JSONArray>();
+
+    LegQueue(List<AssetInfo> legs, int first, LegJournal journal, String recipient, String secret, String fullhash,
+        int deadline, int finishheight, String message)
     {
-      throw new NxtApiException("Too short period until timeout");
+      this.legs = legs;
+      this.first = first;
+      this.journal = journal;
+      this.recipient = recipient;
+      this.secret = secret;
+      this.fullhash = fullhash;
+      this.deadline = deadline;
+      this.finishheight = finishheight;
+      this.message = message;
+      this.results = new JSONObject[legs.size()];
+      this.remaining = new AtomicInteger(legs.size());
     }
 
-    for (AssetInfo a : assets)
+    CompletableFuture<JSONArray> start()
     {
-      if (a.id == null)
-        continue;
-      
-      JSONObject paytx = null;
-      JSONObject messageObject = new JSONObject();
-      messageObject.put("quack", 1L);
-      
-      if (a.type.equals("NXT"))
+      if (legs.isEmpty())
       {
-        paytx = api.createPhasedPayment(recipient, secret, triggerhash, deadline, finishheight, a.quantity, messageObject.toString(), null);
-        
-        if (paytx != null)
-        {
-          String txid = (String) paytx.get("transaction");
-          Logger.logMessage("Queued transaction: " + txid + "; finish at " + finishheight);
-        }
-        continue;
+        done.complete(new JSONArray());
+        return done;
       }
-      
-      if (a.type.equals("M"))
+      for (int i = 0; i < Math.min(legWindow, legs.size()); i++)
       {
-        paytx = api.createPhasedMonetary(recipient, secret, triggerhash, deadline, finishheight, a.id, a.quantity, messageObject.toString(), null);
-        
-        if (paytx != null)
-        {
-          String txid = (String) paytx.get("transaction");
-          Logger.logMessage("Queued transaction: " + txid + "; finish at " + finishheight);
-        }
-        continue;
+        submitNext();
       }
+      return done;
+    }
 
-      paytx = api.createPhasedAsset(recipient, secret, triggerhash, deadline, finishheight, a.id, a.quantity, messageObject.toString(), null);
-      
-      if (paytx != null)
+    private void submitNext()
+    {
+      final int i = next.getAndIncrement();
+      if (i >= legs.size())
+        return;
+      final AssetInfo a = legs.get(i);
+      submitLegAsync(a, first + i, journal, recipient, secret, fullhash, deadline, finishheight, message, null)
+          .whenComplete((paytx, e) -> {
+            if (e == null)
+            {
+              results[i] = legResult(a, paytx, null);
+            }
+            else
+            {
+              String error = apiException(e).getMessage();
+              Logger.logMessage("Failed to queue " + a.type + " " + a.id + ": " + error);
+              results[i] = legResult(a, null, error);
+            }
+            if (remaining.decrementAndGet() > 0)
+            {
+              submitNext();
+              return;
+            }
+            done.complete(resultArray());
+          });
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONArray resultArray()
+    {
+      JSONArray array = new JSONArray();
+      for (JSONObject r : results)
       {
-        String txid = (String) paytx.get("transaction");
-        Logger.logMessage("Queued transaction: " + txid + "; finish at " + finishheight);
+        array.add(r);
       }
-      continue;
+      return array;
+    }
+  }
+  
+  /*
+   * Journals legs of one swap, each one when NRS answers it, so legs broadcast
+   * before a crash are in the journal even if the rest of the swap never finished.
+   */
+  static class LegJournal
+  {
+    private final String triggerhash;
+    private final long sender;
+    private final long recipient;
+    private final int finishheight;
+
+    LegJournal(String triggerhash, long sender, long recipient, int finishheight)
+    {
+      this.triggerhash = triggerhash;
+      this.sender = sender;
+      this.recipient = recipient;
+      this.finishheight = finishheight;
     }
 
-    JSONObject answer = new JSONObject();
-    answer.put("query_status", "good");
-    return answer;
+    //no transaction is journaled as a failed leg
+    void leg(int index, AssetInfo a, JSONObject paytx)
+    {
+      SwapJournal.instance.leg(triggerhash, sender, recipient, finishheight, index, a,
+          paytx == null ? null : (String) paytx.get("transaction"));
+    }
+  }
+  
+  @SuppressWarnings("unchecked")
+  JSONObject legResult(AssetInfo a, JSONObject paytx, String error)
+  {
+    JSONObject o = a.toJson();
+    if (paytx != null)
+    {
+      o.put("transaction", paytx.get("transaction"));
+    }
+    if (error != null)
+    {
+      o.put("error", error);
+    }
+    return o;
+  }
+  
+  String legsStatus(JSONArray legResults)
+  {
+    for (Object o : legResults)
+    {
+      if (((JSONObject) o).containsKey("error"))
+        return "partial";
+    }
+    return "good";
   }
   
   public List<SwapInfo> scanSwaps(String account, int timelimit) throws NxtApiException
   {
-    List<SwapInfo> result = new ArrayList<SwapInfo>();
-    //map with fullhash as a key
-    Map<String, SwapInfo> lookup = new HashMap<String, SwapInfo>();
+    return scan(account, timelimit).swaps;
+  }
+
+  /*
+   * Same as scanSwaps, with the block the answer was built at.
+   */
+  public SwapIndex.Scan scan(String account, int timelimit) throws NxtApiException
+  {
     //get account transactions down to minHeight
     //look for transactions with quack id
     //combine together transactions with same linked fullhash and trigger = fullhash
-    List<JSONObject> txs = api.getTransactions(account, timelimit);
-    JSONParser parser = new JSONParser();
-    for(JSONObject tx : txs)
+    //only blocks after the last scan of account are read from NRS
+    long start = System.nanoTime();
+    boolean error = true;
+    try
     {
-      try
-      {
-        if(tx == null) continue;
-        JSONObject attach = (JSONObject) tx.get("attachment");
-        if(attach == null) continue;
-        String message = (String) attach.get("message");
-        if(message == null) continue;
-        JSONObject data = (JSONObject) parser.parse(message);
-        if(data == null) continue;
-        
-        if(!isQuack(data)) continue;
-        if(isTrigger(data))
-        {
-          //find fullhash in a map and add trigger here
-          String fullhash = Convert.emptyToNull((String) tx.get("fullHash"));
-          if(fullhash == null) continue;
-          SwapInfo x = lookup.get(fullhash);
-          if(x == null)
-          {
-            x = new SwapInfo();
-          }
-          
-          x.gotTrigger = true;         
-          lookup.put(fullhash, x);
-          continue;
-        }
-        
-        //phased transactions are added by checking linked fullhash        
-        JSONArray linkedhashes = (JSONArray) attach.get("phasingLinkedFullHashes");
-        if(linkedhashes == null) continue;
-        if(linkedhashes.size() == 0) continue;
-        
-        Long finishHeight = Convert.nullToZero((Long) attach.get("phasingFinishHeight"));
-        if(finishHeight == 0) continue;
-        
-        String hashdata = Convert.emptyToNull((String) linkedhashes.get(0));
-        if(hashdata == null) continue;
-        
-        String txSender = Convert.emptyToNull((String) tx.get("senderRS"));
-        String txRecipient = Convert.emptyToNull((String) tx.get("recipientRS"));
-        
-        if(txSender == null) continue;
-        if(txRecipient == null) continue;
-        
-        SwapInfo x = lookup.get(hashdata);
-        if(x == null)
-        {
-          x = new SwapInfo();
-          x.minFinishHeight = finishHeight.intValue();
-        }
-        
-        if(finishHeight < x.minFinishHeight) x.minFinishHeight = finishHeight.intValue();
-        
-        x.triggerhash = hashdata;
-        //fill x with information about swap if present
-        tryUpdateInformation(account, txSender, x, data);
-        
-        List<BlockAssetInfo> assets = x.assets.get(txSender);
-        if(assets == null) assets = new ArrayList<BlockAssetInfo>();
-        
-        BlockAssetInfo assetInfo = new BlockAssetInfo();
-        assetInfo.tx = tx;
-        AssetInfo assetInfoData = new AssetInfo();
-        
-        Long txType = 0L;
-        Long txSubtype = 0L;
-        
-        txType = Convert.nullToZero((Long) tx.get("type"));
-        txSubtype= Convert.nullToZero((Long) tx.get("subtype"));
-        
-        //check if it is payment
-        if(txType == 0 && txSubtype == 0)
-        {
-          assetInfoData.id = "1";
-          assetInfoData.type = "NXT";
-          String qnt = Convert.emptyToNull((String) tx.get("amountNQT"));
-          if(qnt != null)
-          {
-            assetInfoData.quantity = Long.parseLong(qnt);
-          }
-          
-          assetInfo.asset = assetInfoData;
-          assets.add(assetInfo);
-          x.assets.put(txSender, assets);
-          lookup.put(hashdata, x);
-          continue;
-        }
-        
-        //check if it is asset transfer
-        if(txType == 2 && txSubtype == 1)
-        {
-          assetInfoData.id = Convert.emptyToNull((String) attach.get("asset"));
-          String qnt = Convert.emptyToNull((String) attach.get("quantityQNT"));
-          if(qnt != null)
-          {
-            assetInfoData.quantity = Long.parseLong(qnt);
-          }
-          assetInfoData.type = "A";
-          
-          assetInfo.asset = assetInfoData;
-          assets.add(assetInfo);
-          x.assets.put(txSender, assets);
-          lookup.put(hashdata, x);
-          continue;
-        }
-        
-        //check if it is MS transfer
-        if(txType == 5 && txSubtype == 3)
-        {
-          assetInfoData.id = Convert.emptyToNull((String) attach.get("currency"));
-          String qnt = Convert.emptyToNull((String) attach.get("units"));
-          if(qnt != null)
-          {
-            assetInfoData.quantity = Long.parseLong(qnt);
-          }
-          assetInfoData.type = "M";
-          
-          assetInfo.asset = assetInfoData;
-          assets.add(assetInfo);
-          x.assets.put(txSender, assets);
-          lookup.put(hashdata, x);
-          continue;
-        }
-        
-        //unsupported tx
-        continue;
-      }
-      catch(Exception e)
-      {
-        Logger.logMessage("Failed to parse tx");
-      }
+      SwapIndex.Scan scan = SwapIndex.instance.scan(this, account, timelimit);
+      error = false;
+      return scan;
     }
-    
-    for(Entry<String, SwapInfo> k : lookup.entrySet())
+    finally
     {
-      SwapInfo a = k.getValue();
-      if(a == null) continue;
-
-      for(String j : a.assets.keySet())
-      {
-        List<BlockAssetInfo> l = a.assets.get(j);
-        if(l == null) continue;
-        if(l.size() == 0) continue;
-        
-        if(j.equals(a.sender))
-        {
-          a.assetsA = new ArrayList<BlockAssetInfo>(l);
-        }
-        else if(j.equals(a.recipient))
-        {
-          a.assetsB = new ArrayList<BlockAssetInfo>(l);
-        }
-      }
-      
-      result.add(a);
+      Metrics.phase.record("scan", start, error);
     }
-
-    return result;
   }
+
   
   void tryUpdateInformation(String account, String txSender, SwapInfo x, JSONObject data)
   {
@@ -586,29 +576,21 @@ public class QuackApp
       if(!txSender.equals(account)) return;
     }
       
-    JSONObject swapTx = null;
+    //trigger bytes are decoded locally, no NRS round trip per swap
+    Transaction swapTx = null;
     try
     {
-      swapTx = api.parseTransaction(triggerBytes);
+      swapTx = Transaction.parseTransaction(Convert.parseHexString(triggerBytes));
     }
-    catch (NxtApiException e)
+    catch (NxtException.NotValidException|RuntimeException e)
     {
       return;
     }
       
-    String feeNqtString = Convert.emptyToNull((String) swapTx.get("amountNQT"));
-    Long feeNQT = 0L;
-    if(feeNqtString != null)
-    {
-      feeNQT = Long.parseLong(feeNqtString);
-    }
-      
     //trigger fee enforcement
-    if(feeNQT < AppConstants.triggerFee) return;
+    if(swapTx.amountNQT < AppConstants.triggerFee) return;
       
-    String feeRecipient = Convert.emptyToNull((String) swapTx.get("recipientRS"));
-    if(feeRecipient == null) return;
-    if(!feeRecipient.equals(AppConstants.triggerAccount)) return;
+    if(swapTx.recipientId != triggerAccountId) return;
       
     //parse message to get initiator and acceptor
     x.sender = Convert.emptyToNull((String) data.get("sender"));
@@ -646,6 +628,30 @@ public class QuackApp
     }    
   }
 
+  //drops untagged transactions while NRS response is being read
+  final TransactionFilter.Acceptor quackTagged = new TransactionFilter.Acceptor()
+  {
+    @Override
+    public boolean accept(JSONObject tx)
+    {
+      JSONObject attach = (JSONObject) tx.get("attachment");
+      if(attach == null) return false;
+      Object message = attach.get("message");
+      if(!(message instanceof String)) return false;
+      //cheap check before parsing
+      if(!((String) message).contains("quack")) return false;
+      try
+      {
+        JSONObject data = (JSONObject) new JSONParser().parse((String) message);
+        return data != null && isQuack(data);
+      }
+      catch(Exception e)
+      {
+        return false;
+      }
+    }
+  };
+  
   boolean isQuack(JSONObject message)
   {
     if(!message.containsKey("quack")) return false;
@@ -0,0 +1,227 @@
+package blackyblack.quack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import nrs.util.Convert;
+import nrs.util.Logger;
+
+/*
+ * Combines quack transactions of an account into swaps.
+ * Transactions can be added in portions as they are fetched,
+ * the same transaction added twice is counted once.
+ */
+class SwapCollector
+{
+  private final QuackApp app;
+  private final String account;
+  //map with fullhash as a key
+  private final Map<String, SwapInfo> lookup = new HashMap<String, SwapInfo>();
+  private final Set<String> seen = new HashSet<String>();
+  private final JSONParser parser = new JSONParser();
+  //chain height for confirmations of collected legs, -1 to keep those of transactions
+  private final long height;
+
+  SwapCollector(QuackApp app, String account)
+  {
+    this(app, account, -1);
+  }
+
+  SwapCollector(QuackApp app, String account, long height)
+  {
+    this.app = app;
+    this.account = account;
+    this.height = height;
+  }
+
+  void addAll(List<JSONObject> txs)
+  {
+    for(JSONObject tx : txs)
+    {
+      add(tx);
+    }
+  }
+
+  void add(JSONObject tx)
+  {
+    if(tx == null) return;
+    //pages can overlap when new transactions arrive during fetch
+    String txid = Convert.emptyToNull((String) tx.get("transaction"));
+    if(txid != null && !seen.add(txid)) return;
+
+    try
+    {
+      JSONObject attach = (JSONObject) tx.get("attachment");
+      if(attach == null) return;
+      String message = (String) attach.get("message");
+      if(message == null) return;
+      JSONObject data = (JSONObject) parser.parse(message);
+      if(data == null) return;
+      
+      if(!app.isQuack(data)) return;
+      if(app.isTrigger(data))
+      {
+        //find fullhash in a map and add trigger here
+        String fullhash = Convert.emptyToNull((String) tx.get("fullHash"));
+        if(fullhash == null) return;
+        SwapInfo x = lookup.get(fullhash);
+        if(x == null)
+        {
+          x = new SwapInfo();
+        }
+        
+        x.gotTrigger = true;         
+        lookup.put(fullhash, x);
+        return;
+      }
+      
+      //phased transactions are added by checking linked fullhash        
+      JSONArray linkedhashes = (JSONArray) attach.get("phasingLinkedFullHashes");
+      if(linkedhashes == null) return;
+      if(linkedhashes.size() == 0) return;
+      
+      Long finishHeight = Convert.nullToZero((Long) attach.get("phasingFinishHeight"));
+      if(finishHeight == 0) return;
+      
+      String hashdata = Convert.emptyToNull((String) linkedhashes.get(0));
+      if(hashdata == null) return;
+      
+      String txSender = Convert.emptyToNull((String) tx.get("senderRS"));
+      String txRecipient = Convert.emptyToNull((String) tx.get("recipientRS"));
+      
+      if(txSender == null) return;
+      if(txRecipient == null) return;
+      
+      SwapInfo x = lookup.get(hashdata);
+      if(x == null)
+      {
+        x = new SwapInfo();
+        x.minFinishHeight = finishHeight.intValue();
+      }
+      
+      if(finishHeight < x.minFinishHeight) x.minFinishHeight = finishHeight.intValue();
+      
+      x.triggerhash = hashdata;
+      //fill x with information about swap if present
+      app.tryUpdateInformation(account, txSender, x, data);
+      
+      List<BlockAssetInfo> assets = x.assets.get(txSender);
+      if(assets == null) assets = new ArrayList<BlockAssetInfo>();
+      
+      BlockAssetInfo assetInfo = new BlockAssetInfo();
+      assetInfo.tx = tx;
+      Object txHeight = tx.get("height");
+      if(height >= 0 && txHeight instanceof Long)
+      {
+        assetInfo.confirmations = Math.max(0, height - (Long) txHeight);
+      }
+      AssetInfo assetInfoData = new AssetInfo();
+      
+      Long txType = 0L;
+      Long txSubtype = 0L;
+      
+      txType = Convert.nullToZero((Long) tx.get("type"));
+      txSubtype= Convert.nullToZero((Long) tx.get("subtype"));
+      
+      //check if it is payment
+      if(txType == 0 && txSubtype == 0)
+      {
+        assetInfoData.id = "1";
+        assetInfoData.type = "NXT";
+        String qnt = Convert.emptyToNull((String) tx.get("amountNQT"));
+        if(qnt != null)
+        {
+          assetInfoData.quantity = Long.parseLong(qnt);
+        }
+        
+        assetInfo.asset = assetInfoData;
+        assets.add(assetInfo);
+        x.assets.put(txSender, assets);
+        lookup.put(hashdata, x);
+        return;
+      }
+      
+      //check if it is asset transfer
+      if(txType == 2 && txSubtype == 1)
+      {
+        assetInfoData.id = Convert.emptyToNull((String) attach.get("asset"));
+        String qnt = Convert.emptyToNull((String) attach.get("quantityQNT"));
+        if(qnt != null)
+        {
+          assetInfoData.quantity = Long.parseLong(qnt);
+        }
+        assetInfoData.type = "A";
+        
+        assetInfo.asset = assetInfoData;
+        assets.add(assetInfo);
+        x.assets.put(txSender, assets);
+        lookup.put(hashdata, x);
+        return;
+      }
+      
+      //check if it is MS transfer
+      if(txType == 5 && txSubtype == 3)
+      {
+        assetInfoData.id = Convert.emptyToNull((String) attach.get("currency"));
+        String qnt = Convert.emptyToNull((String) attach.get("units"));
+        if(qnt != null)
+        {
+          assetInfoData.quantity = Long.parseLong(qnt);
+        }
+        assetInfoData.type = "M";
+        
+        assetInfo.asset = assetInfoData;
+        assets.add(assetInfo);
+        x.assets.put(txSender, assets);
+        lookup.put(hashdata, x);
+        return;
+      }
+      
+      //unsupported tx
+      return;
+    }
+    catch(Exception e)
+    {
+      Logger.logMessage("Failed to parse tx");
+    }
+  }
+
+  List<SwapInfo> result()
+  {
+    List<SwapInfo> result = new ArrayList<SwapInfo>();
+    for(Entry<String, SwapInfo> k : lookup.entrySet())
+    {
+      SwapInfo a = k.getValue();
+      if(a == null) continue;
+
+      for(String j : a.assets.keySet())
+      {
+        List<BlockAssetInfo> l = a.assets.get(j);
+        if(l == null) continue;
+        if(l.size() == 0) continue;
+        
+        if(j.equals(a.sender))
+        {
+          a.assetsA = new ArrayList<BlockAssetInfo>(l);
+        }
+        else if(j.equals(a.recipient))
+        {
+          a.assetsB = new ArrayList<BlockAssetInfo>(l);
+        }
+      }
+      
+      result.add(a);
+    }
+
+    return result;
+  }
+}
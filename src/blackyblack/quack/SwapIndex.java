@@ -0,0 +1,587 @@
+package blackyblack.quack;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import blackyblack.Application;
+import blackyblack.BlockchainStatusCache;
+import blackyblack.TransactionPager;
+import nrs.NxtException.NxtApiException;
+import nrs.util.Convert;
+import nrs.util.Logger;
+
+/*
+ * Local index of quack transactions per account, grouped by trigger full hash.
+ * First scan of an account reads the requested window, later scans read only
+ * blocks after the account mark (minus overlap for forks) and merge them in.
+ * Swaps are rebuilt from indexed transactions with SwapCollector,
+ * so results are the same as a full scan.
+ */
+public class SwapIndex
+{
+  public static final SwapIndex instance = new SwapIndex();
+
+  private static class AccountIndex
+  {
+    final String accountId;
+    boolean loaded;
+    //scan time of last fetch, -1 if account was never fetched
+    int mark = -1;
+    int savedMark = -1;
+    //last block applied by BlockPoller, -1 if index is not followed
+    int followedHeight = -1;
+    //index has every quack transaction with block timestamp from here
+    int coveredFrom = Integer.MAX_VALUE;
+    //trigger full hash -> transaction id -> transaction
+    final Map<String, Map<String, JSONObject>> swaps = new HashMap<String, Map<String, JSONObject>>();
+    //held across NRS paging, a lock instead of a monitor so a waiting virtual thread unmounts
+    final ReentrantLock lock = new ReentrantLock();
+    //scans and block updates holding this index, guarded by accounts, only idle indexes are evicted
+    int users;
+
+    AccountIndex(String accountId)
+    {
+      this.accountId = accountId;
+    }
+  }
+
+  private final Path dir;
+  private final int overlap;
+  private final int retention;
+  private final int capacity;
+  private final LinkedHashMap<String, AccountIndex> accounts;
+
+  private final AtomicLong memory = new AtomicLong();
+  private final AtomicLong incremental = new AtomicLong();
+  private final AtomicLong backfills = new AtomicLong();
+  private final AtomicLong fetched = new AtomicLong();
+
+  private SwapIndex()
+  {
+    String dirName = Application.getStringProperty("blackyblack.swapIndexDir");
+    dir = dirName == null ? null : Paths.get(dirName);
+    overlap = Math.max(0, Application.getIntProperty("blackyblack.swapIndexOverlap"));
+    retention = Math.max(0, Application.getIntProperty("blackyblack.swapIndexRetention"));
+    capacity = Math.max(1, Application.getIntProperty("blackyblack.swapIndexAccounts"));
+
+    //access order, least recently scanned accounts are evicted first
+    accounts = new LinkedHashMap<String, AccountIndex>(16, 0.75f, true);
+  }
+
+  /*
+   * Swaps of one scan with the block they were built at.
+   * Height is -1 and block null when BlockPoller does not follow the chain.
+   */
+  public static final class Scan
+  {
+    public final List<SwapInfo> swaps;
+    public final int height;
+    public final String block;
+
+    Scan(List<SwapInfo> swaps, BlockPoller.Tip tip)
+    {
+      this.swaps = swaps;
+      this.height = tip == null ? -1 : tip.height;
+      this.block = tip == null ? null : tip.block;
+    }
+  }
+
+  public Scan scan(QuackApp app, String account, int timelimit) throws NxtApiException
+  {
+    int now = Convert.getEpochTime();
+    int from = (timelimit > 0 && now > timelimit) ? now - timelimit : 0;
+
+    AccountIndex index = account(account);
+    index.lock.lock();
+    try
+    {
+      if (!index.loaded)
+      {
+        load(index);
+        index.loaded = true;
+      }
+
+      //poller applied every block since last fetch, nothing to ask NRS
+      BlockPoller.Tip tip = BlockPoller.instance.getTip();
+      int height = tip == null ? -1 : tip.height;
+      if (height >= 0 && index.followedHeight == height && from >= index.coveredFrom)
+      {
+        memory.incrementAndGet();
+        if (prune(index, now))
+        {
+          save(index);
+        }
+        return new Scan(rebuild(app, account, index, from, height), tip);
+      }
+
+      boolean changed;
+      if (index.mark < 0 || from < index.coveredFrom)
+      {
+        backfills.incrementAndGet();
+        changed = fetch(app, account, index, from, now);
+        index.coveredFrom = from;
+      }
+      else
+      {
+        incremental.incrementAndGet();
+        changed = fetch(app, account, index, Math.max(0, index.mark - overlap), now);
+      }
+      index.mark = now;
+      //blocks after this height are applied by poller
+      index.followedHeight = height;
+      changed |= prune(index, now);
+      //unchanged index is saved only when the mark moved far enough
+      if (changed || index.mark - index.savedMark > overlap / 2)
+      {
+        save(index);
+      }
+
+      //fetched history may be newer than the tip, the answer is never tagged ahead of its data
+      return new Scan(rebuild(app, account, index, from, height), tip);
+    }
+    finally
+    {
+      index.lock.unlock();
+      release(Collections.singletonList(index));
+    }
+  }
+
+  /*
+   * Merges transactions of a new block into followed accounts.
+   * Accounts that missed a block are left for the next scan to fetch.
+   */
+  void applyBlock(int height, int timestamp, List<JSONObject> txs)
+  {
+    List<AccountIndex> followed = acquireAll();
+
+    JSONParser parser = new JSONParser();
+    for (AccountIndex index : followed)
+    {
+      index.lock.lock();
+      try
+      {
+        if (index.followedHeight != height - 1)
+          continue;
+
+        boolean changed = false;
+        for (JSONObject tx : txs)
+        {
+          if (index.accountId.equals(tx.get("sender")) || index.accountId.equals(tx.get("recipient")))
+          {
+            changed |= add(index, tx, parser);
+          }
+        }
+        index.followedHeight = height;
+        index.mark = Math.max(index.mark, timestamp);
+        if (changed)
+        {
+          save(index);
+        }
+      }
+      finally
+      {
+        index.lock.unlock();
+      }
+    }
+    release(followed);
+  }
+
+  /*
+   * Called on forks and gaps, next scan of every account fetches from NRS again.
+   */
+  void unfollow()
+  {
+    List<AccountIndex> followed = acquireAll();
+    for (AccountIndex index : followed)
+    {
+      index.lock.lock();
+      try
+      {
+        index.followedHeight = -1;
+      }
+      finally
+      {
+        index.lock.unlock();
+      }
+    }
+    release(followed);
+  }
+
+  private AccountIndex account(String account) throws NxtApiException
+  {
+    Long id;
+    try
+    {
+      id = Convert.parseAccountId(account);
+    }
+    catch (RuntimeException e)
+    {
+      throw new NxtApiException("incorrect account " + account);
+    }
+    if (id == null)
+    {
+      throw new NxtApiException("incorrect account " + account);
+    }
+
+    String accountId = Convert.toUnsignedLong(id);
+    synchronized (accounts)
+    {
+      AccountIndex index = accounts.get(accountId);
+      if (index == null)
+      {
+        index = new AccountIndex(accountId);
+        accounts.put(accountId, index);
+      }
+      index.users++;
+      evict();
+      return index;
+    }
+  }
+
+  /*
+   * Takes every index for a block update, none of them is evicted until released.
+   */
+  private List<AccountIndex> acquireAll()
+  {
+    synchronized (accounts)
+    {
+      List<AccountIndex> result = new ArrayList<AccountIndex>(accounts.values());
+      for (AccountIndex index : result)
+      {
+        index.users++;
+      }
+      return result;
+    }
+  }
+
+  private void release(List<AccountIndex> indexes)
+  {
+    synchronized (accounts)
+    {
+      for (AccountIndex index : indexes)
+      {
+        index.users--;
+      }
+      evict();
+    }
+  }
+
+  /*
+   * Drops least recently used idle indexes over capacity, evicted accounts are reloaded from disk on next scan.
+   * An index in use stays, so no two instances of one account read or write its file at once.
+   * Must be called holding accounts.
+   */
+  private void evict()
+  {
+    Iterator<AccountIndex> it = accounts.values().iterator();
+    while (accounts.size() > capacity && it.hasNext())
+    {
+      if (it.next().users == 0)
+      {
+        it.remove();
+      }
+    }
+  }
+
+  private boolean fetch(final QuackApp app, String account, final AccountIndex index,
+      int from, int now) throws NxtApiException
+  {
+    final boolean[] changed = new boolean[1];
+    final Set<String> seen = new HashSet<String>();
+    final JSONParser parser = new JSONParser();
+    int timelimit = from > 0 ? Math.max(1, now - from) : 0;
+    app.api.getTransactions(account, timelimit, app.quackTagged, new TransactionPager.Listener()
+    {
+      @Override
+      public void transactions(List<JSONObject> txs)
+      {
+        fetched.addAndGet(txs.size());
+        for (JSONObject tx : txs)
+        {
+          seen.add((String) tx.get("transaction"));
+          changed[0] |= add(index, tx, parser);
+        }
+      }
+    });
+
+    //transactions from orphaned blocks are not returned again
+    int slack = Convert.getEpochTime() - now;
+    Iterator<Map<String, JSONObject>> swaps = index.swaps.values().iterator();
+    while (swaps.hasNext())
+    {
+      Map<String, JSONObject> swap = swaps.next();
+      Iterator<Map.Entry<String, JSONObject>> txs = swap.entrySet().iterator();
+      while (txs.hasNext())
+      {
+        Map.Entry<String, JSONObject> e = txs.next();
+        if (blockTimestamp(e.getValue()) > from + slack && !seen.contains(e.getKey()))
+        {
+          txs.remove();
+          changed[0] = true;
+        }
+      }
+      if (swap.isEmpty())
+      {
+        swaps.remove();
+      }
+    }
+    return changed[0];
+  }
+
+  private boolean add(AccountIndex index, JSONObject tx, JSONParser parser)
+  {
+    String txid = Convert.emptyToNull((String) tx.get("transaction"));
+    String key = swapKey(tx, parser);
+    if (txid == null || key == null)
+      return false;
+
+    Map<String, JSONObject> swap = index.swaps.get(key);
+    if (swap == null)
+    {
+      swap = new HashMap<String, JSONObject>();
+      index.swaps.put(key, swap);
+    }
+    JSONObject old = swap.put(txid, tx);
+    //confirmations always differ, only a new block makes a difference
+    return old == null || !equal(old.get("block"), tx.get("block"));
+  }
+
+  private static boolean equal(Object a, Object b)
+  {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  /*
+   * Trigger transactions are keyed by own full hash, swap legs by linked full hash.
+   */
+  private static String swapKey(JSONObject tx, JSONParser parser)
+  {
+    try
+    {
+      JSONObject attach = (JSONObject) tx.get("attachment");
+      JSONObject data = (JSONObject) parser.parse((String) attach.get("message"));
+      if (Convert.nullToZero((Long) data.get("trigger")) == 1)
+      {
+        return Convert.emptyToNull((String) tx.get("fullHash"));
+      }
+      JSONArray linkedhashes = (JSONArray) attach.get("phasingLinkedFullHashes");
+      if (linkedhashes == null || linkedhashes.size() == 0)
+        return null;
+      return Convert.emptyToNull((String) linkedhashes.get(0));
+    }
+    catch (Exception e)
+    {
+      return null;
+    }
+  }
+
+  private boolean prune(AccountIndex index, int now)
+  {
+    if (retention <= 0 || now <= retention)
+      return false;
+
+    int limit = now - retention;
+    boolean changed = false;
+    Iterator<Map<String, JSONObject>> swaps = index.swaps.values().iterator();
+    while (swaps.hasNext())
+    {
+      Map<String, JSONObject> swap = swaps.next();
+      Iterator<JSONObject> txs = swap.values().iterator();
+      while (txs.hasNext())
+      {
+        if (blockTimestamp(txs.next()) < limit)
+        {
+          txs.remove();
+          changed = true;
+        }
+      }
+      if (swap.isEmpty())
+      {
+        swaps.remove();
+      }
+    }
+    index.coveredFrom = Math.max(index.coveredFrom, limit);
+    return changed;
+  }
+
+  /*
+   * Confirmations are counted at the given height, at the cached chain height when it is -1.
+   */
+  private List<SwapInfo> rebuild(QuackApp app, String account, AccountIndex index, int from, long height)
+  {
+    List<JSONObject> txs = new ArrayList<JSONObject>();
+    for (Map<String, JSONObject> swap : index.swaps.values())
+    {
+      for (JSONObject tx : swap.values())
+      {
+        if (blockTimestamp(tx) >= from)
+        {
+          txs.add(tx);
+        }
+      }
+    }
+    //same order as NRS returns history, newest first
+    Collections.sort(txs, new Comparator<JSONObject>()
+    {
+      @Override
+      public int compare(JSONObject a, JSONObject b)
+      {
+        int c = Long.compare(Convert.parseLong(b.get("height")), Convert.parseLong(a.get("height")));
+        if (c != 0)
+          return c;
+        return Long.compare(Convert.parseLong(b.get("transactionIndex")), Convert.parseLong(a.get("transactionIndex")));
+      }
+    });
+
+    if (height < 0)
+    {
+      try
+      {
+        height = BlockchainStatusCache.instance.getHeight() - 1;
+      }
+      catch (NxtApiException e)
+      {
+        //keep confirmations from the time transactions were fetched
+      }
+    }
+
+    //confirmations are set on collected legs, indexed transactions are not copied
+    SwapCollector collector = new SwapCollector(app, account, height);
+    for (JSONObject tx : txs)
+    {
+      collector.add(tx);
+    }
+    return collector.result();
+  }
+
+  private static int blockTimestamp(JSONObject tx)
+  {
+    Object t = tx.get("blockTimestamp");
+    if (t == null)
+    {
+      t = tx.get("timestamp");
+    }
+    return (int) Convert.parseLong(t);
+  }
+
+  private Path file(AccountIndex index)
+  {
+    return dir.resolve(index.accountId + ".json");
+  }
+
+  private void load(AccountIndex index)
+  {
+    if (dir == null)
+      return;
+    Path file = file(index);
+    if (!Files.exists(file))
+      return;
+
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+    {
+      JSONParser parser = new JSONParser();
+      JSONObject o = (JSONObject) parser.parse(reader);
+      index.mark = (int) Convert.parseLong(o.get("mark"));
+      index.coveredFrom = (int) Convert.parseLong(o.get("coveredFrom"));
+      index.savedMark = index.mark;
+      JSONArray txs = (JSONArray) o.get("transactions");
+      for (Object tx : txs)
+      {
+        add(index, (JSONObject) tx, parser);
+      }
+    }
+    catch (Exception e)
+    {
+      //broken index is rebuilt from NRS
+      Logger.logMessage("Could not load swap index " + file + ": " + e.getMessage());
+      index.mark = -1;
+      index.coveredFrom = Integer.MAX_VALUE;
+      index.swaps.clear();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void save(AccountIndex index)
+  {
+    if (dir == null)
+      return;
+
+    JSONObject o = new JSONObject();
+    o.put("account", index.accountId);
+    o.put("mark", index.mark);
+    o.put("coveredFrom", index.coveredFrom);
+    JSONArray txs = new JSONArray();
+    for (Map<String, JSONObject> swap : index.swaps.values())
+    {
+      txs.addAll(swap.values());
+    }
+    o.put("transactions", txs);
+
+    Path file = file(index);
+    Path tmp = null;
+    try
+    {
+      Files.createDirectories(dir);
+      //unique name, a failed or concurrent save never writes into another one's file
+      tmp = Files.createTempFile(dir, index.accountId + ".", ".json.tmp");
+      try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8))
+      {
+        o.writeJSONString(writer);
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      index.savedMark = index.mark;
+    }
+    catch (IOException e)
+    {
+      Logger.logMessage("Could not save swap index " + file, e);
+      if (tmp != null)
+      {
+        try
+        {
+          Files.deleteIfExists(tmp);
+        }
+        catch (IOException ex)
+        {
+          //stale temp file is only wasted space
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public JSONObject getStats()
+  {
+    JSONObject o = new JSONObject();
+    o.put("memory", memory.get());
+    o.put("incremental", incremental.get());
+    o.put("backfills", backfills.get());
+    o.put("fetched", fetched.get());
+    synchronized (accounts)
+    {
+      o.put("accounts", accounts.size());
+    }
+    return o;
+  }
+}
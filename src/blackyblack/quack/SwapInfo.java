@@ -1,11 +1,16 @@
 package blackyblack.quack;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class SwapInfo
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+
+public class SwapInfo implements JSONStreamAware
 {
   //what is announced
   public String triggerBytes;
@@ -35,4 +40,53 @@ public class SwapInfo
     minFinishHeight = 0;
     gotTrigger = false;
   }
+
+  /*
+   * Swap as scan returns it, written field by field without building JSON objects.
+   */
+  @Override
+  public void writeJSONString(Writer out) throws IOException
+  {
+    out.write("{\"triggerBytes\":");
+    JSONValue.writeJSONString(triggerBytes, out);
+    out.write(",\"triggerhash\":");
+    JSONValue.writeJSONString(triggerhash, out);
+    out.write(",\"sender\":");
+    JSONValue.writeJSONString(sender, out);
+    out.write(",\"recipient\":");
+    JSONValue.writeJSONString(recipient, out);
+    out.write(",\"minFinishHeight\":");
+    out.write(Integer.toString(minFinishHeight));
+    out.write(",\"gotTrigger\":");
+    out.write(Boolean.toString(gotTrigger));
+
+    out.write(",\"announcedAssets\":[");
+    for (int i = 0; i < announcedAssets.size(); i++)
+    {
+      if (i > 0) out.write(',');
+      announcedAssets.get(i).toJson().writeJSONString(out);
+    }
+    out.write("],\"expectedAssets\":[");
+    for (int i = 0; i < announcedExpAssets.size(); i++)
+    {
+      if (i > 0) out.write(',');
+      announcedExpAssets.get(i).toJson().writeJSONString(out);
+    }
+    out.write("],\"assetsA\":");
+    writeAssets(assetsA, out);
+    out.write(",\"assetsB\":");
+    writeAssets(assetsB, out);
+    out.write('}');
+  }
+
+  private static void writeAssets(List<BlockAssetInfo> list, Writer out) throws IOException
+  {
+    out.write('[');
+    for (int i = 0; i < list.size(); i++)
+    {
+      if (i > 0) out.write(',');
+      list.get(i).writeJSONString(out);
+    }
+    out.write(']');
+  }
 }
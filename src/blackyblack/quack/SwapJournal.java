@@ -0,0 +1,568 @@
+package blackyblack.quack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import blackyblack.Application;
+import nrs.util.Convert;
+import nrs.util.Logger;
+
+/*
+ * Append-only journal of swap events in memory-mapped segment files.
+ * Every event is one fixed 96-byte record:
+ *
+ *  0 int    crc32 of bytes 4..95
+ *  4 byte   event type
+ *  5 byte   status, 0 ok, 1 failed
+ *  6 short  leg index
+ *  8 long   time, milliseconds
+ * 16 long   sender account id
+ * 24 long   recipient account id
+ * 32 byte[] trigger full hash, 32 bytes
+ * 64 long   transaction id
+ * 72 long   asset or currency id, 0 for NXT
+ * 80 long   quantity
+ * 88 int    finish height
+ * 92 byte   asset type, 0 NXT, 1 asset, 2 currency
+ *
+ * An all-zero record ends the written part of a segment. Records with a bad crc
+ * (a torn write at crash time) are counted and skipped, records after them still replay.
+ */
+public class SwapJournal
+{
+  public static final SwapJournal instance = new SwapJournal();
+
+  public static final byte INIT = 1;
+  public static final byte LEG = 2;
+  public static final byte ACCEPT = 3;
+  public static final byte TRIGGER = 4;
+
+  static final int RECORD_SIZE = 96;
+
+  /*
+   * One submitted leg, kept in record form until it is listed.
+   */
+  static class Leg
+  {
+    int leg;
+    long sender;
+    byte assetType;
+    long assetId;
+    long quantity;
+    int finishHeight;
+    long transaction;
+    boolean failed;
+
+    @SuppressWarnings("unchecked")
+    JSONObject toJson()
+    {
+      JSONObject o = new JSONObject();
+      o.put("leg", leg);
+      o.put("sender", Convert.rsAccount(sender));
+      o.put("type", assetType == 1 ? "A" : assetType == 2 ? "M" : "NXT");
+      o.put("id", assetType == 0 ? "1" : Convert.toUnsignedLong(assetId));
+      o.put("QNT", quantity);
+      o.put("finishHeight", finishHeight);
+      if (failed)
+      {
+        o.put("error", "not queued");
+      }
+      else
+      {
+        o.put("transaction", Convert.toUnsignedLong(transaction));
+      }
+      return o;
+    }
+  }
+
+  /*
+   * Swap state restored from journal.
+   */
+  public static class JournalSwap
+  {
+    public final String triggerhash;
+    public long sender;
+    public long recipient;
+    public int finishHeight;
+    public boolean initiated;
+    public boolean accepted;
+    public boolean triggered;
+    public long triggerTx;
+    public long updated;
+    final List<Leg> legs = new ArrayList<Leg>();
+
+    JournalSwap(String triggerhash)
+    {
+      this.triggerhash = triggerhash;
+    }
+
+    /*
+     * Copy for readers outside the journal lock, legs are never changed once added.
+     */
+    JournalSwap copy()
+    {
+      JournalSwap c = new JournalSwap(triggerhash);
+      c.sender = sender;
+      c.recipient = recipient;
+      c.finishHeight = finishHeight;
+      c.initiated = initiated;
+      c.accepted = accepted;
+      c.triggered = triggered;
+      c.triggerTx = triggerTx;
+      c.updated = updated;
+      c.legs.addAll(legs);
+      return c;
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject toJson()
+    {
+      JSONObject o = new JSONObject();
+      o.put("triggerhash", triggerhash);
+      o.put("sender", Convert.rsAccount(sender));
+      o.put("recipient", Convert.rsAccount(recipient));
+      o.put("finishHeight", finishHeight);
+      o.put("initiated", initiated);
+      o.put("accepted", accepted);
+      o.put("triggered", triggered);
+      if (triggerTx != 0)
+      {
+        o.put("triggerTransaction", Convert.toUnsignedLong(triggerTx));
+      }
+      o.put("updated", updated);
+      JSONArray legsArray = new JSONArray();
+      for (Leg leg : legs)
+      {
+        legsArray.add(leg.toJson());
+      }
+      o.put("legs", legsArray);
+      return o;
+    }
+  }
+
+  private final File dir;
+  private final int segmentRecords;
+  private final int maxSegments;
+  private final boolean sync;
+
+  private final Map<String, JournalSwap> swaps;
+  private final CRC32 crc = new CRC32();
+  private final byte[] record = new byte[RECORD_SIZE];
+
+  private FileChannel channel;
+  private MappedByteBuffer segment;
+  private long segmentNumber;
+  private long records;
+  private long replayed;
+  private long replayTime;
+  private int corrupted;
+
+  private SwapJournal()
+  {
+    String dirName = Application.getStringProperty("blackyblack.journalDir");
+    dir = dirName == null ? null : new File(dirName);
+    segmentRecords = Math.max(16, Application.getIntProperty("blackyblack.journalSegmentSize") / RECORD_SIZE);
+    maxSegments = Math.max(1, Application.getIntProperty("blackyblack.journalMaxSegments"));
+    sync = Application.getBooleanProperty("blackyblack.journalSync");
+
+    //never more swaps than records the kept segments can hold
+    final int capacity = segmentRecords * maxSegments;
+    swaps = new LinkedHashMap<String, JournalSwap>()
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, JournalSwap> eldest)
+      {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /*
+   * Replays existing segments and opens the last one for appending.
+   */
+  public synchronized void open()
+  {
+    if (dir == null || channel != null)
+      return;
+
+    long start = System.currentTimeMillis();
+    try
+    {
+      if (!dir.isDirectory() && !dir.mkdirs())
+      {
+        throw new IOException("can not create " + dir);
+      }
+
+      long[] numbers = segmentNumbers();
+      int position = 0;
+      for (long n : numbers)
+      {
+        segmentNumber = n;
+        position = replay(segmentFile(n));
+      }
+
+      if (numbers.length == 0)
+      {
+        segmentNumber = 1;
+        position = 0;
+      }
+      map(segmentNumber, position);
+    }
+    catch (IOException e)
+    {
+      Logger.logMessage("Could not open swap journal in " + dir, e);
+      close();
+      return;
+    }
+    replayTime = System.currentTimeMillis() - start;
+    Logger.logMessage("Replayed " + replayed + " swap journal records in " + replayTime + " ms, " + swaps.size() + " swaps");
+  }
+
+  public synchronized void close()
+  {
+    if (segment != null && sync)
+    {
+      segment.force();
+    }
+    segment = null;
+    if (channel != null)
+    {
+      try
+      {
+        channel.close();
+      }
+      catch (IOException e)
+      {
+        Logger.logMessage("Could not close swap journal", e);
+      }
+      channel = null;
+    }
+  }
+
+  public void init(String triggerhash, long sender, long recipient, int finishHeight, int legs)
+  {
+    append(INIT, (byte) 0, legs, sender, recipient, triggerhash, 0, null, finishHeight);
+  }
+
+  public void accept(String triggerhash, long sender, long recipient, int finishHeight, int legs)
+  {
+    append(ACCEPT, (byte) 0, legs, sender, recipient, triggerhash, 0, null, finishHeight);
+  }
+
+  public void leg(String triggerhash, long sender, long recipient, int finishHeight, int leg,
+      AssetInfo asset, String txid)
+  {
+    append(LEG, txid == null ? (byte) 1 : (byte) 0, leg, sender, recipient, triggerhash,
+        parseId(txid), asset, finishHeight);
+  }
+
+  public void trigger(String triggerhash, long sender, String txid)
+  {
+    append(TRIGGER, (byte) 0, 0, sender, 0, triggerhash, parseId(txid), null, 0);
+  }
+
+  /*
+   * Snapshots of the journaled swaps, appends do not change them.
+   */
+  public synchronized Collection<JournalSwap> getSwaps()
+  {
+    List<JournalSwap> result = new ArrayList<JournalSwap>(swaps.size());
+    for (JournalSwap swap : swaps.values())
+    {
+      result.add(swap.copy());
+    }
+    return result;
+  }
+
+  private synchronized void append(byte type, byte status, int leg, long sender, long recipient,
+      String triggerhash, long txid, AssetInfo asset, int finishHeight)
+  {
+    if (segment == null)
+      return;
+
+    byte[] hash = parseHash(triggerhash);
+    long assetId = 0;
+    long quantity = 0;
+    byte assetType = 0;
+    if (asset != null)
+    {
+      assetType = "A".equals(asset.type) ? (byte) 1 : "M".equals(asset.type) ? (byte) 2 : (byte) 0;
+      assetId = assetType == 0 ? 0 : parseId(asset.id);
+      quantity = Convert.nullToZero(asset.quantity);
+    }
+
+    ByteBuffer b = ByteBuffer.wrap(record);
+    Arrays.fill(record, (byte) 0);
+    b.position(4);
+    b.put(type);
+    b.put(status);
+    b.putShort((short) leg);
+    b.putLong(System.currentTimeMillis());
+    b.putLong(sender);
+    b.putLong(recipient);
+    b.put(hash);
+    b.putLong(txid);
+    b.putLong(assetId);
+    b.putLong(quantity);
+    b.putInt(finishHeight);
+    b.put(assetType);
+    crc.reset();
+    crc.update(record, 4, RECORD_SIZE - 4);
+    b.putInt(0, (int) crc.getValue());
+
+    try
+    {
+      if (segment.remaining() < RECORD_SIZE)
+      {
+        roll();
+      }
+      segment.put(record);
+      if (sync)
+      {
+        segment.force();
+      }
+    }
+    catch (IOException e)
+    {
+      Logger.logMessage("Could not write swap journal", e);
+      return;
+    }
+    records++;
+    apply(ByteBuffer.wrap(record));
+  }
+
+  private void roll() throws IOException
+  {
+    segment.force();
+    channel.close();
+    segmentNumber++;
+    map(segmentNumber, 0);
+
+    //oldest segments go away, their swaps are long finished
+    long[] numbers = segmentNumbers();
+    for (int i = 0; i < numbers.length - maxSegments; i++)
+    {
+      if (!segmentFile(numbers[i]).delete())
+      {
+        Logger.logMessage("Could not delete swap journal segment " + numbers[i]);
+      }
+    }
+  }
+
+  private void map(long number, int position) throws IOException
+  {
+    int size = segmentRecords * RECORD_SIZE;
+    @SuppressWarnings("resource")
+    RandomAccessFile file = new RandomAccessFile(segmentFile(number), "rw");
+    channel = file.getChannel();
+    segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    segment.position(position);
+  }
+
+  private static boolean isEmpty(ByteBuffer buffer, int position)
+  {
+    for (int i = position; i < position + RECORD_SIZE; i += 8)
+    {
+      if (buffer.getLong(i) != 0)
+        return false;
+    }
+    return true;
+  }
+
+  private int replay(File file) throws IOException
+  {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel ch = raf.getChannel())
+    {
+      MappedByteBuffer buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      ByteBuffer b = ByteBuffer.wrap(record);
+      int position = 0;
+      while (buffer.remaining() >= RECORD_SIZE && !isEmpty(buffer, position))
+      {
+        buffer.get(record);
+        crc.reset();
+        crc.update(record, 4, RECORD_SIZE - 4);
+        if ((int) crc.getValue() == b.getInt(0))
+        {
+          apply(b);
+          replayed++;
+        }
+        else
+        {
+          corrupted++;
+          Logger.logMessage("Swap journal " + file.getName() + " has a bad record at " + position);
+        }
+        position += RECORD_SIZE;
+      }
+      return position;
+    }
+  }
+
+  private void apply(ByteBuffer b)
+  {
+    byte type = b.get(4);
+    byte status = b.get(5);
+    short leg = b.getShort(6);
+    long time = b.getLong(8);
+    long sender = b.getLong(16);
+    long recipient = b.getLong(24);
+    byte[] hash = new byte[32];
+    b.position(32);
+    b.get(hash);
+    long txid = b.getLong(64);
+    long assetId = b.getLong(72);
+    long quantity = b.getLong(80);
+    int finishHeight = b.getInt(88);
+    byte assetType = b.get(92);
+
+    String triggerhash = Convert.toHexString(hash);
+    JournalSwap swap = swaps.get(triggerhash);
+    if (swap == null)
+    {
+      swap = new JournalSwap(triggerhash);
+      swaps.put(triggerhash, swap);
+    }
+    swap.updated = time;
+
+    switch (type)
+    {
+      case INIT:
+        swap.initiated = true;
+        swap.sender = sender;
+        swap.recipient = recipient;
+        swap.finishHeight = finishHeight;
+        break;
+      case ACCEPT:
+        swap.accepted = true;
+        if (swap.sender == 0)
+        {
+          swap.sender = recipient;
+          swap.recipient = sender;
+        }
+        swap.finishHeight = swap.finishHeight == 0 ? finishHeight : Math.min(swap.finishHeight, finishHeight);
+        break;
+      case LEG:
+        Leg l = new Leg();
+        l.leg = leg;
+        l.sender = sender;
+        l.assetType = assetType;
+        l.assetId = assetId;
+        l.quantity = quantity;
+        l.finishHeight = finishHeight;
+        l.transaction = txid;
+        l.failed = status != 0;
+        swap.legs.add(l);
+        break;
+      case TRIGGER:
+        swap.triggered = true;
+        swap.triggerTx = txid;
+        break;
+      default:
+        break;
+    }
+  }
+
+  private long[] segmentNumbers()
+  {
+    String[] names = dir.list();
+    List<Long> numbers = new ArrayList<Long>();
+    if (names != null)
+    {
+      for (String name : names)
+      {
+        if (!name.startsWith("journal-") || !name.endsWith(".seg"))
+          continue;
+        try
+        {
+          numbers.add(Long.parseLong(name.substring(8, name.length() - 4)));
+        }
+        catch (NumberFormatException e)
+        {
+          //not a segment
+        }
+      }
+    }
+    long[] result = new long[numbers.size()];
+    for (int i = 0; i < result.length; i++)
+    {
+      result[i] = numbers.get(i);
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  private File segmentFile(long number)
+  {
+    return new File(dir, String.format("journal-%016d.seg", number));
+  }
+
+  private static byte[] parseHash(String hex)
+  {
+    byte[] hash = new byte[32];
+    if (hex == null)
+      return hash;
+    try
+    {
+      byte[] bytes = Convert.parseHexString(hex);
+      System.arraycopy(bytes, 0, hash, 0, Math.min(32, bytes.length));
+    }
+    catch (RuntimeException e)
+    {
+      //keep zero hash
+    }
+    return hash;
+  }
+
+  static long parseAccount(String account)
+  {
+    try
+    {
+      return Convert.nullToZero(Convert.parseAccountId(account));
+    }
+    catch (RuntimeException e)
+    {
+      return 0;
+    }
+  }
+
+  static long parseId(String id)
+  {
+    try
+    {
+      return Convert.nullToZero(Convert.parseUnsignedLong(id));
+    }
+    catch (RuntimeException e)
+    {
+      return 0;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public synchronized JSONObject getStats()
+  {
+    JSONObject o = new JSONObject();
+    o.put("enabled", segment != null);
+    o.put("segment", segmentNumber);
+    o.put("records", records);
+    o.put("replayed", replayed);
+    o.put("replayTime", replayTime);
+    o.put("corrupted", corrupted);
+    o.put("swaps", swaps.size());
+    return o;
+  }
+}
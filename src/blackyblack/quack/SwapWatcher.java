@@ -0,0 +1,494 @@
+package blackyblack.quack;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+import blackyblack.Application;
+import blackyblack.BlockchainStatusCache;
+import blackyblack.DaemonThreadFactory;
+import nrs.NxtException.NxtApiException;
+import nrs.util.Logger;
+
+/*
+ * Swap state changes of subscribed accounts. Watched accounts are scanned once per new block
+ * for all subscribers together and each scan is compared with the previous one:
+ * leg - new leg transaction, complete - every announced and expected asset has its leg,
+ * trigger - trigger transaction seen, expired - chain passed finish height without trigger.
+ * Events are numbered and the last eventsBuffer of them are kept, so clients can ask for events after an id.
+ * First scan of an account makes no events, clients scan once when their subscription is ready.
+ */
+public class SwapWatcher
+{
+  public static final SwapWatcher instance = new SwapWatcher();
+
+  /*
+   * Called on the watcher thread or in subscribe, implementations should not block.
+   */
+  public interface Listener
+  {
+    //every account of the subscription is watched, events after lastId() will come
+    void ready();
+    //new events were added
+    void changed();
+    //heartbeat, nothing else to say
+    void ping();
+  }
+
+  public static class Subscription
+  {
+    private final Set<String> accounts;
+    private final Set<String> triggerhashes;
+    private final Listener listener;
+    private boolean ready;
+
+    /*
+     * Accounts in RS format, empty triggerhashes for every swap of the accounts.
+     */
+    public Subscription(Set<String> accounts, Set<String> triggerhashes, Listener listener)
+    {
+      this.accounts = Collections.unmodifiableSet(new HashSet<String>(accounts));
+      this.triggerhashes = Collections.unmodifiableSet(new HashSet<String>(triggerhashes));
+      this.listener = listener;
+    }
+
+    boolean matches(JSONObject event)
+    {
+      return accounts.contains(event.get("account"))
+          && (triggerhashes.isEmpty() || triggerhashes.contains(event.get("triggerhash")));
+    }
+  }
+
+  private static class SwapState
+  {
+    final Set<String> legs = new HashSet<String>();
+    boolean complete;
+    boolean gotTrigger;
+    boolean expired;
+  }
+
+  private static class Watched
+  {
+    final String account;
+    //used by watcher thread only, null until first scan
+    Map<String, SwapState> swaps;
+    int height = -1;
+    //guarded by SwapWatcher
+    boolean scanned;
+    //events up to this id were made before the account was watched
+    long from;
+    int subscribers;
+    long idleSince;
+
+    Watched(String account)
+    {
+      this.account = account;
+    }
+  }
+
+  private final long interval;
+  private final long heartbeat;
+  private final long linger;
+  private final int timelimit;
+  private final int bufferSize;
+
+  private final Map<String, Watched> watched = new HashMap<String, Watched>();
+  private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+  private final ArrayDeque<JSONObject> buffer = new ArrayDeque<JSONObject>();
+  private long lastId;
+  private long lastPing;
+
+  private final AtomicLong events = new AtomicLong();
+  private final AtomicLong scans = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  private ScheduledExecutorService scheduler;
+
+  private SwapWatcher()
+  {
+    interval = Application.getIntProperty("blackyblack.eventsInterval");
+    heartbeat = Math.max(1000, Application.getIntProperty("blackyblack.eventsHeartbeat"));
+    linger = Math.max(0, Application.getIntProperty("blackyblack.eventsLinger"));
+    timelimit = Application.getIntProperty("blackyblack.eventsTimelimit");
+    bufferSize = Math.max(1, Application.getIntProperty("blackyblack.eventsBuffer"));
+  }
+
+  public synchronized void start()
+  {
+    if (scheduler != null || interval <= 0)
+      return;
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("swap-watcher"));
+    scheduler.scheduleWithFixedDelay(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          tick();
+        }
+        catch (Exception e)
+        {
+          failures.incrementAndGet();
+          Logger.logDebugMessage("Swap watch failed: " + e.getMessage());
+        }
+      }
+    }, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop()
+  {
+    if (scheduler == null)
+      return;
+    scheduler.shutdownNow();
+    scheduler = null;
+  }
+
+  public synchronized boolean isRunning()
+  {
+    return scheduler != null;
+  }
+
+  public void subscribe(Subscription s)
+  {
+    boolean ready = true;
+    synchronized (this)
+    {
+      subscriptions.add(s);
+      for (String account : s.accounts)
+      {
+        Watched w = watched.get(account);
+        if (w == null)
+        {
+          w = new Watched(account);
+          watched.put(account, w);
+        }
+        w.subscribers++;
+        ready &= w.scanned;
+      }
+      s.ready = ready;
+    }
+    if (ready)
+    {
+      s.listener.ready();
+    }
+  }
+
+  public synchronized void unsubscribe(Subscription s)
+  {
+    if (!subscriptions.remove(s))
+      return;
+    for (String account : s.accounts)
+    {
+      Watched w = watched.get(account);
+      if (w != null && --w.subscribers == 0)
+      {
+        //kept for a while, long-poll clients come back between polls
+        w.idleSince = System.currentTimeMillis();
+      }
+    }
+  }
+
+  public synchronized long lastId()
+  {
+    return lastId;
+  }
+
+  /*
+   * Events of subscription after id since, null if some of them are no longer known:
+   * dropped from buffer or made before an account was watched.
+   */
+  public synchronized List<JSONObject> events(Subscription s, long since)
+  {
+    long oldest = buffer.isEmpty() ? lastId + 1 : (Long) buffer.peekFirst().get("id");
+    if (since < oldest - 1 || since > lastId)
+      return null;
+    for (String account : s.accounts)
+    {
+      Watched w = watched.get(account);
+      if (w == null || !w.scanned || since < w.from)
+        return null;
+    }
+
+    List<JSONObject> result = new ArrayList<JSONObject>();
+    Iterator<JSONObject> it = buffer.descendingIterator();
+    while (it.hasNext())
+    {
+      JSONObject e = it.next();
+      if ((Long) e.get("id") <= since)
+        break;
+      if (s.matches(e))
+      {
+        result.add(e);
+      }
+    }
+    Collections.reverse(result);
+    return result;
+  }
+
+  private static int height() throws NxtApiException
+  {
+    int height = BlockPoller.instance.getHeight();
+    if (height >= 0)
+      return height;
+    return (int) (BlockchainStatusCache.instance.getHeight() - 1);
+  }
+
+  @SuppressWarnings("unchecked")
+  void tick() throws NxtApiException
+  {
+    int height = height();
+    long now = System.currentTimeMillis();
+
+    List<Watched> toScan = new ArrayList<Watched>();
+    synchronized (this)
+    {
+      Iterator<Watched> it = watched.values().iterator();
+      while (it.hasNext())
+      {
+        Watched w = it.next();
+        if (w.subscribers == 0 && now - w.idleSince >= linger)
+        {
+          it.remove();
+          continue;
+        }
+        toScan.add(w);
+      }
+    }
+
+    //scans run without the lock, subscribers are not held up by NRS
+    List<JSONObject> found = new ArrayList<JSONObject>();
+    List<Watched> first = new ArrayList<Watched>();
+    for (Watched w : toScan)
+    {
+      if (w.height == height)
+        continue;
+      List<SwapInfo> swaps;
+      try
+      {
+        swaps = QuackApp.instance.scanSwaps(w.account, timelimit);
+        scans.incrementAndGet();
+      }
+      catch (NxtApiException e)
+      {
+        //tried again on next tick
+        failures.incrementAndGet();
+        Logger.logDebugMessage("Swap watch scan of " + w.account + " failed: " + e.getMessage());
+        continue;
+      }
+      if (w.swaps == null)
+      {
+        w.swaps = new HashMap<String, SwapState>();
+        compare(w, swaps, height, null);
+        first.add(w);
+      }
+      else
+      {
+        compare(w, swaps, height, found);
+      }
+      w.height = height;
+    }
+
+    List<Listener> ready = new ArrayList<Listener>();
+    List<Listener> changed = new ArrayList<Listener>();
+    List<Listener> ping = new ArrayList<Listener>();
+    synchronized (this)
+    {
+      for (JSONObject e : found)
+      {
+        e.put("id", ++lastId);
+        buffer.addLast(e);
+        if (buffer.size() > bufferSize)
+        {
+          buffer.removeFirst();
+        }
+      }
+      events.addAndGet(found.size());
+      for (Watched w : first)
+      {
+        w.scanned = true;
+        w.from = lastId;
+      }
+
+      boolean pingNow = now - lastPing >= heartbeat;
+      if (pingNow)
+      {
+        lastPing = now;
+      }
+      for (Subscription s : subscriptions)
+      {
+        if (!s.ready)
+        {
+          boolean all = true;
+          for (String account : s.accounts)
+          {
+            Watched w = watched.get(account);
+            all &= w != null && w.scanned;
+          }
+          if (all)
+          {
+            s.ready = true;
+            ready.add(s.listener);
+          }
+          continue;
+        }
+        for (JSONObject e : found)
+        {
+          if (s.matches(e))
+          {
+            changed.add(s.listener);
+            break;
+          }
+        }
+        if (pingNow)
+        {
+          ping.add(s.listener);
+        }
+      }
+    }
+
+    for (Listener l : ready)
+    {
+      l.ready();
+    }
+    for (Listener l : changed)
+    {
+      l.changed();
+    }
+    for (Listener l : ping)
+    {
+      l.ping();
+    }
+  }
+
+  /*
+   * Replaces swap states of account with the new scan, adds events for differences to out if not null.
+   */
+  @SuppressWarnings("unchecked")
+  private static void compare(Watched w, List<SwapInfo> swaps, int height, List<JSONObject> out)
+  {
+    Map<String, SwapState> next = new HashMap<String, SwapState>();
+    for (SwapInfo x : swaps)
+    {
+      if (x.triggerhash == null)
+        continue;
+      SwapState old = w.swaps.get(x.triggerhash);
+      SwapState state = new SwapState();
+      for (List<BlockAssetInfo> legs : x.assets.values())
+      {
+        for (BlockAssetInfo leg : legs)
+        {
+          String txid = (String) leg.tx.get("transaction");
+          if (txid == null)
+            continue;
+          state.legs.add(txid);
+          if (out != null && (old == null || !old.legs.contains(txid)))
+          {
+            JSONObject e = event("leg", w, x, height);
+            e.put("transaction", txid);
+            e.put("legSender", leg.tx.get("senderRS"));
+            e.put("asset", leg.asset.toJson());
+            out.add(e);
+          }
+        }
+      }
+      state.complete = complete(x);
+      state.gotTrigger = x.gotTrigger;
+      state.expired = !x.gotTrigger && x.minFinishHeight > 0 && height >= x.minFinishHeight;
+      if (out != null)
+      {
+        if (state.complete && (old == null || !old.complete))
+        {
+          out.add(event("complete", w, x, height));
+        }
+        if (state.gotTrigger && (old == null || !old.gotTrigger))
+        {
+          out.add(event("trigger", w, x, height));
+        }
+        if (state.expired && (old == null || !old.expired))
+        {
+          out.add(event("expired", w, x, height));
+        }
+      }
+      next.put(x.triggerhash, state);
+    }
+    w.swaps = next;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static JSONObject event(String name, Watched w, SwapInfo x, int height)
+  {
+    JSONObject e = new JSONObject();
+    e.put("event", name);
+    e.put("account", w.account);
+    e.put("triggerhash", x.triggerhash);
+    e.put("sender", x.sender);
+    e.put("recipient", x.recipient);
+    e.put("minFinishHeight", x.minFinishHeight);
+    e.put("height", height);
+    return e;
+  }
+
+  //every announced asset has a leg from sender and every expected asset a leg from recipient
+  private static boolean complete(SwapInfo x)
+  {
+    if (x.announcedAssets.isEmpty() && x.announcedExpAssets.isEmpty())
+      return false;
+    return covered(x.announcedAssets, x.assetsA) && covered(x.announcedExpAssets, x.assetsB);
+  }
+
+  private static boolean covered(List<AssetInfo> announced, List<BlockAssetInfo> legs)
+  {
+    List<BlockAssetInfo> left = new ArrayList<BlockAssetInfo>(legs);
+    for (AssetInfo a : announced)
+    {
+      BlockAssetInfo found = null;
+      for (BlockAssetInfo leg : left)
+      {
+        if (same(a, leg.asset) && leg.asset.quantity >= a.quantity)
+        {
+          found = leg;
+          break;
+        }
+      }
+      if (found == null)
+        return false;
+      left.remove(found);
+    }
+    return true;
+  }
+
+  //NXT payments have no asset id of their own
+  private static boolean same(AssetInfo a, AssetInfo b)
+  {
+    if (a.type == null || !a.type.equals(b.type))
+      return false;
+    return "NXT".equals(a.type) || (a.id != null && a.id.equals(b.id));
+  }
+
+  @SuppressWarnings("unchecked")
+  public synchronized JSONObject getStats()
+  {
+    JSONObject o = new JSONObject();
+    o.put("accounts", watched.size());
+    o.put("subscriptions", subscriptions.size());
+    o.put("lastId", lastId);
+    o.put("events", events.get());
+    o.put("scans", scans.get());
+    o.put("failures", failures.get());
+    return o;
+  }
+}
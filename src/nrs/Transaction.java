@@ -149,4 +149,79 @@ public class Transaction {
         throw e;
     }
 }
+
+  /*
+   * Decodes transaction bytes as produced by getBytes() without asking NRS.
+   * Only the fields quack needs are restored: header, message and encrypted message.
+   * Like NRS, bytes are rejected unless they are decoded to the last one, so other
+   * attachments, other appendices and trailing bytes are not valid here.
+   */
+  public static Transaction parseTransaction(byte[] bytes) throws NxtException.NotValidException
+  {
+    Transaction tx = new Transaction();
+    try
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        tx.type = buffer.get();
+        byte subtype = buffer.get();
+        tx.version = (byte) ((subtype & 0xF0) >> 4);
+        tx.subtype = (byte) (subtype & 0x0F);
+        tx.timestamp = buffer.getInt();
+        tx.deadline = buffer.getShort();
+        tx.senderPublicKey = new byte[32];
+        buffer.get(tx.senderPublicKey);
+        tx.recipientId = buffer.getLong();
+        tx.amountNQT = buffer.getLong();
+        tx.feeNQT = buffer.getLong();
+        byte[] referencedTransactionFullHash = new byte[32];
+        buffer.get(referencedTransactionFullHash);
+        tx.referencedTransactionFullHash = Convert.emptyToNull(referencedTransactionFullHash) == null
+            ? null : Convert.toHexString(referencedTransactionFullHash);
+        tx.signature = new byte[64];
+        buffer.get(tx.signature);
+        tx.signature = Convert.emptyToNull(tx.signature);
+
+        int flags = 0;
+        if (tx.version > 0) {
+            flags = buffer.getInt();
+            tx.ecBlockHeight = buffer.getInt();
+            tx.ecBlockId = buffer.getLong();
+        }
+
+        tx.senderId = Convert.publicKeyToAccountId(tx.senderPublicKey);
+        tx.senderRS = Convert.rsAccount(tx.senderId);
+
+        //payments and plain messages have empty attachment, so appendices follow right away
+        boolean emptyAttachment = (tx.type == 0 && tx.subtype == 0) || (tx.type == 1 && tx.subtype == 0);
+        if (!emptyAttachment) {
+            throw new NxtException.NotValidException("Unsupported transaction type " + tx.type + "." + tx.subtype);
+        }
+        if ((flags & ~3) != 0) {
+            throw new NxtException.NotValidException("Unsupported transaction appendices, flags " + flags);
+        }
+        int position = 1;
+        if ((flags & position) != 0) {
+            tx.message = new Appendix.Message(buffer, tx.version);
+        }
+        position <<= 1;
+        if ((flags & position) != 0) {
+            tx.encryptedMessage = new Appendix.EncryptedMessage(buffer, tx.version);
+        }
+        if (buffer.hasRemaining()) {
+            throw new NxtException.NotValidException("Transaction bytes too long, " + buffer.remaining() + " extra bytes");
+        }
+        return tx;
+    }
+    catch (NxtException.NotValidException e)
+    {
+        Logger.logDebugMessage("Failed to parse transaction bytes");
+        throw e;
+    }
+    catch (NxtException.ValidationException|RuntimeException e)
+    {
+        Logger.logDebugMessage("Failed to parse transaction bytes");
+        throw new NxtException.NotValidException("Invalid transaction bytes", e);
+    }
+  }
 }
\ No newline at end of file
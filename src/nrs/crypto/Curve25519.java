@@ -161,6 +161,13 @@ final class Curve25519 {
      *   P  [in]  public key
      */
     public static void verify(byte[] Y, byte[] v, byte[] h, byte[] P) {
+        if (Backend.radix51)
+            Curve25519Radix51.verify(Y, v, h, P);
+        else
+            verify10(Y, v, h, P);
+    }
+
+    private static void verify10(byte[] Y, byte[] v, byte[] h, byte[] P) {
         /* Y = v abs(P) + h G  */
         byte[] d=new byte[32];
         long10[]
@@ -838,6 +845,18 @@ final class Curve25519 {
 
     /* P = kG   and  s = sign(P)/k  */
     private static void core(byte[] Px, byte[] s, byte[] k, byte[] Gx) {
+        if (Backend.radix51) {
+            /* keygen, k is clamped */
+            boolean negative = Gx == null ? Curve25519Radix51.base(Px, s != null, k)
+                    : Curve25519Radix51.core(Px, s != null, k, Gx);
+            if (s != null)
+                sign_key(s, k, negative);
+        } else {
+            core10(Px, s, k, Gx);
+        }
+    }
+
+    private static void core10(byte[] Px, byte[] s, byte[] k, byte[] Gx) {
         long10
                 dx=new long10(),
                 t1=new long10(),
@@ -902,23 +921,71 @@ final class Curve25519 {
             sub(dx, dx, t1);	/* dx = t2 (Px - Gx)^2 - Py^2  */
             dx._0 -= 39420360;	/* dx = t2 (Px - Gx)^2 - Py^2 - Gy^2  */
             mul(t1, dx, BASE_R2Y);	/* t1 = -Py  */
-            if (is_negative(t1)!=0)	/* sign is 1, so just copy  */
-                cpy32(s, k);
-            else			/* sign is -1, so negate  */
-                mula_small(s, ORDER_TIMES_8, 0, k, 32, -1);
-
-            /* reduce s mod q
-             * (is this needed?  do it just in case, it's fast anyway) */
-            //divmod((dstptr) t1, s, 32, order25519, 32);
-
-            /* take reciprocal of s mod q */
-            byte[] temp1=new byte[32];
-            byte[] temp2=new byte[64];
-            byte[] temp3=new byte[64];
-            cpy32(temp1, ORDER);
-            cpy32(s, egcd32(temp2, temp3, s, temp1));
-            if ((s[31] & 0x80)!=0)
-                mula_small(s, s, 0, ORDER, 32, 1);
+            sign_key(s, k, is_negative(t1)!=0);
+        }
+    }
+
+    /* s = sign(P)/k, negative is the sign of -Py */
+    private static void sign_key(byte[] s, byte[] k, boolean negative) {
+        if (negative)	/* sign is 1, so just copy  */
+            cpy32(s, k);
+        else			/* sign is -1, so negate  */
+            mula_small(s, ORDER_TIMES_8, 0, k, 32, -1);
+
+        /* reduce s mod q
+         * (is this needed?  do it just in case, it's fast anyway) */
+        //divmod((dstptr) t1, s, 32, order25519, 32);
+
+        /* take reciprocal of s mod q */
+        byte[] temp1=new byte[32];
+        byte[] temp2=new byte[64];
+        byte[] temp3=new byte[64];
+        cpy32(temp1, ORDER);
+        cpy32(s, egcd32(temp2, temp3, s, temp1));
+        if ((s[31] & 0x80)!=0)
+            mula_small(s, s, 0, ORDER, 32, 1);
+    }
+
+    /* Curve25519Radix51 is used on 64-bit JVMs when it gives the same results as
+     * the radix 2^25.5 code here on a few keys, -Dnrs.curve25519.radix51=false
+     * keeps this code. */
+    private static final class Backend {
+
+        static final boolean radix51 = select();
+
+        private static boolean select() {
+            if ("false".equals(System.getProperty("nrs.curve25519.radix51")))
+                return false;
+            String model = System.getProperty("sun.arch.data.model");
+            if (model != null && !"64".equals(model))
+                return false;
+            try {
+                byte[] k = new byte[32], h = new byte[32], v = new byte[32];
+                for (int n = 0; n < 4; n++) {
+                    for (int i = 0; i < 32; i++) {
+                        k[i] = (byte)(i * 29 + n * 83 + 1);
+                        h[i] = (byte)(i * 53 + n * 17 + 5);
+                        v[i] = (byte)(i * 7 + n * 131 + 3);
+                    }
+                    clamp(k);
+                    byte[] p1 = new byte[32], s1 = new byte[32], p2 = new byte[32], s2 = new byte[32];
+                    core10(p1, s1, k, null);
+                    sign_key(s2, k, Curve25519Radix51.base(p2, true, k));
+                    if (!java.util.Arrays.equals(p1, p2) || !java.util.Arrays.equals(s1, s2))
+                        return false;
+                    core10(p1, null, h, p1);
+                    Curve25519Radix51.core(p2, false, h, p2);
+                    if (!java.util.Arrays.equals(p1, p2))
+                        return false;
+                    verify10(p1, v, h, p1);
+                    Curve25519Radix51.verify(p2, v, h, p2);
+                    if (!java.util.Arrays.equals(p1, p2))
+                        return false;
+                }
+                return true;
+            } catch (RuntimeException | LinkageError e) {
+                return false;
+            }
         }
     }
 
@@ -0,0 +1,789 @@
+package nrs.crypto;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/* Curve25519 over radix 2^51 field elements, five non-negative limbs in a long[5].
+ * Products are 128 bits wide (Math.multiplyHigh), a multiplication takes 25 of them
+ * where the radix 2^25.5 code in Curve25519 takes 100. Ladder, verification chain and
+ * square root are the same steps as there, so outputs are bit for bit the same.
+ * Temporaries come from a small pool shared by all threads, so callers on short lived
+ * (virtual) threads do not allocate them per call.
+ *
+ * Limb bounds: reduced values (output of mul, sqr, mul_small, reduce, unpack) are
+ * below 2^51 + 2^17, add and sub of reduced values are below 2^53, which is what
+ * mul and sqr accept. */
+final class Curve25519Radix51 {
+
+    private static final long M = (1L << 51) - 1;
+    private static final long L = (1L << 54) - 1;
+
+    /* 2p, added before subtraction to keep limbs non-negative */
+    private static final long TWO_P0 = (1L << 52) - 38;
+    private static final long TWO_P = (1L << 52) - 2;
+
+    /* constants 2Gy and 1/(2Gy) */
+    private static final long[] BASE_2Y = {
+            0x474bb0262583bL, 0x64a0e7937585L, 0x5b9759b6e1594L, 0x14b1fe122d388L, 0x3ea3ccbc8ebefL
+    };
+    private static final long[] BASE_R2Y = {
+            0x1f21940001670L, 0x34908a4491a6dL, 0x2fd746621359eL, 0x729f2beed3a0bL, 0x17c0352637055L
+    };
+
+    /* Edwards form of the base point, 2d and sqrt(-486664) for the map to Curve25519 */
+    private static final long[] BASE_X = {
+            0x62d608f25d51aL, 0x412a4b4f6592aL, 0x75b7171a4b31dL, 0x1ff60527118feL, 0x216936d3cd6e5L
+    };
+    private static final long[] BASE_Y = {
+            0x6666666666658L, 0x4ccccccccccccL, 0x1999999999999L, 0x3333333333333L, 0x6666666666666L
+    };
+    private static final long[] EDWARDS_D2 = {
+            0x69b9426b2f159L, 0x35050762add7aL, 0x3cf44c0038052L, 0x6738cc7407977L, 0x2406d9dc56dffL
+    };
+    private static final long[] SQRT_M486664 = {
+            0x604aaff457e06L, 0x2296fa350598dL, 0x7f13dfb16874fL, 0x35de93d846e01L, 0xf26edf460a00L
+    };
+
+    private static final class State {
+        final long[] dx = new long[5], t1 = new long[5], t2 = new long[5], t3 = new long[5], t4 = new long[5];
+        final long[][] x = new long[2][5], z = new long[2][5];
+        /* verify */
+        final long[][] p = new long[2][5], s = new long[2][5];
+        final long[][] yx = new long[3][5], yz = new long[3][5];
+        final long[][] v1 = new long[3][5], v2 = new long[3][5];
+        final byte[] d = new byte[32];
+        /* recip and sqrt */
+        final long[] r0 = new long[5], r1 = new long[5], r2 = new long[5], r3 = new long[5], r4 = new long[5];
+        final long[] q0 = new long[5], q1 = new long[5], q2 = new long[5];
+        final long[] canonical = new long[5];
+        /* fixed base: scalar digits, extended point, completed point, selected multiple */
+        final int[] e = new int[64];
+        final long[] ex = new long[5], ey = new long[5], ez = new long[5], et = new long[5];
+        final long[] cx = new long[5], cy = new long[5], cz = new long[5], ct = new long[5];
+        final long[] ypx = new long[5], ymx = new long[5], xy2d = new long[5];
+    }
+
+    /* Multiples (j + 1) 256^i B, i < 32, j < 8, of the Edwards base point B as
+     * y + x, y - x, 2dxy, 15 limbs each. 30K, built on first use. */
+    private static final class BaseTable {
+        static final long[] table = build();
+    }
+
+    /* free temporaries, callers beyond the pool size allocate and drop their own */
+    private static final ArrayBlockingQueue<State> states =
+            new ArrayBlockingQueue<State>(2 * Runtime.getRuntime().availableProcessors());
+
+    private static State acquire() {
+        State st = states.poll();
+        return st != null ? st : new State();
+    }
+
+    private static void release(State st) {
+        states.offer(st);
+    }
+
+    private Curve25519Radix51() {}
+
+    /* P = kG, see Curve25519.core. With sign set returns true if the sign of P is 1,
+     * which Curve25519 needs to derive the signing key. */
+    static boolean core(byte[] Px, boolean sign, byte[] k, byte[] Gx) {
+        State st = acquire();
+        try {
+            return core(st, Px, sign, k, Gx);
+        } finally {
+            release(st);
+        }
+    }
+
+    private static boolean core(State st, byte[] Px, boolean sign, byte[] k, byte[] Gx) {
+        long[] dx = st.dx, t1 = st.t1, t2 = st.t2, t3 = st.t3, t4 = st.t4;
+        long[][] x = st.x, z = st.z;
+
+        /* unpack the base */
+        if (Gx != null)
+            unpack(dx, Gx);
+        else
+            set(dx, 9);
+
+        /* 0G = point-at-infinity */
+        set(x[0], 1);
+        set(z[0], 0);
+
+        /* 1G = G */
+        cpy(x[1], dx);
+        set(z[1], 1);
+
+        for (int i = 32; i-- != 0; ) {
+            for (int j = 8; j-- != 0; ) {
+                /* swap arguments depending on bit */
+                int bit1 = (k[i] & 0xFF) >> j & 1;
+                int bit0 = ~(k[i] & 0xFF) >> j & 1;
+                long[] ax = x[bit0];
+                long[] az = z[bit0];
+                long[] bx = x[bit1];
+                long[] bz = z[bit1];
+
+                /* a' = a + b	*/
+                /* b' = 2 b	*/
+                mont_prep(t1, t2, ax, az);
+                mont_prep(t3, t4, bx, bz);
+                mont_add(t1, t2, t3, t4, ax, az, dx);
+                mont_dbl(t1, t2, t3, t4, bx, bz);
+            }
+        }
+
+        recip(st, t1, z[0], false);
+        mul(dx, x[0], t1);
+        pack(st, dx, Px);
+
+        if (!sign)
+            return false;
+
+        /* sign of P, see Curve25519.core */
+        x_to_y2(t2, t1, dx);	/* t1 = Py^2  */
+        recip(st, t3, z[1], false);	/* where Q=P+G ... */
+        mul(t2, x[1], t3);	/* t2 = Qx  */
+        add(t2, t2, dx);	/* t2 = Qx + Px  */
+        t2[0] += 9 + 486662;	/* t2 = Qx + Px + Gx + 486662  */
+        sub_small(dx, dx, 9);	/* dx = Px - Gx  */
+        sqr(t3, dx);	/* t3 = (Px - Gx)^2  */
+        mul(dx, t2, t3);	/* dx = t2 (Px - Gx)^2  */
+        sub(dx, dx, t1);	/* dx = t2 (Px - Gx)^2 - Py^2  */
+        sub_small(dx, dx, 39420360);	/* dx = t2 (Px - Gx)^2 - Py^2 - Gy^2  */
+        mul(t1, dx, BASE_R2Y);	/* t1 = -Py  */
+        return is_negative(st, t1);
+    }
+
+    /* Signature verification primitive, calculates Y = vP + hG, see Curve25519.verify */
+    static void verify(byte[] Y, byte[] v, byte[] h, byte[] P) {
+        State st = acquire();
+        try {
+            verify(st, Y, v, h, P);
+        } finally {
+            release(st);
+        }
+    }
+
+    private static void verify(State st, byte[] Y, byte[] v, byte[] h, byte[] P) {
+        byte[] d = st.d;
+        long[][] p = st.p, s = st.s, yx = st.yx, yz = st.yz, t1 = st.v1, t2 = st.v2;
+
+        int vi = 0, hi = 0, di = 0, nvh = 0, i, j, k;
+
+        /* set p[0] to G and p[1] to P  */
+
+        set(p[0], 9);
+        unpack(p[1], P);
+
+        /* set s[0] to P+G and s[1] to P-G  */
+
+        /* s[0] = (Py^2 + Gy^2 - 2 Py Gy)/(Px - Gx)^2 - Px - Gx - 486662  */
+        /* s[1] = (Py^2 + Gy^2 + 2 Py Gy)/(Px - Gx)^2 - Px - Gx - 486662  */
+
+        x_to_y2(t1[0], t2[0], p[1]);	/* t2[0] = Py^2  */
+        sqrt(st, t1[0], t2[0]);	/* t1[0] = Py or -Py  */
+        j = is_negative(st, t1[0]) ? 1 : 0;	/*      ... check which  */
+        t2[0][0] += 39420360;	/* t2[0] = Py^2 + Gy^2  */
+        mul(t2[1], BASE_2Y, t1[0]);	/* t2[1] = 2 Py Gy or -2 Py Gy  */
+        sub(t1[j], t2[0], t2[1]);	/* t1[0] = Py^2 + Gy^2 - 2 Py Gy  */
+        add(t1[1 - j], t2[0], t2[1]);	/* t1[1] = Py^2 + Gy^2 + 2 Py Gy  */
+        cpy(t2[0], p[1]);	/* t2[0] = Px  */
+        sub_small(t2[0], t2[0], 9);	/* t2[0] = Px - Gx  */
+        sqr(t2[1], t2[0]);	/* t2[1] = (Px - Gx)^2  */
+        recip(st, t2[0], t2[1], false);	/* t2[0] = 1/(Px - Gx)^2  */
+        mul(s[0], t1[0], t2[0]);	/* s[0] = t1[0]/(Px - Gx)^2  */
+        sub(s[0], s[0], p[1]);	/* s[0] = t1[0]/(Px - Gx)^2 - Px  */
+        sub_small(s[0], s[0], 9 + 486662);	/* s[0] = X(P+G)  */
+        mul(s[1], t1[1], t2[0]);	/* s[1] = t1[1]/(Px - Gx)^2  */
+        sub(s[1], s[1], p[1]);	/* s[1] = t1[1]/(Px - Gx)^2 - Px  */
+        sub_small(s[1], s[1], 9 + 486662);	/* s[1] = X(P-G)  */
+
+        /* prepare the chain  */
+        for (i = 0; i < 32; i++) {
+            vi = (vi >> 8) ^ (v[i] & 0xFF) ^ ((v[i] & 0xFF) << 1);
+            hi = (hi >> 8) ^ (h[i] & 0xFF) ^ ((h[i] & 0xFF) << 1);
+            nvh = ~(vi ^ hi);
+            di = (nvh & (di & 0x80) >> 7) ^ vi;
+            di ^= nvh & (di & 0x01) << 1;
+            di ^= nvh & (di & 0x02) << 1;
+            di ^= nvh & (di & 0x04) << 1;
+            di ^= nvh & (di & 0x08) << 1;
+            di ^= nvh & (di & 0x10) << 1;
+            di ^= nvh & (di & 0x20) << 1;
+            di ^= nvh & (di & 0x40) << 1;
+            d[i] = (byte)di;
+        }
+
+        di = ((nvh & (di & 0x80) << 1) ^ vi) >> 8;
+
+        /* initialize state */
+        set(yx[0], 1);
+        cpy(yx[1], p[di]);
+        cpy(yx[2], s[0]);
+        set(yz[0], 0);
+        set(yz[1], 1);
+        set(yz[2], 1);
+
+        vi = 0;
+        hi = 0;
+
+        /* and go for it! */
+        for (i = 32; i-- != 0; ) {
+            vi = (vi << 8) | (v[i] & 0xFF);
+            hi = (hi << 8) | (h[i] & 0xFF);
+            di = (di << 8) | (d[i] & 0xFF);
+
+            for (j = 8; j-- != 0; ) {
+                mont_prep(t1[0], t2[0], yx[0], yz[0]);
+                mont_prep(t1[1], t2[1], yx[1], yz[1]);
+                mont_prep(t1[2], t2[2], yx[2], yz[2]);
+
+                k = ((vi ^ vi >> 1) >> j & 1)
+                        + ((hi ^ hi >> 1) >> j & 1);
+                mont_dbl(yx[2], yz[2], t1[k], t2[k], yx[0], yz[0]);
+
+                k = (di >> j & 2) ^ ((di >> j & 1) << 1);
+                mont_add(t1[1], t2[1], t1[k], t2[k], yx[1], yz[1],
+                        p[di >> j & 1]);
+
+                mont_add(t1[2], t2[2], t1[0], t2[0], yx[2], yz[2],
+                        s[((vi ^ hi) >> j & 2) >> 1]);
+            }
+        }
+
+        k = (vi & 1) + (hi & 1);
+        recip(st, t1[0], yz[k], false);
+        mul(t1[1], yx[k], t1[0]);
+
+        pack(st, t1[1], Y);
+    }
+
+    /* P = kG for the base point, k must be clamped. Same result as core with a null Gx
+     * at a fraction of its cost: kG is computed as kB on the twisted Edwards curve
+     * -x^2 + y^2 = 1 + d x^2 y^2, which is birationally equivalent to Curve25519 with
+     * u = (1 + y)/(1 - y) and v = sqrt(-486664) u/x, B being the image of G.
+     * k is taken as 64 signed radix 16 digits, so kB is a sum of 64 multiples from
+     * BaseTable and 4 doublings. Table entries are selected without data-dependent
+     * branches or indexing. */
+    static boolean base(byte[] Px, boolean sign, byte[] k) {
+        State st = acquire();
+        try {
+            return base(st, Px, sign, k);
+        } finally {
+            release(st);
+        }
+    }
+
+    private static boolean base(State st, byte[] Px, boolean sign, byte[] k) {
+        long[] table = BaseTable.table;
+        long[] t1 = st.t1, t2 = st.t2, t3 = st.t3, t4 = st.t4, dx = st.dx;
+        long[] ex = st.ex, ey = st.ey, ez = st.ez, et = st.et;
+        long[] cx = st.cx, cy = st.cy, cz = st.cz, ct = st.ct;
+        int[] e = st.e;
+        int i, carry;
+
+        /* k = sum e[i] 16^i, -8 <= e[i] <= 8 */
+        for (i = 0; i < 32; i++) {
+            e[2 * i] = k[i] & 15;
+            e[2 * i + 1] = (k[i] & 0xFF) >> 4;
+        }
+        carry = 0;
+        for (i = 0; i < 63; i++) {
+            e[i] += carry;
+            carry = (e[i] + 8) >> 4;
+            e[i] -= carry << 4;
+        }
+        e[63] += carry;
+
+        /* neutral point */
+        set(ex, 0);
+        set(ey, 1);
+        set(ez, 1);
+        set(et, 0);
+
+        /* odd digits first, then 16 times that plus the even ones */
+        for (i = 1; i < 64; i += 2) {
+            select(st, table, i >> 1, e[i]);
+            madd(cx, cy, cz, ct, ex, ey, ez, et, st.ypx, st.ymx, st.xy2d, t1);
+            to_extended(ex, ey, ez, et, cx, cy, cz, ct);
+        }
+        for (i = 0; i < 4; i++) {
+            dbl(cx, cy, cz, ct, ex, ey, ez, t1);
+            to_extended(ex, ey, ez, et, cx, cy, cz, ct);
+        }
+        for (i = 0; i < 64; i += 2) {
+            select(st, table, i >> 1, e[i]);
+            madd(cx, cy, cz, ct, ex, ey, ez, et, st.ypx, st.ymx, st.xy2d, t1);
+            to_extended(ex, ey, ez, et, cx, cy, cz, ct);
+        }
+
+        /* u = (Z + Y)/(Z - Y) */
+        add(t1, ez, ey);
+        sub(t2, ez, ey);
+        if (!sign) {
+            recip(st, t3, t2, false);
+            mul(dx, t1, t3);
+            pack(st, dx, Px);
+            return false;
+        }
+
+        /* and v = sqrt(-486664) (Z + Y) Z / ((Z - Y) X), one reciprocal for both */
+        mul(t3, t2, ex);
+        recip(st, t4, t3, false);
+        mul(t3, t4, ex);
+        mul(dx, t1, t3);
+        pack(st, dx, Px);
+        mul(t3, t1, ez);
+        mul(t2, t3, t4);
+        mul(t3, t2, SQRT_M486664);
+
+        /* core looks at the sign of -Py */
+        set(t1, 0);
+        sub(t2, t1, t3);
+        return is_negative(st, t2);
+    }
+
+    /********************* radix 2^51 GF(2^255-19) math *********************/
+
+    private static long load64(byte[] m, int i) {
+        return (m[i] & 0xFFL) | (m[i + 1] & 0xFFL) << 8 | (m[i + 2] & 0xFFL) << 16 | (m[i + 3] & 0xFFL) << 24
+                | (m[i + 4] & 0xFFL) << 32 | (m[i + 5] & 0xFFL) << 40 | (m[i + 6] & 0xFFL) << 48 | (m[i + 7] & 0xFFL) << 56;
+    }
+
+    /* Convert to internal format from little-endian byte format, all 256 bits count
+     * as in Curve25519.unpack */
+    private static void unpack(long[] x, byte[] m) {
+        long w0 = load64(m, 0), w1 = load64(m, 8), w2 = load64(m, 16), w3 = load64(m, 24);
+        reduce(x, w0 & M, (w0 >>> 51 | w1 << 13) & M, (w1 >>> 38 | w2 << 26) & M, (w2 >>> 25 | w3 << 39) & M, w3 >>> 12,
+                0, 0, 0, 0, 0);
+    }
+
+    /* Fully reduced value, 0 .. 2^255-20 */
+    private static void canonical(long[] out, long[] x) {
+        long x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3], x4 = x[4];
+        for (int i = 0; i < 2; i++) {
+            x1 += x0 >>> 51; x0 &= M;
+            x2 += x1 >>> 51; x1 &= M;
+            x3 += x2 >>> 51; x2 &= M;
+            x4 += x3 >>> 51; x3 &= M;
+            x0 += 19 * (x4 >>> 51); x4 &= M;
+        }
+        /* now x < 2^255, subtract p once if x >= p */
+        long q = (x0 + 19) >>> 51;
+        q = (x1 + q) >>> 51;
+        q = (x2 + q) >>> 51;
+        q = (x3 + q) >>> 51;
+        q = (x4 + q) >>> 51;
+        x0 += 19 * q;
+        x1 += x0 >>> 51; x0 &= M;
+        x2 += x1 >>> 51; x1 &= M;
+        x3 += x2 >>> 51; x2 &= M;
+        x4 += x3 >>> 51; x3 &= M;
+        x4 &= M;
+        out[0] = x0; out[1] = x1; out[2] = x2; out[3] = x3; out[4] = x4;
+    }
+
+    /* Convert from internal format to little-endian byte format */
+    private static void pack(State st, long[] x, byte[] m) {
+        long[] c = st.canonical;
+        canonical(c, x);
+        long w0 = c[0] | c[1] << 51;
+        long w1 = c[1] >>> 13 | c[2] << 38;
+        long w2 = c[2] >>> 26 | c[3] << 25;
+        long w3 = c[3] >>> 39 | c[4] << 12;
+        for (int i = 0; i < 8; i++) {
+            m[i] = (byte)(w0 >>> 8 * i);
+            m[i + 8] = (byte)(w1 >>> 8 * i);
+            m[i + 16] = (byte)(w2 >>> 8 * i);
+            m[i + 24] = (byte)(w3 >>> 8 * i);
+        }
+    }
+
+    /* checks if x is "negative", the lowest bit of its fully reduced value */
+    private static boolean is_negative(State st, long[] x) {
+        canonical(st.canonical, x);
+        return (st.canonical[0] & 1) != 0;
+    }
+
+    private static void cpy(long[] out, long[] in) {
+        out[0] = in[0]; out[1] = in[1]; out[2] = in[2]; out[3] = in[3]; out[4] = in[4];
+    }
+
+    /* Set a number to a small non-negative value */
+    private static void set(long[] out, int in) {
+        out[0] = in; out[1] = 0; out[2] = 0; out[3] = 0; out[4] = 0;
+    }
+
+    private static void add(long[] xy, long[] x, long[] y) {
+        xy[0] = x[0] + y[0]; xy[1] = x[1] + y[1]; xy[2] = x[2] + y[2]; xy[3] = x[3] + y[3]; xy[4] = x[4] + y[4];
+    }
+
+    /* x - y + 2p, y must be reduced */
+    private static void sub(long[] xy, long[] x, long[] y) {
+        xy[0] = x[0] + TWO_P0 - y[0]; xy[1] = x[1] + TWO_P - y[1]; xy[2] = x[2] + TWO_P - y[2];
+        xy[3] = x[3] + TWO_P - y[3]; xy[4] = x[4] + TWO_P - y[4];
+    }
+
+    /* Carry a number, the output is reduced */
+    private static void carry(long[] out, long[] x) {
+        reduce(out, x[0], x[1], x[2], x[3], x[4], 0, 0, 0, 0, 0);
+    }
+
+    /* 2x, the output is reduced */
+    private static void twice(long[] out, long[] x) {
+        reduce(out, 2 * x[0], 2 * x[1], 2 * x[2], 2 * x[3], 2 * x[4], 0, 0, 0, 0, 0);
+    }
+
+    /* x - y for a small non-negative y, the output is reduced */
+    private static void sub_small(long[] xy, long[] x, long y) {
+        reduce(xy, x[0] + TWO_P0 - y, x[1] + TWO_P, x[2] + TWO_P, x[3] + TWO_P, x[4] + TWO_P, 0, 0, 0, 0, 0);
+    }
+
+    /* Carries coefficients l[i] + h[i] 2^54 at position 2^(51 i) into reduced limbs.
+     * l below 2^57, h below 2^59. */
+    private static void reduce(long[] r, long l0, long l1, long l2, long l3, long l4,
+            long h0, long h1, long h2, long h3, long h4) {
+        long c, r0, r1, r2, r3, r4;
+        c = l0; r0 = c & M; c = (c >>> 51) + (h0 << 3);
+        c += l1; r1 = c & M; c = (c >>> 51) + (h1 << 3);
+        c += l2; r2 = c & M; c = (c >>> 51) + (h2 << 3);
+        c += l3; r3 = c & M; c = (c >>> 51) + (h3 << 3);
+        c += l4; r4 = c & M; c = (c >>> 51) + (h4 << 3);
+        /* 2^255 = 19, c may be too large to multiply by 19 at once */
+        r0 += 19 * (c & M);
+        r1 += 19 * (c >>> 51) + (r0 >>> 51);
+        r[0] = r0 & M; r[1] = r1; r[2] = r2; r[3] = r3; r[4] = r4;
+    }
+
+    /* Multiply a number by a small non-negative integer, the output is reduced */
+    private static void mul_small(long[] xy, long[] x, long y) {
+        long x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3], x4 = x[4];
+        reduce(xy, x0 * y & L, x1 * y & L, x2 * y & L, x3 * y & L, x4 * y & L,
+                Math.multiplyHigh(x0 << 10, y), Math.multiplyHigh(x1 << 10, y), Math.multiplyHigh(x2 << 10, y),
+                Math.multiplyHigh(x3 << 10, y), Math.multiplyHigh(x4 << 10, y));
+    }
+
+    /* Multiply two numbers, the output is reduced. Every product is split into its
+     * low 54 bits and the rest, the high part comes from one multiplyHigh as the
+     * left factor is shifted up by 10 bits. Sums of the parts fit in a long. */
+    private static void mul(long[] xy, long[] x, long[] y) {
+        long a0 = x[0], a1 = x[1], a2 = x[2], a3 = x[3], a4 = x[4];
+        long b0 = y[0], b1 = y[1], b2 = y[2], b3 = y[3], b4 = y[4];
+        long a0s = a0 << 10, a1s = a1 << 10, a2s = a2 << 10, a3s = a3 << 10, a4s = a4 << 10;
+        long b1_19 = 19 * b1, b2_19 = 19 * b2, b3_19 = 19 * b3, b4_19 = 19 * b4;
+        long l0 = (a0 * b0 & L) + (a1 * b4_19 & L) + (a2 * b3_19 & L)
+                + (a3 * b2_19 & L) + (a4 * b1_19 & L);
+        long h0 = Math.multiplyHigh(a0s, b0) + Math.multiplyHigh(a1s, b4_19)
+                + Math.multiplyHigh(a2s, b3_19) + Math.multiplyHigh(a3s, b2_19)
+                + Math.multiplyHigh(a4s, b1_19);
+        long l1 = (a0 * b1 & L) + (a1 * b0 & L) + (a2 * b4_19 & L)
+                + (a3 * b3_19 & L) + (a4 * b2_19 & L);
+        long h1 = Math.multiplyHigh(a0s, b1) + Math.multiplyHigh(a1s, b0)
+                + Math.multiplyHigh(a2s, b4_19) + Math.multiplyHigh(a3s, b3_19)
+                + Math.multiplyHigh(a4s, b2_19);
+        long l2 = (a0 * b2 & L) + (a1 * b1 & L) + (a2 * b0 & L)
+                + (a3 * b4_19 & L) + (a4 * b3_19 & L);
+        long h2 = Math.multiplyHigh(a0s, b2) + Math.multiplyHigh(a1s, b1)
+                + Math.multiplyHigh(a2s, b0) + Math.multiplyHigh(a3s, b4_19)
+                + Math.multiplyHigh(a4s, b3_19);
+        long l3 = (a0 * b3 & L) + (a1 * b2 & L) + (a2 * b1 & L)
+                + (a3 * b0 & L) + (a4 * b4_19 & L);
+        long h3 = Math.multiplyHigh(a0s, b3) + Math.multiplyHigh(a1s, b2)
+                + Math.multiplyHigh(a2s, b1) + Math.multiplyHigh(a3s, b0)
+                + Math.multiplyHigh(a4s, b4_19);
+        long l4 = (a0 * b4 & L) + (a1 * b3 & L) + (a2 * b2 & L)
+                + (a3 * b1 & L) + (a4 * b0 & L);
+        long h4 = Math.multiplyHigh(a0s, b4) + Math.multiplyHigh(a1s, b3)
+                + Math.multiplyHigh(a2s, b2) + Math.multiplyHigh(a3s, b1)
+                + Math.multiplyHigh(a4s, b0);
+        reduce(xy, l0, l1, l2, l3, l4, h0, h1, h2, h3, h4);
+    }
+
+    /* Square a number, the output is reduced */
+    private static void sqr(long[] x2, long[] x) {
+        long a0 = x[0], a1 = x[1], a2 = x[2], a3 = x[3], a4 = x[4];
+        long a0s = a0 << 10, a1s = a1 << 10, a2s = a2 << 10, a3s = a3 << 10, a4s = a4 << 10;
+        long a1_2 = 2 * a1, a2_2 = 2 * a2, a3_2 = 2 * a3, a4_2 = 2 * a4;
+        long a3_19 = 19 * a3, a4_19 = 19 * a4, a3_38 = 38 * a3, a4_38 = 38 * a4;
+        long l0 = (a0 * a0 & L) + (a1 * a4_38 & L) + (a2 * a3_38 & L);
+        long h0 = Math.multiplyHigh(a0s, a0) + Math.multiplyHigh(a1s, a4_38)
+                + Math.multiplyHigh(a2s, a3_38);
+        long l1 = (a0 * a1_2 & L) + (a2 * a4_38 & L) + (a3 * a3_19 & L);
+        long h1 = Math.multiplyHigh(a0s, a1_2) + Math.multiplyHigh(a2s, a4_38)
+                + Math.multiplyHigh(a3s, a3_19);
+        long l2 = (a0 * a2_2 & L) + (a1 * a1 & L) + (a3 * a4_38 & L);
+        long h2 = Math.multiplyHigh(a0s, a2_2) + Math.multiplyHigh(a1s, a1)
+                + Math.multiplyHigh(a3s, a4_38);
+        long l3 = (a0 * a3_2 & L) + (a1 * a2_2 & L) + (a4 * a4_19 & L);
+        long h3 = Math.multiplyHigh(a0s, a3_2) + Math.multiplyHigh(a1s, a2_2)
+                + Math.multiplyHigh(a4s, a4_19);
+        long l4 = (a0 * a4_2 & L) + (a1 * a3_2 & L) + (a2 * a2 & L);
+        long h4 = Math.multiplyHigh(a0s, a4_2) + Math.multiplyHigh(a1s, a3_2)
+                + Math.multiplyHigh(a2s, a2);
+        reduce(x2, l0, l1, l2, l3, l4, h0, h1, h2, h3, h4);
+    }
+
+    /* Calculates a reciprocal, y = x^(p-2), see Curve25519.recip.
+     * When sqrtassist is set, it instead calculates y = x^((p-5)/8) */
+    private static void recip(State st, long[] y, long[] x, boolean sqrtassist) {
+        long[] t0 = st.r0, t1 = st.r1, t2 = st.r2, t3 = st.r3, t4 = st.r4;
+        int i;
+        /* the chain for x^(2^255-21) is straight from djb's implementation */
+        sqr(t1, x);	/*  2 == 2 * 1	*/
+        sqr(t2, t1);	/*  4 == 2 * 2	*/
+        sqr(t0, t2);	/*  8 == 2 * 4	*/
+        mul(t2, t0, x);	/*  9 == 8 + 1	*/
+        mul(t0, t2, t1);	/* 11 == 9 + 2	*/
+        sqr(t1, t0);	/* 22 == 2 * 11	*/
+        mul(t3, t1, t2);	/* 31 == 22 + 9
+                    == 2^5   - 2^0	*/
+        sqr(t1, t3);	/* 2^6   - 2^1	*/
+        sqr(t2, t1);	/* 2^7   - 2^2	*/
+        sqr(t1, t2);	/* 2^8   - 2^3	*/
+        sqr(t2, t1);	/* 2^9   - 2^4	*/
+        sqr(t1, t2);	/* 2^10  - 2^5	*/
+        mul(t2, t1, t3);	/* 2^10  - 2^0	*/
+        sqr(t1, t2);	/* 2^11  - 2^1	*/
+        sqr(t3, t1);	/* 2^12  - 2^2	*/
+        for (i = 1; i < 5; i++) {
+            sqr(t1, t3);
+            sqr(t3, t1);
+        } /* t3 */		/* 2^20  - 2^10	*/
+        mul(t1, t3, t2);	/* 2^20  - 2^0	*/
+        sqr(t3, t1);	/* 2^21  - 2^1	*/
+        sqr(t4, t3);	/* 2^22  - 2^2	*/
+        for (i = 1; i < 10; i++) {
+            sqr(t3, t4);
+            sqr(t4, t3);
+        } /* t4 */		/* 2^40  - 2^20	*/
+        mul(t3, t4, t1);	/* 2^40  - 2^0	*/
+        for (i = 0; i < 5; i++) {
+            sqr(t1, t3);
+            sqr(t3, t1);
+        } /* t3 */		/* 2^50  - 2^10	*/
+        mul(t1, t3, t2);	/* 2^50  - 2^0	*/
+        sqr(t2, t1);	/* 2^51  - 2^1	*/
+        sqr(t3, t2);	/* 2^52  - 2^2	*/
+        for (i = 1; i < 25; i++) {
+            sqr(t2, t3);
+            sqr(t3, t2);
+        } /* t3 */		/* 2^100 - 2^50 */
+        mul(t2, t3, t1);	/* 2^100 - 2^0	*/
+        sqr(t3, t2);	/* 2^101 - 2^1	*/
+        sqr(t4, t3);	/* 2^102 - 2^2	*/
+        for (i = 1; i < 50; i++) {
+            sqr(t3, t4);
+            sqr(t4, t3);
+        } /* t4 */		/* 2^200 - 2^100 */
+        mul(t3, t4, t2);	/* 2^200 - 2^0	*/
+        for (i = 0; i < 25; i++) {
+            sqr(t4, t3);
+            sqr(t3, t4);
+        } /* t3 */		/* 2^250 - 2^50	*/
+        mul(t2, t3, t1);	/* 2^250 - 2^0	*/
+        sqr(t1, t2);	/* 2^251 - 2^1	*/
+        sqr(t2, t1);	/* 2^252 - 2^2	*/
+        if (sqrtassist) {
+            mul(y, x, t2);	/* 2^252 - 3 */
+        } else {
+            sqr(t1, t2);	/* 2^253 - 2^3	*/
+            sqr(t2, t1);	/* 2^254 - 2^4	*/
+            sqr(t1, t2);	/* 2^255 - 2^5	*/
+            mul(y, t1, t0);	/* 2^255 - 21	*/
+        }
+    }
+
+    /* a square root */
+    private static void sqrt(State st, long[] x, long[] u) {
+        long[] v = st.q0, t1 = st.q1, t2 = st.q2;
+        add(t1, u, u);	/* t1 = 2u		*/
+        recip(st, v, t1, true);	/* v = (2u)^((p-5)/8)	*/
+        sqr(x, v);		/* x = v^2		*/
+        mul(t2, t1, x);	/* t2 = 2uv^2		*/
+        sub_small(t2, t2, 1);	/* t2 = 2uv^2-1		*/
+        mul(t1, v, t2);	/* t1 = v(2uv^2-1)	*/
+        mul(x, u, t1);	/* x = uv(2uv^2-1)	*/
+    }
+
+    /********************* Elliptic curve *********************/
+
+    /* y^2 = x^3 + 486662 x^2 + x  over GF(2^255-19) */
+
+    /* t1 = ax + az
+     * t2 = ax - az  */
+    private static void mont_prep(long[] t1, long[] t2, long[] ax, long[] az) {
+        add(t1, ax, az);
+        sub(t2, ax, az);
+    }
+
+    /* A = P + Q, see Curve25519.mont_add */
+    private static void mont_add(long[] t1, long[] t2, long[] t3, long[] t4, long[] ax, long[] az, long[] dx) {
+        mul(ax, t2, t3);
+        mul(az, t1, t4);
+        add(t1, ax, az);
+        sub(t2, ax, az);
+        sqr(ax, t1);
+        sqr(t1, t2);
+        mul(az, t1, dx);
+    }
+
+    /* B = 2 * Q, see Curve25519.mont_dbl */
+    private static void mont_dbl(long[] t1, long[] t2, long[] t3, long[] t4, long[] bx, long[] bz) {
+        sqr(t1, t3);
+        sqr(t2, t4);
+        mul(bx, t1, t2);
+        sub(t2, t1, t2);
+        mul_small(bz, t2, 121665);
+        add(t1, t1, bz);
+        mul(bz, t1, t2);
+    }
+
+    /* Y^2 = X^3 + 486662 X^2 + X
+     * t is a temporary  */
+    private static void x_to_y2(long[] t, long[] y2, long[] x) {
+        sqr(t, x);
+        mul_small(y2, x, 486662);
+        add(t, t, y2);
+        t[0]++;
+        mul(y2, t, x);
+    }
+
+    /********************* Twisted Edwards form *********************/
+
+    /* -x^2 + y^2 = 1 + d x^2 y^2, d = -121665/121666
+     * Points are extended (X:Y:Z:T) with x = X/Z, y = Y/Z, xy = T/Z, or completed
+     * ((X:Z),(Y:T)) with x = X/Z, y = Y/T as additions and doublings give them. */
+
+    /* r = p + q, p extended, q one of the multiples (y + x, y - x, 2dxy), r completed.
+     * t is a temporary */
+    private static void madd(long[] rx, long[] ry, long[] rz, long[] rt,
+            long[] px, long[] py, long[] pz, long[] pt, long[] ypx, long[] ymx, long[] xy2d, long[] t) {
+        add(rx, py, px);
+        sub(ry, py, px);
+        mul(rz, rx, ypx);	/* A = (Y + X)(y + x)  */
+        mul(ry, ry, ymx);	/* B = (Y - X)(y - x)  */
+        mul(rt, xy2d, pt);	/* C = 2dxy T  */
+        twice(t, pz);	/* D = 2 Z  */
+        sub(rx, rz, ry);	/* A - B  */
+        add(ry, rz, ry);	/* A + B  */
+        add(rz, t, rt);	/* D + C  */
+        sub(rt, t, rt);	/* D - C  */
+    }
+
+    /* r = 2 p, p extended (T is not used), r completed. t is a temporary */
+    private static void dbl(long[] rx, long[] ry, long[] rz, long[] rt,
+            long[] px, long[] py, long[] pz, long[] t) {
+        sqr(rx, px);	/* X^2  */
+        sqr(rz, py);	/* Y^2  */
+        sqr(rt, pz);
+        twice(rt, rt);	/* 2 Z^2  */
+        add(ry, px, py);
+        sqr(t, ry);	/* (X + Y)^2  */
+        add(ry, rz, rx);
+        carry(ry, ry);	/* Y^2 + X^2  */
+        sub(rz, rz, rx);
+        carry(rz, rz);	/* Y^2 - X^2  */
+        sub(rx, t, ry);	/* (X + Y)^2 - Y^2 - X^2  */
+        sub(rt, rt, rz);	/* 2 Z^2 - Y^2 + X^2  */
+    }
+
+    private static void to_extended(long[] rx, long[] ry, long[] rz, long[] rt,
+            long[] px, long[] py, long[] pz, long[] pt) {
+        mul(rx, px, pt);
+        mul(ry, py, pz);
+        mul(rz, pz, pt);
+        mul(rt, px, py);
+    }
+
+    /* Loads b 256^pos B, -8 <= b <= 8, reading all 8 multiples of the row */
+    private static void select(State st, long[] table, int pos, int b) {
+        long[] ypx = st.ypx, ymx = st.ymx, xy2d = st.xy2d;
+        int negative = b >>> 31;
+        int abs = b - ((-negative & b) << 1);
+
+        set(ypx, 1);
+        set(ymx, 1);
+        set(xy2d, 0);
+        for (int j = 0; j < 8; j++) {
+            long mask = -(long)(((abs ^ (j + 1)) - 1) >>> 31);
+            int o = (pos * 8 + j) * 15;
+            for (int l = 0; l < 5; l++) {
+                ypx[l] ^= (ypx[l] ^ table[o + l]) & mask;
+                ymx[l] ^= (ymx[l] ^ table[o + 5 + l]) & mask;
+                xy2d[l] ^= (xy2d[l] ^ table[o + 10 + l]) & mask;
+            }
+        }
+
+        /* -(x, y) = (-x, y) swaps y + x with y - x */
+        long mask = -(long)negative;
+        for (int l = 0; l < 5; l++) {
+            long t = (ypx[l] ^ ymx[l]) & mask;
+            ypx[l] ^= t;
+            ymx[l] ^= t;
+            long n = (l == 0 ? TWO_P0 : TWO_P) - xy2d[l];
+            xy2d[l] ^= (xy2d[l] ^ n) & mask;
+        }
+    }
+
+    /* Stores affine (x, y) as y + x, y - x, 2dxy, fully reduced */
+    private static void store(State st, long[] table, int o, long[] x, long[] y) {
+        long[] t = st.t1;
+        add(t, y, x);
+        canonical(t, t);
+        System.arraycopy(t, 0, table, o, 5);
+        sub(t, y, x);
+        canonical(t, t);
+        System.arraycopy(t, 0, table, o + 5, 5);
+        mul(t, x, y);
+        mul(t, t, EDWARDS_D2);
+        canonical(t, t);
+        System.arraycopy(t, 0, table, o + 10, 5);
+    }
+
+    /* (x, y) = (X/Z, Y/Z) */
+    private static void affine(State st, long[] x, long[] y, long[] px, long[] py, long[] pz) {
+        long[] t = st.t2;
+        recip(st, t, pz, false);
+        mul(x, px, t);
+        mul(y, py, t);
+    }
+
+    private static long[] build() {
+        State st = new State();
+        long[] table = new long[32 * 8 * 15];
+        long[] x = new long[5], y = new long[5], bx = new long[5], by = new long[5];
+        long[] ex = st.ex, ey = st.ey, ez = st.ez, et = st.et;
+        long[] cx = st.cx, cy = st.cy, cz = st.cz, ct = st.ct;
+
+        cpy(bx, BASE_X);
+        cpy(by, BASE_Y);
+        for (int i = 0; i < 32; i++) {
+            /* row i holds the multiples of A = 256^i B = (bx, by) */
+            int row = i * 8 * 15;
+            store(st, table, row, bx, by);
+            cpy(ex, bx);
+            cpy(ey, by);
+            set(ez, 1);
+            mul(et, bx, by);
+            for (int j = 1; j < 8; j++) {
+                System.arraycopy(table, row, st.ypx, 0, 5);
+                System.arraycopy(table, row + 5, st.ymx, 0, 5);
+                System.arraycopy(table, row + 10, st.xy2d, 0, 5);
+                madd(cx, cy, cz, ct, ex, ey, ez, et, st.ypx, st.ymx, st.xy2d, st.t3);
+                to_extended(ex, ey, ez, et, cx, cy, cz, ct);
+                affine(st, x, y, ex, ey, ez);
+                store(st, table, row + j * 15, x, y);
+            }
+
+            /* 256 A for the next row */
+            cpy(ex, bx);
+            cpy(ey, by);
+            set(ez, 1);
+            for (int j = 0; j < 8; j++) {
+                dbl(cx, cy, cz, ct, ex, ey, ez, st.t3);
+                to_extended(ex, ey, ez, et, cx, cy, cz, ct);
+            }
+            affine(st, bx, by, ex, ey, ez);
+        }
+        return table;
+    }
+}